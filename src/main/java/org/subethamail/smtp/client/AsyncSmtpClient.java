@@ -0,0 +1,198 @@
+package org.subethamail.smtp.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.subethamail.smtp.client.SMTPClient.Response;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A non-blocking SMTP client: connections are driven by a few event loop
+ * threads instead of a thread each, so a relay can talk to many servers at
+ * once. Every command returns a {@link CompletableFuture} of its reply, and
+ * {@link AsyncSmtpConnection#sendMail} one of the whole transaction.
+ *
+ * <pre>
+ * AsyncSmtpClient client = AsyncSmtpClient.heloHost("relay.example.com").eventLoops(2).build();
+ * client.connect("smarthost.example.com", 25)
+ *         .thenCompose(connection -&gt; connection
+ *                 .sendMail("me@example.com", Collections.singletonList("you@example.com"), content)
+ *                 .whenComplete((reply, e) -&gt; connection.quit()));
+ * </pre>
+ *
+ * Closing the client stops the event loops and closes the connections still
+ * open.
+ */
+public final class AsyncSmtpClient implements AutoCloseable {
+
+    private final String heloHost;
+    private final long connectTimeoutNanos;
+    private final long replyTimeoutNanos;
+    private final ClientEventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private AsyncSmtpClient(Builder builder) throws IOException {
+        this.heloHost = builder.heloHost;
+        this.connectTimeoutNanos = builder.connectTimeoutNanos;
+        this.replyTimeoutNanos = builder.replyTimeoutNanos;
+        this.loops = new ClientEventLoop[builder.eventLoops];
+        try {
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new ClientEventLoop("subethasmtp-client-" + i);
+                loops[i].start();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts building a client which sends the host name in EHLO.
+     */
+    public static Builder heloHost(String heloHost) {
+        return new Builder(heloHost);
+    }
+
+    public static final class Builder {
+
+        private final String heloHost;
+        private int eventLoops = 1;
+        /** 5 minutes, like {@link SMTPClient} */
+        private long connectTimeoutNanos = TimeUnit.MINUTES.toNanos(5);
+        /** 10 minutes, like {@link SMTPClient} */
+        private long replyTimeoutNanos = TimeUnit.MINUTES.toNanos(10);
+
+        private Builder(String heloHost) {
+            Preconditions.checkNotNull(heloHost, "heloHost cannot be null");
+            this.heloHost = heloHost;
+        }
+
+        /**
+         * Sets the number of event loop threads the connections are spread
+         * over. Default is 1, which handles thousands of connections unless
+         * dependent actions run on the loop.
+         */
+        public Builder eventLoops(int eventLoops) {
+            Preconditions.checkArgument(eventLoops > 0, "eventLoops must be positive");
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
+        /**
+         * Sets how long connecting may take until the server's greeting.
+         * Default is 5 minutes.
+         */
+        public Builder connectTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration > 0, "duration must be positive");
+            this.connectTimeoutNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Sets how long the server may take to reply to a command. Default is
+         * 10 minutes. Timeouts are checked about once a second.
+         */
+        public Builder replyTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration > 0, "duration must be positive");
+            this.replyTimeoutNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public AsyncSmtpClient build() throws IOException {
+            return new AsyncSmtpClient(this);
+        }
+
+    }
+
+    /**
+     * Connects to the server, see {@link #connect(InetSocketAddress)}. The
+     * host name is resolved on the calling thread.
+     */
+    public CompletableFuture<AsyncSmtpConnection> connect(String host, int port) {
+        return connect(new InetSocketAddress(host, port), host + ":" + port);
+    }
+
+    /**
+     * Connects to the server and sends EHLO, or HELO if EHLO is not supported.
+     * The future completes with the connection once the server accepted it,
+     * or exceptionally with an {@link SMTPException} if the server rejected
+     * the greeting or HELO, or an {@link IOException}.
+     */
+    public CompletableFuture<AsyncSmtpConnection> connect(InetSocketAddress address) {
+        return connect(address, address.getHostString() + ":" + address.getPort());
+    }
+
+    private CompletableFuture<AsyncSmtpConnection> connect(InetSocketAddress address, String hostPortName) {
+        AsyncSmtpConnection connection;
+        try {
+            connection = new AsyncSmtpConnection(nextLoop(), hostPortName, replyTimeoutNanos);
+        } catch (IOException e) {
+            return failed(e);
+        }
+        CompletableFuture<AsyncSmtpConnection> result = new CompletableFuture<>();
+        connection.open(address, connectTimeoutNanos) //
+                .thenCompose(greeting -> check(greeting, () -> connection.command("EHLO " + heloHost))) //
+                .thenCompose(ehlo -> {
+                    if (ehlo.isSuccess()) {
+                        SmartClient.parseEhloResponse(ehlo, connection.extensions());
+                        return CompletableFuture.completedFuture(ehlo);
+                    } else if (ehlo.getCode() == 500 || ehlo.getCode() == 502) {
+                        // server does not support EHLO, try HELO
+                        return connection.command("HELO " + heloHost)
+                                .thenCompose(helo -> check(helo, () -> CompletableFuture.completedFuture(helo)));
+                    } else {
+                        return failed(new SMTPException(ehlo));
+                    }
+                }) //
+                .whenComplete((reply, e) -> {
+                    if (e == null) {
+                        result.complete(connection);
+                    } else {
+                        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                        if (cause instanceof SMTPException) {
+                            connection.quit();
+                        } else {
+                            connection.close();
+                        }
+                        result.completeExceptionally(cause);
+                    }
+                });
+        return result;
+    }
+
+    private static CompletableFuture<Response> check(Response reply,
+            Supplier<CompletableFuture<Response>> next) {
+        return reply.isSuccess() ? next.get() : failed(new SMTPException(reply));
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    private ClientEventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Stops the event loops. Connections still open are closed and their
+     * pending commands fail.
+     */
+    @Override
+    public void close() {
+        for (ClientEventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+}
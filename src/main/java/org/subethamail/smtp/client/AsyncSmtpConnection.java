@@ -0,0 +1,462 @@
+package org.subethamail.smtp.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.client.SMTPClient.Response;
+import org.subethamail.smtp.internal.Constants;
+import org.subethamail.smtp.internal.io.DotStuffingEncoder;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A connection of an {@link AsyncSmtpClient}. Commands may be issued from any
+ * thread, they are written in the order they were issued and each returned
+ * future is completed with the reply to its command, so commands can be
+ * pipelined simply by issuing the next one before the previous reply arrived.
+ * <p>
+ * The futures are completed on the event loop of the connection, dependent
+ * actions which block must be run on another executor, e.g. with
+ * {@link CompletableFuture#thenApplyAsync(java.util.function.Function, java.util.concurrent.Executor)}.
+ * If the connection fails, for example because the server disconnected or did
+ * not reply in time, all futures still waiting for a reply complete
+ * exceptionally with the {@link IOException}.
+ */
+public final class AsyncSmtpConnection {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncSmtpConnection.class);
+
+    private static final int MAX_REPLY_LINE_LENGTH = 64 * 1024;
+
+    private final ClientEventLoop loop;
+
+    private final SocketChannel channel;
+
+    private final String hostPortName;
+
+    private final long replyTimeoutNanos;
+
+    /**
+     * SMTP extensions advertised in the reply to EHLO, filled in before the
+     * connection is handed out.
+     */
+    private final Map<String, String> extensions = new HashMap<>();
+
+    // state confined to the event loop
+
+    private SelectionKey key;
+
+    private final Deque<ByteBuffer> writes = new ArrayDeque<>();
+
+    private final Deque<CompletableFuture<Response>> replies = new ArrayDeque<>();
+
+    /** When the reply at the head of {@link #replies} is overdue */
+    private long replyDeadline;
+
+    private final StringBuilder line = new StringBuilder();
+
+    private final StringBuilder replyText = new StringBuilder();
+
+    private Optional<IOException> failure = Optional.empty();
+
+    /** The last message queued with {@link #sendMail} */
+    @GuardedBy("this")
+    private CompletableFuture<Response> lastTransaction = CompletableFuture.completedFuture(null);
+
+    AsyncSmtpConnection(ClientEventLoop loop, String hostPortName, long replyTimeoutNanos) throws IOException {
+        this.loop = loop;
+        this.channel = SocketChannel.open();
+        this.hostPortName = hostPortName;
+        this.replyTimeoutNanos = replyTimeoutNanos;
+    }
+
+    /**
+     * Starts connecting, the returned future completes with the greeting of
+     * the server.
+     */
+    CompletableFuture<Response> open(InetSocketAddress address, long connectTimeoutNanos) {
+        CompletableFuture<Response> greeting = new CompletableFuture<>();
+        loop.execute(() -> {
+            replies.add(greeting);
+            replyDeadline = System.nanoTime() + connectTimeoutNanos;
+            try {
+                log.debug("Connecting to {}", hostPortName);
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    key = loop.register(this, SelectionKey.OP_READ);
+                    replyDeadline = System.nanoTime() + replyTimeoutNanos;
+                } else {
+                    key = loop.register(this, SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (ClosedSelectorException e) {
+                fail(new ClosedChannelException());
+            }
+        });
+        return greeting;
+    }
+
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            replyDeadline = System.nanoTime() + replyTimeoutNanos;
+            updateInterest();
+        }
+    }
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    /**
+     * Sends a command, like "NOOP", and returns its reply. A reply with an
+     * error code completes the future normally.
+     *
+     * @param command
+     *            should not have any newlines
+     */
+    public CompletableFuture<Response> command(String command) {
+        return commands(Collections.singletonList(command)).get(0);
+    }
+
+    /**
+     * Writes the commands at once and returns the future reply to each.
+     */
+    List<CompletableFuture<Response>> commands(List<String> commands) {
+        StringBuilder b = new StringBuilder();
+        List<CompletableFuture<Response>> futures = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            log.debug("Client: {}", command);
+            b.append(command).append("\r\n");
+            futures.add(new CompletableFuture<>());
+        }
+        send(ByteBuffer.wrap(b.toString().getBytes(Constants.SMTP_CHARSET)), futures);
+        return futures;
+    }
+
+    /**
+     * Sends a message and returns the final reply to DATA. If the server
+     * supports PIPELINING the envelope and DATA are written at once, otherwise
+     * each command is sent after the reply to the previous one. The content is
+     * dot stuffed and terminated here, it must not end with the terminating
+     * dot.
+     * <p>
+     * The future completes exceptionally with an {@link SMTPException} if the
+     * server rejected the sender, all recipients or the message; the
+     * transaction is reset with RSET in that case, so the connection can be
+     * used for the next message. Recipients rejected while others were accepted
+     * do not fail the transaction.
+     * <p>
+     * Messages sent on the same connection are queued, each transaction
+     * starts once the previous one completed, as DATA must be the last command
+     * of a pipelined group. Other commands must not be issued while a message
+     * is being sent.
+     */
+    public CompletableFuture<Response> sendMail(String from, Collection<String> recipients, byte[] content) {
+        Preconditions.checkArgument(!recipients.isEmpty(), "recipients cannot be empty");
+        ByteBuffer data = DotStuffingEncoder.encode(content, 0, content.length);
+        synchronized (this) {
+            CompletableFuture<Response> transaction = lastTransaction.handle((reply, e) -> (Void) null)
+                    .thenCompose(x -> transaction(from, recipients, data));
+            lastTransaction = transaction;
+            return transaction;
+        }
+    }
+
+    private CompletableFuture<Response> transaction(String from, Collection<String> recipients, ByteBuffer data) {
+        String mailCommand = "MAIL FROM: <" + from + ">";
+        if (extensions.containsKey("PIPELINING")) {
+            List<String> commands = new ArrayList<>(recipients.size() + 2);
+            commands.add(mailCommand);
+            for (String recipient : recipients) {
+                commands.add("RCPT TO: <" + recipient + ">");
+            }
+            commands.add("DATA");
+            List<CompletableFuture<Response>> futures = commands(commands);
+            return futures.get(futures.size() - 1).thenCompose(dataReply -> {
+                // replies complete in order, the others are already done
+                List<Response> envelope = new ArrayList<>(futures.size() - 1);
+                for (int i = 0; i < futures.size() - 1; i++) {
+                    envelope.add(futures.get(i).join());
+                }
+                Optional<Response> rejection = envelopeRejection(envelope);
+                if (dataReply.getCode() != 354) {
+                    return reset(rejection.orElse(dataReply));
+                } else if (rejection.isPresent()) {
+                    // the server accepted DATA anyway, end the empty message
+                    // (RFC 2920)
+                    return data(DotStuffingEncoder.encode(new byte[0], 0, 0))
+                            .thenCompose(r -> reset(rejection.get()));
+                } else {
+                    return checked(data(data));
+                }
+            });
+        } else {
+            return command(mailCommand).thenCompose(mailReply -> {
+                if (!mailReply.isSuccess()) {
+                    return failed(new SMTPException(mailReply));
+                }
+                CompletableFuture<List<Response>> envelope = CompletableFuture
+                        .completedFuture(new ArrayList<>(Collections.singletonList(mailReply)));
+                for (String recipient : recipients) {
+                    envelope = envelope.thenCompose(list -> command("RCPT TO: <" + recipient + ">")
+                            .thenApply(reply -> {
+                                list.add(reply);
+                                return list;
+                            }));
+                }
+                return envelope.thenCompose(list -> {
+                    Optional<Response> rejection = envelopeRejection(list);
+                    if (rejection.isPresent()) {
+                        return reset(rejection.get());
+                    }
+                    return command("DATA").thenCompose(
+                            dataReply -> dataReply.getCode() == 354 ? checked(data(data)) : reset(dataReply));
+                });
+            });
+        }
+    }
+
+    /**
+     * Returns the reply which fails the transaction: the reply to MAIL FROM if
+     * it was rejected, or the reply to the first recipient if all recipients
+     * were rejected.
+     */
+    private static Optional<Response> envelopeRejection(List<Response> envelope) {
+        Response mailReply = envelope.get(0);
+        if (!mailReply.isSuccess()) {
+            return Optional.of(mailReply);
+        }
+        for (int i = 1; i < envelope.size(); i++) {
+            if (envelope.get(i).isSuccess()) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(envelope.get(1));
+    }
+
+    /**
+     * Aborts the transaction and fails with the reply which rejected it.
+     */
+    private CompletableFuture<Response> reset(Response rejection) {
+        return command("RSET").handle((reply, e) -> (Void) null)
+                .thenCompose(x -> failed(new SMTPException(rejection)));
+    }
+
+    private CompletableFuture<Response> data(ByteBuffer data) {
+        CompletableFuture<Response> reply = new CompletableFuture<>();
+        send(data, Collections.singletonList(reply));
+        return reply;
+    }
+
+    private static CompletableFuture<Response> checked(CompletableFuture<Response> reply) {
+        return reply.thenCompose(r -> r.isSuccess() ? CompletableFuture.completedFuture(r) : failed(new SMTPException(r)));
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+        return future;
+    }
+
+    /**
+     * Sends QUIT and closes the connection once the server replied. The
+     * returned future completes when the connection is closed, errors are
+     * ignored.
+     */
+    public CompletableFuture<Void> quit() {
+        return command("QUIT").handle((reply, e) -> {
+            close();
+            return null;
+        });
+    }
+
+    /**
+     * Closes the connection without sending QUIT. Commands still waiting for
+     * a reply fail.
+     */
+    public void close() {
+        loop.execute(() -> fail(new ClosedChannelException()));
+    }
+
+    /**
+     * Returns true until the connection was closed or failed.
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Returns the SMTP extensions supported by the server.
+     *
+     * @return the extension map. Key is the extension keyword in upper case,
+     *         value is the unparsed string of extension parameters.
+     */
+    public Map<String, String> getExtensions() {
+        return Collections.unmodifiableMap(extensions);
+    }
+
+    Map<String, String> extensions() {
+        return extensions;
+    }
+
+    /**
+     * @return a nice pretty description of who we are connected to
+     */
+    public String getHostPort() {
+        return hostPortName;
+    }
+
+    private void send(ByteBuffer bytes, List<CompletableFuture<Response>> futures) {
+        loop.execute(() -> {
+            if (failure.isPresent()) {
+                for (CompletableFuture<Response> future : futures) {
+                    future.completeExceptionally(failure.get());
+                }
+                return;
+            }
+            if (replies.isEmpty()) {
+                replyDeadline = System.nanoTime() + replyTimeoutNanos;
+            }
+            replies.addAll(futures);
+            writes.add(bytes);
+            try {
+                flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    void flush() throws IOException {
+        if (!channel.isConnected()) {
+            return;
+        }
+        if (writes.size() == 1) {
+            channel.write(writes.peek());
+        } else if (writes.size() > 1) {
+            channel.write(writes.toArray(new ByteBuffer[0]));
+        }
+        while (!writes.isEmpty() && !writes.peek().hasRemaining()) {
+            writes.poll();
+        }
+        // anything left waits until the socket is writable again
+        updateInterest();
+    }
+
+    private void updateInterest() {
+        if (key != null && key.isValid()) {
+            key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void read(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int n = channel.read(buffer);
+        if (n < 0) {
+            throw new EOFException("Server disconnected unexpectedly");
+        }
+        buffer.flip();
+        while (buffer.hasRemaining() && !failure.isPresent()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                String s = line.toString();
+                line.setLength(0);
+                receiveLine(s);
+            } else if (b != '\r') {
+                if (line.length() == MAX_REPLY_LINE_LENGTH) {
+                    throw new IOException("SMTP reply line too long");
+                }
+                line.append((char) (b & 0xff));
+            }
+        }
+    }
+
+    /**
+     * Parses a reply line like {@link SMTPClient} does, and completes the
+     * oldest command with the reply after its last line.
+     */
+    private void receiveLine(String s) throws IOException {
+        log.debug("Server: {}", s);
+        if (s.length() < 4) {
+            throw new IOException("Malformed SMTP reply: " + s);
+        }
+        replyText.append(s, 4, s.length());
+        if (s.charAt(3) == '-') {
+            replyText.append('\n');
+            return;
+        }
+        int code;
+        try {
+            code = Integer.parseInt(s.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed SMTP reply: " + s, e);
+        }
+        Response response = new Response(code, replyText.toString());
+        replyText.setLength(0);
+        CompletableFuture<Response> future = replies.poll();
+        if (future == null) {
+            throw new IOException("Unexpected SMTP reply: " + response);
+        }
+        replyDeadline = System.nanoTime() + replyTimeoutNanos;
+        future.complete(response);
+    }
+
+    void checkTimeout(long now) {
+        if (!replies.isEmpty() && now - replyDeadline > 0) {
+            fail(new SocketTimeoutException("No reply from " + hostPortName + " in time"));
+        }
+    }
+
+    /**
+     * Closes the channel and fails the commands waiting for a reply. Only the
+     * first failure counts.
+     */
+    void fail(IOException e) {
+        if (failure.isPresent()) {
+            return;
+        }
+        failure = Optional.of(e);
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+            log.debug("Closed connection to {}", hostPortName);
+        } catch (IOException ex) {
+            log.debug("Problem closing connection to " + hostPortName, ex);
+        }
+        writes.clear();
+        CompletableFuture<Response> future;
+        while ((future = replies.poll()) != null) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " { " + hostPortName + "}";
+    }
+
+}
@@ -0,0 +1,158 @@
+package org.subethamail.smtp.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread which multiplexes the connections of an {@link AsyncSmtpClient}
+ * over one {@link Selector}. All the state of a connection is only touched on
+ * its loop, other threads hand their work over with
+ * {@link #execute(Runnable)}.
+ */
+final class ClientEventLoop extends Thread {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientEventLoop.class);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final Selector selector;
+
+    /** Work handed over from other threads, run on this thread */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    ClientEventLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.nanoTime();
+        try {
+            while (running) {
+                runTasks();
+                selector.select(SWEEP_INTERVAL_MS);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    handle(key);
+                }
+                long now = System.nanoTime();
+                if (now - lastSweep >= SWEEP_INTERVAL_MS * 1_000_000) {
+                    lastSweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        ((AsyncSmtpConnection) key.attachment()).checkTimeout(now);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Unexpected exception in client event loop, stopped", e);
+        } finally {
+            running = false;
+            IOException stopped = new ClosedChannelException();
+            for (SelectionKey key : selector.keys()) {
+                ((AsyncSmtpConnection) key.attachment()).fail(stopped);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Cannot close selector", e);
+            }
+            runTasks();
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        AsyncSmtpConnection connection = (AsyncSmtpConnection) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                connection.finishConnect();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.read(readBuffer);
+            }
+        } catch (IOException e) {
+            connection.fail(e);
+        } catch (CancelledKeyException e) {
+            // closed by a callback while handling the key
+        }
+    }
+
+    /**
+     * Registers the channel of a connection, must be called on this thread.
+     */
+    SelectionKey register(AsyncSmtpConnection connection, int ops) throws ClosedChannelException {
+        return connection.channel().register(selector, ops, connection);
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == this;
+    }
+
+    /**
+     * Runs the task on this thread, immediately if called from it. Tasks
+     * handed over after the loop stopped are run on the calling thread and
+     * should expect the selector to be closed.
+     */
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        if (running) {
+            selector.wakeup();
+        } else {
+            runTasks();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception in client event loop task", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the loop, which fails the connections still open, and waits for
+     * it to finish.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        if (!inLoop()) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
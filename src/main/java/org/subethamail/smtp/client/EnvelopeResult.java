@@ -0,0 +1,82 @@
+package org.subethamail.smtp.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.subethamail.smtp.client.SMTPClient.Response;
+
+/**
+ * The replies to the envelope of a mail transaction sent with
+ * {@link SmartClient#sendEnvelope(String, java.util.Collection)}: the reply to
+ * MAIL FROM, the reply to each RCPT TO and, if it was sent, the reply to DATA.
+ */
+public final class EnvelopeResult {
+
+    private final Response mailResponse;
+    private final Map<String, Response> recipientResponses;
+    private final Optional<Response> dataResponse;
+
+    EnvelopeResult(Response mailResponse, Map<String, Response> recipientResponses,
+            Optional<Response> dataResponse) {
+        this.mailResponse = mailResponse;
+        this.recipientResponses = Collections.unmodifiableMap(recipientResponses);
+        this.dataResponse = dataResponse;
+    }
+
+    public Response getMailResponse() {
+        return mailResponse;
+    }
+
+    /**
+     * @return the reply to RCPT TO of each recipient, in the order they were
+     *         sent
+     */
+    public Map<String, Response> getRecipientResponses() {
+        return recipientResponses;
+    }
+
+    public List<String> getAcceptedRecipients() {
+        return recipients(true);
+    }
+
+    public List<String> getRejectedRecipients() {
+        return recipients(false);
+    }
+
+    /**
+     * @return the reply to DATA, empty if DATA was not requested or not sent
+     *         because no recipient was accepted
+     */
+    public Optional<Response> getDataResponse() {
+        return dataResponse;
+    }
+
+    /**
+     * Returns true if the server is waiting for the message content, which is
+     * then written with {@link SmartClient#dataWrite(byte[])} and ended with
+     * {@link SmartClient#dataEnd()}.
+     */
+    public boolean isDataStarted() {
+        return dataResponse.isPresent() && dataResponse.get().getCode() == 354;
+    }
+
+    private List<String> recipients(boolean accepted) {
+        List<String> list = new ArrayList<>();
+        for (Map.Entry<String, Response> entry : recipientResponses.entrySet()) {
+            if (entry.getValue().isSuccess() == accepted) {
+                list.add(entry.getKey());
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return "EnvelopeResult[mail=" + mailResponse + ", recipients=" + recipientResponses + ", data="
+                + dataResponse.map(Response::toString).orElse("") + "]";
+    }
+
+}
@@ -10,13 +10,13 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.util.List;
 import java.util.Optional;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.internal.Constants;
-import org.subethamail.smtp.internal.io.DotTerminatedOutputStream;
-import org.subethamail.smtp.internal.io.ExtraDotOutputStream;
+import org.subethamail.smtp.internal.io.DotStuffingOutputStream;
 
 import com.github.davidmoten.guavamini.Preconditions;
 
@@ -32,12 +32,9 @@ public class SMTPClient implements AutoCloseable {
 
     /** 10 minutes */
     private static final int REPLY_TIMEOUT = 600 * 1000;
-    
-    // TODO make this option in SMTPClient, SmartClient, use builder in SmartClient
-    /**
-     * This field is temporary only till SmartClient builder is created.
-     */
-    public static final long RECEIVE_AND_CHECK_PAUSE_MS = 50;
+
+    /** Message content is written to the socket in segments of this size */
+    private static final int DATA_BUFFER_SIZE = 32 * 1024;
 
     private static Logger log = LoggerFactory.getLogger(SMTPClient.class);
 
@@ -64,16 +61,11 @@ public class SMTPClient implements AutoCloseable {
     OutputStream rawOutput;
 
     /**
-     * A stream which wraps {@link #rawOutput} and is used to write out the DOT
-     * CR LF terminating sequence in the DATA command, if necessary
-     * complementing the message content with a closing CR LF.
-     */
-    DotTerminatedOutputStream dotTerminatedOutput;
-    /**
-     * This stream wraps {@link #dotTerminatedOutput} and it does the dot
-     * stuffing for the SMTP DATA command.
+     * A stream which wraps {@link #rawOutput}, it does the dot stuffing for
+     * the SMTP DATA command and writes out the DOT CR LF terminating sequence,
+     * if necessary complementing the message content with a closing CR LF.
      */
-    ExtraDotOutputStream dataOutput;
+    DotStuffingOutputStream dataOutput;
 
     /** Note we bypass this during DATA */
     PrintWriter writer;
@@ -161,6 +153,9 @@ public class SMTPClient implements AutoCloseable {
         this.socket = createSocket();
         this.socket.bind(this.bindpoint.orElse(null));
         this.socket.setSoTimeout(REPLY_TIMEOUT);
+        // every command is written whole, and a BDAT command line followed by
+        // its chunk must not wait for the server to acknowledge the line
+        this.socket.setTcpNoDelay(true);
         this.socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
 
         try {
@@ -170,8 +165,7 @@ public class SMTPClient implements AutoCloseable {
                     new InputStreamReader(this.socket.getInputStream(), Constants.SMTP_CHARSET));
 
             this.rawOutput = this.socket.getOutputStream();
-            this.dotTerminatedOutput = new DotTerminatedOutputStream(this.rawOutput);
-            this.dataOutput = new ExtraDotOutputStream(this.dotTerminatedOutput);
+            this.dataOutput = new DotStuffingOutputStream(this.rawOutput, DATA_BUFFER_SIZE);
             this.writer = new PrintWriter(this.rawOutput, true);
         } catch (IOException e) {
             close();
@@ -217,6 +211,27 @@ public class SMTPClient implements AutoCloseable {
         this.writer.flush();
     }
 
+    /**
+     * Sends several messages to the server with a single flush, as permitted
+     * by the PIPELINING extension. The replies are read afterwards, in the
+     * same order.
+     *
+     * @param msgs
+     *            should not have any newlines
+     */
+    protected void sendAll(List<String> msgs) throws IOException {
+        if (!connected)
+            throw new IllegalStateException("Not connected");
+
+        StringBuilder builder = new StringBuilder();
+        for (String msg : msgs) {
+            log.debug("Client: {}", msg);
+            builder.append(msg).append("\r\n");
+        }
+        this.writer.print(builder);
+        this.writer.flush();
+    }
+
     /**
      * Note that the response text comes back without trailing newlines.
      */
@@ -275,14 +290,6 @@ public class SMTPClient implements AutoCloseable {
 
     /** If response is not success, throw an exception */
     public Response receiveAndCheck() throws IOException, SMTPException {
-        // without a pause here there is a race with operating system IO
-        // that can mean nothing is received. This was noticed by putting 
-        // a loop on BdatTest.testOneBdatCommand.
-        try {
-            Thread.sleep(RECEIVE_AND_CHECK_PAUSE_MS);
-        } catch (InterruptedException e) {
-            // do nothing
-        }
         Response resp = this.receive();
         if (!resp.isSuccess())
             throw new SMTPException(resp);
@@ -1,12 +1,20 @@
 package org.subethamail.smtp.client;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
@@ -28,6 +36,14 @@ import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
 public class SmartClient {
 
     private static final Logger log = LoggerFactory.getLogger(SmartClient.class);
+
+    /** The size of the BDAT chunks sent by {@link #sendData(InputStream)} */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /** Enough for "BDAT", the largest long, "LAST" and CR LF */
+    private static final int CHUNK_HEADER_ROOM = 32;
+
+    private static final int DATA_BUFFER_SIZE = 8192;
     
     /** The host name which is sent in the HELO and EHLO commands */
     private final String heloHost;
@@ -60,6 +76,14 @@ public class SmartClient {
      */
     private boolean serverClosingTransmissionChannel = false;
 
+    /**
+     * True from MAIL FROM until the end of the message data or RSET.
+     */
+    private boolean transactionInProgress;
+
+    /** See {@link #setCanonicalLineEndings(boolean)} */
+    private boolean canonicalLineEndings;
+
     /**
      * Constructor.
      * 
@@ -139,7 +163,7 @@ public class SmartClient {
         extensions.clear();
         Response resp = client.sendReceive("EHLO " + heloHost);
         if (resp.isSuccess()) {
-            parseEhloResponse(resp);
+            parseEhloResponse(resp, extensions);
         } else if (resp.getCode() == 500 || resp.getCode() == 502) {
             // server does not support EHLO, try HELO
             client.sendAndCheck("HELO " + heloHost);
@@ -151,14 +175,13 @@ public class SmartClient {
 
     /**
      * Extracts the list of SMTP extensions from the server's response to EHLO,
-     * and stores them in {@link #extensions}.
+     * and stores them in the map.
      */
-    private void parseEhloResponse(Response resp) throws IOException {
-        BufferedReader reader = new BufferedReader(new StringReader(resp.getMessage()));
+    static void parseEhloResponse(Response resp, Map<String, String> extensions) {
+        String[] lines = resp.getMessage().split("\n");
         // first line contains server name and welcome message, skip it
-        reader.readLine();
-        String line;
-        while (null != (line = reader.readLine())) {
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
             int iFirstSpace = line.indexOf(' ');
             String keyword = iFirstSpace == -1 ? line : line.substring(0, iFirstSpace);
             String parameters = iFirstSpace == -1 ? "" : line.substring(iFirstSpace + 1);
@@ -178,6 +201,7 @@ public class SmartClient {
     }
 
     public void from(String from) throws IOException, SMTPException {
+        transactionInProgress = true;
         client.sendAndCheck("MAIL FROM: <" + from + ">");
     }
 
@@ -186,6 +210,118 @@ public class SmartClient {
         this.recipientCount++;
     }
 
+    /**
+     * Sends MAIL FROM, a RCPT TO for each recipient and optionally DATA, and
+     * returns the reply to each. If the server supports PIPELINING all
+     * commands are written with a single flush before the replies are read,
+     * so the envelope takes one round trip instead of one per command.
+     * Otherwise the commands are sent one by one, and DATA only if a
+     * recipient was accepted.
+     * <p>
+     * Rejected recipients do not fail the transaction; if at least one
+     * recipient was accepted and DATA was requested,
+     * {@link EnvelopeResult#isDataStarted()} is true and the message content
+     * follows with {@link #dataWrite(byte[])} and {@link #dataEnd()}.
+     *
+     * @throws SMTPException
+     *             if the server rejected MAIL FROM, or replied 421 to the end
+     *             of the empty message sent when it accepted DATA without
+     *             accepted recipients, after which the connection is closed
+     * @throws IOException
+     *             if the connection failed, it is closed
+     */
+    public EnvelopeResult sendEnvelope(String from, Collection<String> recipients, boolean startData)
+            throws IOException, SMTPException {
+        Preconditions.checkArgument(!recipients.isEmpty(), "recipients cannot be empty");
+        boolean pipelined = extensions.containsKey("PIPELINING");
+        String mailCommand = "MAIL FROM: <" + from + ">";
+        if (pipelined) {
+            List<String> commands = new ArrayList<>(recipients.size() + 2);
+            commands.add(mailCommand);
+            for (String recipient : recipients) {
+                commands.add("RCPT TO: <" + recipient + ">");
+            }
+            if (startData) {
+                commands.add("DATA");
+            }
+            client.sendAll(commands);
+        }
+        transactionInProgress = true;
+        Response mailResponse = exchange(pipelined, mailCommand);
+        if (!pipelined && !mailResponse.isSuccess()) {
+            transactionInProgress = false;
+            throw new SMTPException(mailResponse);
+        }
+        Map<String, Response> recipientResponses = new LinkedHashMap<>();
+        int accepted = 0;
+        for (String recipient : recipients) {
+            Response response = exchange(pipelined, "RCPT TO: <" + recipient + ">");
+            recipientResponses.put(recipient, response);
+            if (response.isSuccess()) {
+                accepted++;
+            }
+        }
+        Optional<Response> dataResponse = Optional.empty();
+        if (startData && (pipelined || accepted > 0)) {
+            dataResponse = Optional.of(exchange(pipelined, "DATA"));
+            if (dataResponse.get().getCode() == 354 && (!mailResponse.isSuccess() || accepted == 0)) {
+                // a server may accept DATA even if all recipients were
+                // rejected, the empty message is ended immediately (RFC 2920)
+                endEmptyMessage();
+                dataResponse = Optional.empty();
+            }
+        }
+        if (!mailResponse.isSuccess()) {
+            transactionInProgress = false;
+            throw new SMTPException(mailResponse);
+        }
+        this.recipientCount += accepted;
+        return new EnvelopeResult(mailResponse, recipientResponses, dataResponse);
+    }
+
+    /**
+     * Sends MAIL FROM, the RCPT TOs and DATA, see
+     * {@link #sendEnvelope(String, Collection, boolean)}.
+     */
+    public EnvelopeResult sendEnvelope(String from, Collection<String> recipients)
+            throws IOException, SMTPException {
+        return sendEnvelope(from, recipients, true);
+    }
+
+    /**
+     * Ends the message after a DATA which should have been rejected. Whatever
+     * the server replies the transaction is over, but a 421 or no reply at all
+     * means the connection cannot be used any more.
+     */
+    private void endEmptyMessage() throws IOException {
+        Response response;
+        try {
+            client.dataOutput.writeTerminatingSequence();
+            response = receive();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        transactionInProgress = false;
+        if (response.getCode() == 421) {
+            close();
+            throw new SMTPException(response);
+        }
+        if (response.isSuccess()) {
+            log.warn("{} accepted a message without recipients: {}", client.getHostPort(), response);
+        }
+    }
+
+    /**
+     * Returns the reply to the command, which was already sent if pipelined.
+     */
+    private Response exchange(boolean pipelined, String command) throws IOException {
+        if (!pipelined) {
+            client.send(command);
+        }
+        return receive();
+    }
+
     /**
      * Prelude to writing data
      */
@@ -193,13 +329,23 @@ public class SmartClient {
         client.sendAndCheck("DATA");
     }
     
-    public void bdat(String text, boolean isLast) throws IOException {
-        client.send("BDAT " + text.length() + (isLast? " LAST": ""));
-        dataWrite(text.getBytes(StandardCharsets.UTF_8));
-        client.dataOutput.flush();
+    /**
+     * Sends a BDAT chunk and checks the reply. The bytes are sent as they are,
+     * BDAT needs no dot stuffing.
+     */
+    public void bdat(byte[] data, int offset, int length, boolean isLast) throws IOException {
+        writeChunk(data, offset, length, isLast);
         log.debug("receiving bdat response");
         client.receiveAndCheck();
         log.debug("received bdat response");
+        if (isLast) {
+            transactionInProgress = false;
+        }
+    }
+
+    public void bdat(String text, boolean isLast) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        bdat(bytes, 0, bytes.length, isLast);
     }
     
     public void bdat(String text) throws IOException {
@@ -210,26 +356,245 @@ public class SmartClient {
         bdat(text, true);
     }
 
+    /**
+     * Sends the message content, after MAIL FROM and RCPT TO, in BDAT chunks
+     * of {@link #DEFAULT_CHUNK_SIZE} bytes, see
+     * {@link #sendData(InputStream, int)}.
+     */
+    public void sendData(InputStream content) throws IOException {
+        sendData(content, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Sends the message content, after MAIL FROM and RCPT TO, in BDAT chunks
+     * of the given size if the server supports CHUNKING, otherwise with DATA.
+     * With BDAT the bytes are sent as they are, so they must already have CR
+     * LF line endings; with DATA they are dot stuffed as by
+     * {@link #dataWrite(byte[])}. If the server also supports PIPELINING the
+     * next chunk is written before the reply to the previous one is read.
+     *
+     * @throws SMTPException
+     *             if the server rejected a chunk or the message
+     */
+    public void sendData(InputStream content, int chunkSize) throws IOException {
+        Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive");
+        if (!extensions.containsKey("CHUNKING")) {
+            dataStart();
+            byte[] buffer = new byte[Math.min(chunkSize, DATA_BUFFER_SIZE)];
+            int n;
+            while ((n = content.read(buffer)) != -1) {
+                dataWrite(buffer, n);
+            }
+            dataEnd();
+            return;
+        }
+        byte[][] buffers = { new byte[CHUNK_HEADER_ROOM + chunkSize], new byte[CHUNK_HEADER_ROOM + chunkSize] };
+        int[] state = { 0, readFully(content, buffers[0], chunkSize) };
+        sendChunks(() -> {
+            // read ahead to find out whether this chunk is the last one
+            int index = state[0];
+            int length = state[1];
+            int next = length < chunkSize ? 0 : readFully(content, buffers[1 - index], chunkSize);
+            boolean last = next == 0;
+            writeChunk(buffers[index], length, last);
+            state[0] = 1 - index;
+            state[1] = next;
+            return last;
+        });
+    }
+
+    /**
+     * Sends the message content from the current position of the channel to
+     * its end in BDAT chunks of {@link #DEFAULT_CHUNK_SIZE} bytes, see
+     * {@link #sendData(FileChannel, int)}.
+     */
+    public void sendData(FileChannel content) throws IOException {
+        sendData(content, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Sends the message content from the current position of the channel to
+     * its end, like {@link #sendData(InputStream, int)}. If the socket has a
+     * channel, see {@link SMTPClient#createSocket()}, the chunks are
+     * transferred from the file with {@link FileChannel#transferTo}, which
+     * avoids copying them through the Java heap.
+     */
+    public void sendData(FileChannel content, int chunkSize) throws IOException {
+        Preconditions.checkArgument(chunkSize > 0, "chunkSize must be positive");
+        SocketChannel socketChannel = client.socket.getChannel();
+        if (socketChannel == null || !extensions.containsKey("CHUNKING")) {
+            sendData(Channels.newInputStream(content), chunkSize);
+            return;
+        }
+        long[] position = { content.position() };
+        long end = content.size();
+        sendChunks(() -> {
+            long length = Math.min(chunkSize, end - position[0]);
+            boolean last = position[0] + length == end;
+            writeFully(socketChannel, ByteBuffer.wrap(bdatCommand(length, last)));
+            long done = 0;
+            while (done < length) {
+                long n = content.transferTo(position[0] + done, length - done, socketChannel);
+                if (n <= 0) {
+                    throw new EOFException("file ended before the message was sent");
+                }
+                done += n;
+            }
+            position[0] += length;
+            content.position(position[0]);
+            return last;
+        });
+    }
+
+    /**
+     * Writes the next BDAT chunk, returns true if it was the last one.
+     */
+    private interface ChunkWriter {
+        boolean writeNext() throws IOException;
+    }
+
+    /**
+     * Writes chunks until the last one and checks the replies. With
+     * PIPELINING one reply may be outstanding while the next chunk is
+     * written. After a failure the replies to chunks already written are
+     * still read, so the connection stays in step.
+     */
+    private void sendChunks(ChunkWriter writer) throws IOException {
+        int window = extensions.containsKey("PIPELINING") ? 1 : 0;
+        int outstanding = 0;
+        Optional<Response> failure = Optional.empty();
+        boolean last = false;
+        while (!last && !failure.isPresent()) {
+            last = writer.writeNext();
+            outstanding++;
+            int allowed = last ? 0 : window;
+            while (outstanding > allowed || (failure.isPresent() && outstanding > 0)) {
+                Response response = receive();
+                outstanding--;
+                if (!response.isSuccess() && !failure.isPresent()) {
+                    failure = Optional.of(response);
+                }
+            }
+        }
+        if (failure.isPresent()) {
+            throw new SMTPException(failure.get());
+        }
+        transactionInProgress = false;
+    }
+
+    /**
+     * Writes the BDAT command line into the room reserved in front of the
+     * chunk, so the command and the chunk go out in a single write.
+     */
+    private void writeChunk(byte[] buffer, int length, boolean isLast) throws IOException {
+        byte[] line = bdatCommand(length, isLast);
+        int start = CHUNK_HEADER_ROOM - line.length;
+        System.arraycopy(line, 0, buffer, start, line.length);
+        client.rawOutput.write(buffer, start, line.length + length);
+        client.rawOutput.flush();
+    }
+
+    /**
+     * Writes the BDAT command line and the caller's chunk without copying the
+     * chunk: in one gathering write if the socket has a channel, otherwise in
+     * two writes, which TCP_NODELAY sends without waiting.
+     */
+    private void writeChunk(byte[] data, int offset, int length, boolean isLast) throws IOException {
+        byte[] line = bdatCommand(length, isLast);
+        SocketChannel socketChannel = client.socket.getChannel();
+        if (socketChannel != null) {
+            ByteBuffer[] buffers = { ByteBuffer.wrap(line), ByteBuffer.wrap(data, offset, length) };
+            while (buffers[1].hasRemaining()) {
+                socketChannel.write(buffers);
+            }
+        } else {
+            client.rawOutput.write(line);
+            client.rawOutput.write(data, offset, length);
+            client.rawOutput.flush();
+        }
+    }
+
+    /**
+     * Returns the BDAT command line with its CR LF, as bytes which are
+     * written together with the chunk.
+     */
+    private byte[] bdatCommand(long length, boolean isLast) {
+        if (!client.isConnected())
+            throw new IllegalStateException("Not connected");
+        String command = "BDAT " + length + (isLast ? " LAST" : "");
+        log.debug("Client: {}", command);
+        return (command + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads until the length is reached or the stream ends, into the buffer
+     * after the room for the BDAT command line.
+     */
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, CHUNK_HEADER_ROOM + total, length - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
     /**
      * Actually write some data
      */
     public void dataWrite(byte[] data, int numBytes) throws IOException {
+        client.dataOutput.setCanonicalLineEndings(canonicalLineEndings);
         client.dataOutput.write(data, 0, numBytes);
     }
     
     public void dataWrite(byte[] data) throws IOException {
-        client.dataOutput.write(data, 0, data.length);
+        dataWrite(data, data.length);
+    }
+
+    /**
+     * If true, the content written with {@link #dataWrite(byte[])} is trusted
+     * to have CR LF line endings only, and is only scanned for dots at the
+     * beginning of lines. Default is false, naked CR and LF are converted to
+     * CR LF.
+     */
+    public void setCanonicalLineEndings(boolean canonicalLineEndings) {
+        this.canonicalLineEndings = canonicalLineEndings;
     }
 
     /**
      * Last step after writing data
      */
     public void dataEnd() throws IOException, SMTPException {
-        client.dataOutput.flush();
-        client.dotTerminatedOutput.writeTerminatingSequence();
-        client.dotTerminatedOutput.flush();
+        client.dataOutput.writeTerminatingSequence();
 
         client.receiveAndCheck();
+        transactionInProgress = false;
+    }
+
+    /**
+     * Aborts the current mail transaction, so the connection can be used for
+     * the next message.
+     */
+    public void rset() throws IOException, SMTPException {
+        client.sendAndCheck("RSET");
+        transactionInProgress = false;
+    }
+
+    /**
+     * Checks that the server still responds, for example after the connection
+     * was idle.
+     */
+    public void noop() throws IOException, SMTPException {
+        client.sendAndCheck("NOOP");
     }
 
     /**
@@ -253,6 +618,26 @@ public class SmartClient {
         client.close();
     }
 
+    /**
+     * Closes the connection without sending QUIT, for example after an I/O
+     * error.
+     */
+    void close() {
+        client.close();
+    }
+
+    boolean isConnected() {
+        return client.isConnected();
+    }
+
+    /**
+     * Returns true if a mail transaction was started with MAIL FROM and not
+     * completed or reset yet.
+     */
+    boolean isTransactionInProgress() {
+        return transactionInProgress;
+    }
+
     /**
      * @return the number of recipients that have been accepted by the server
      */
@@ -0,0 +1,506 @@
+package org.subethamail.smtp.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Keeps connected, and if requested authenticated, {@link SmartClient}s to
+ * the servers a relay sends to, so the connection setup is paid once for many
+ * messages. Connections are keyed by host, port and credentials.
+ * <p>
+ * A connection returned with {@link #release(SmartClient)} is reset with RSET
+ * if a mail transaction was left open, a connection idle for a while is
+ * checked with NOOP before it is handed out again, and connections which
+ * failed are closed instead of being reused. The number of connections to
+ * each host, in use or idle, is capped. Acquiring and releasing connections
+ * also closes the connections of all hosts which were idle longer than the
+ * idle timeout, at most once per second, and the pool forgets a host, port
+ * and credentials once none of its connections is in use or idle, so sending
+ * to many different hosts does not grow the pool without limit.
+ *
+ * <pre>
+ * SmartClientPool pool = SmartClientPool.heloHost("relay.example.com").maxConnectionsPerHost(4).build();
+ * pool.execute("smarthost.example.com", 25, client -&gt; {
+ *     client.from("me@example.com");
+ *     client.to("you@example.com");
+ *     client.dataStart();
+ *     client.dataWrite(content);
+ *     client.dataEnd();
+ * });
+ * </pre>
+ */
+public final class SmartClientPool implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(SmartClientPool.class);
+
+    private final String heloHost;
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutMs;
+    private final long validateAfterMs;
+    private final long acquireTimeoutMs;
+
+    /**
+     * The hosts with connections in use, idle or being acquired. Entries are
+     * only added and removed with {@link Map#compute}, which also guards
+     * {@link Host#references}.
+     */
+    private final Map<Key, Host> hosts = new ConcurrentHashMap<>();
+
+    /** The host of each connection in use. */
+    private final Map<SmartClient, Host> leased = new ConcurrentHashMap<>();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    private final long evictionIntervalMs;
+
+    /** When the idle connections of all hosts are checked next. */
+    private final AtomicLong nextEviction = new AtomicLong();
+
+    private volatile boolean closed;
+
+    private SmartClientPool(Builder builder) {
+        this.heloHost = builder.heloHost;
+        this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
+        this.idleTimeoutMs = builder.idleTimeoutMs;
+        this.validateAfterMs = builder.validateAfterMs;
+        this.acquireTimeoutMs = builder.acquireTimeoutMs;
+        this.evictionIntervalMs = Math.min(idleTimeoutMs, TimeUnit.SECONDS.toMillis(1));
+    }
+
+    /**
+     * Starts building a pool whose clients send the host name in EHLO.
+     */
+    public static Builder heloHost(String heloHost) {
+        return new Builder(heloHost);
+    }
+
+    public static final class Builder {
+
+        private final String heloHost;
+        private int maxConnectionsPerHost = 8;
+        private long idleTimeoutMs = TimeUnit.MINUTES.toMillis(1);
+        private long validateAfterMs = TimeUnit.SECONDS.toMillis(2);
+        private long acquireTimeoutMs = TimeUnit.MINUTES.toMillis(1);
+
+        private Builder(String heloHost) {
+            Preconditions.checkNotNull(heloHost, "heloHost cannot be null");
+            this.heloHost = heloHost;
+        }
+
+        /**
+         * Sets the maximum number of connections to a host, port and
+         * credentials, in use or idle. Default is 8.
+         */
+        public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+            Preconditions.checkArgument(maxConnectionsPerHost > 0, "maxConnectionsPerHost must be positive");
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may be idle before it is closed instead
+         * of being reused. Default is 1 minute, most servers close idle
+         * connections after a few minutes.
+         */
+        public Builder idleTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+            this.idleTimeoutMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may be idle before it is checked with
+         * NOOP when it is acquired. Default is 2 seconds.
+         */
+        public Builder validateAfter(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+            this.validateAfterMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Sets how long {@link SmartClientPool#acquire(String, int)} waits
+         * when all connections to the host are in use. Default is 1 minute.
+         */
+        public Builder acquireTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+            this.acquireTimeoutMs = unit.toMillis(duration);
+            return this;
+        }
+
+        public SmartClientPool build() {
+            return new SmartClientPool(this);
+        }
+
+    }
+
+    /**
+     * The work done with a connection of the pool.
+     */
+    @FunctionalInterface
+    public interface Transaction {
+        void run(SmartClient client) throws IOException;
+    }
+
+    /**
+     * Returns a connected client, reusing an idle connection if there is one.
+     * It must be given back with {@link #release(SmartClient)}, or
+     * {@link #invalidate(SmartClient)} if it failed.
+     *
+     * @throws IOException
+     *             if no connection could be made, or all connections to the
+     *             host stayed in use until the acquire timeout
+     */
+    public SmartClient acquire(String host, int port) throws IOException {
+        return acquire(new Key(host, port, Optional.empty(), Optional.empty()));
+    }
+
+    /**
+     * Returns a connected client which authenticated with the PLAIN mechanism,
+     * see {@link #acquire(String, int)}.
+     */
+    public SmartClient acquire(String host, int port, String username, String password) throws IOException {
+        Preconditions.checkNotNull(username, "username cannot be null");
+        Preconditions.checkNotNull(password, "password cannot be null");
+        return acquire(new Key(host, port, Optional.of(username), Optional.of(password)));
+    }
+
+    /**
+     * Runs the transaction with a connection of the pool, which is released
+     * afterwards. The connection is closed if the transaction throws anything
+     * but an {@link SMTPException}, or an SMTPException with a 421 reply.
+     */
+    public void execute(String host, int port, Transaction transaction) throws IOException {
+        execute(acquire(host, port), transaction);
+    }
+
+    /**
+     * Runs the transaction with an authenticated connection, see
+     * {@link #execute(String, int, Transaction)}.
+     */
+    public void execute(String host, int port, String username, String password, Transaction transaction)
+            throws IOException {
+        execute(acquire(host, port, username, password), transaction);
+    }
+
+    private void execute(SmartClient client, Transaction transaction) throws IOException {
+        boolean reusable = false;
+        try {
+            transaction.run(client);
+            reusable = true;
+        } catch (SMTPException e) {
+            // the server rejected something but the connection is still fine
+            reusable = e.getResponse().getCode() != 421;
+            throw e;
+        } finally {
+            if (reusable) {
+                release(client);
+            } else {
+                invalidate(client);
+            }
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool. An open mail transaction is reset
+     * first, the connection is closed if that fails.
+     */
+    public void release(SmartClient client) {
+        Host host = leased.remove(client);
+        Preconditions.checkArgument(host != null, "client is not in use from this pool");
+        try {
+            if (closed || !client.isConnected()) {
+                client.close();
+                return;
+            }
+            if (client.isTransactionInProgress()) {
+                try {
+                    client.rset();
+                } catch (IOException e) {
+                    log.debug("RSET failed, closing the connection", e);
+                    closeQuietly(client, e);
+                    return;
+                }
+            }
+            host.idle.addFirst(new Idle(client, System.currentTimeMillis()));
+        } finally {
+            host.permits.release();
+            unreference(host);
+            evictIdle();
+        }
+    }
+
+    /**
+     * Closes a connection from the pool which failed, for example with an I/O
+     * error or a 421 reply.
+     */
+    public void invalidate(SmartClient client) {
+        Host host = leased.remove(client);
+        Preconditions.checkArgument(host != null, "client is not in use from this pool");
+        try {
+            client.close();
+        } finally {
+            host.permits.release();
+            unreference(host);
+        }
+    }
+
+    /**
+     * Sends QUIT on the idle connections and closes them. Connections in use
+     * are closed when they are released.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Host host : hosts.values()) {
+            Idle idle;
+            while ((idle = host.idle.pollFirst()) != null) {
+                idle.client.quit();
+            }
+        }
+    }
+
+    /**
+     * @return the number of connections opened so far
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return the number of idle connections to the host without credentials
+     */
+    int getIdleCount(String host, int port) {
+        return getIdleCount(new Key(host, port, Optional.empty(), Optional.empty()));
+    }
+
+    /**
+     * @return the number of idle connections to the host which authenticated
+     *         with the credentials
+     */
+    int getIdleCount(String host, int port, String username, String password) {
+        return getIdleCount(new Key(host, port, Optional.of(username), Optional.of(password)));
+    }
+
+    /**
+     * @return the number of hosts, ports and credentials the pool keeps
+     *         connections for
+     */
+    int getHostCount() {
+        return hosts.size();
+    }
+
+    private int getIdleCount(Key key) {
+        Host h = hosts.get(key);
+        return h == null ? 0 : h.idle.size();
+    }
+
+    private SmartClient acquire(Key key) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("pool is closed");
+        }
+        evictIdle();
+        Host host = hosts.compute(key, (k, h) -> {
+            Host result = h == null ? new Host(k) : h;
+            result.references++;
+            return result;
+        });
+        try {
+            try {
+                if (!host.permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out waiting for a connection to " + key);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a connection to " + key);
+            }
+            try {
+                SmartClient client = takeIdle(host);
+                if (client == null) {
+                    client = connect(key);
+                }
+                leased.put(client, host);
+                return client;
+            } catch (IOException | RuntimeException e) {
+                host.permits.release();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            unreference(host);
+            throw e;
+        }
+    }
+
+    /**
+     * Drops a reference taken by {@link #acquire(Key)}, and forgets the host
+     * if nothing else refers to it and it has no idle connections. Idle
+     * connections are only added by a thread which still holds a reference,
+     * so a forgotten host never gets new ones.
+     */
+    private void unreference(Host host) {
+        hosts.computeIfPresent(host.key, (k, h) -> {
+            if (h != host) {
+                return h;
+            }
+            h.references--;
+            return h.references == 0 && h.idle.isEmpty() ? null : h;
+        });
+    }
+
+    /**
+     * Closes the connections of all hosts which were idle longer than the
+     * idle timeout, and forgets the hosts left without connections. Runs at
+     * most once per eviction interval, on one thread at a time.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        long next = nextEviction.get();
+        if (now < next || !nextEviction.compareAndSet(next, now + evictionIntervalMs)) {
+            return;
+        }
+        for (Host host : hosts.values()) {
+            Idle oldest;
+            // the least recently used connections are at the end
+            while ((oldest = host.idle.peekLast()) != null && now - oldest.since > idleTimeoutMs) {
+                if (host.idle.removeLastOccurrence(oldest)) {
+                    oldest.client.quit();
+                }
+            }
+            hosts.computeIfPresent(host.key, (k, h) -> h == host && h.references == 0 && h.idle.isEmpty() ? null : h);
+        }
+    }
+
+    /**
+     * Returns the most recently used idle connection which is still usable,
+     * or null.
+     */
+    private SmartClient takeIdle(Host host) {
+        Idle idle;
+        while ((idle = host.idle.pollFirst()) != null) {
+            long idleMs = System.currentTimeMillis() - idle.since;
+            if (idleMs > idleTimeoutMs) {
+                idle.client.quit();
+            } else if (idleMs > validateAfterMs) {
+                try {
+                    idle.client.noop();
+                    return idle.client;
+                } catch (IOException e) {
+                    log.debug("Idle connection failed NOOP, closing it", e);
+                    closeQuietly(idle.client, e);
+                }
+            } else {
+                return idle.client;
+            }
+        }
+        return null;
+    }
+
+    private SmartClient connect(Key key) throws IOException {
+        SmartClient client = SmartClient.createAndConnect(key.host, key.port, heloHost);
+        connectionsOpened.incrementAndGet();
+        if (key.username.isPresent()) {
+            try {
+                new PlainAuthenticator(client, key.username.get(), key.password.get()).authenticate();
+            } catch (IOException | RuntimeException e) {
+                client.quit();
+                throw e;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Closes the connection, with QUIT unless the server is going away or the
+     * connection is broken.
+     */
+    private static void closeQuietly(SmartClient client, IOException cause) {
+        if (cause instanceof SMTPException && ((SMTPException) cause).getResponse().getCode() != 421) {
+            client.quit();
+        } else {
+            client.close();
+        }
+    }
+
+    private final class Host {
+
+        final Key key;
+        final Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+        final Deque<Idle> idle = new ConcurrentLinkedDeque<>();
+
+        /**
+         * The acquires in progress and connections in use. Only changed inside
+         * {@link Map#compute} on {@link SmartClientPool#hosts}.
+         */
+        int references;
+
+        Host(Key key) {
+            this.key = key;
+        }
+
+    }
+
+    private static final class Idle {
+
+        final SmartClient client;
+        final long since;
+
+        Idle(SmartClient client, long since) {
+            this.client = client;
+            this.since = since;
+        }
+
+    }
+
+    private static final class Key {
+
+        final String host;
+        final int port;
+        final Optional<String> username;
+        final Optional<String> password;
+
+        Key(String host, int port, Optional<String> username, Optional<String> password) {
+            Preconditions.checkNotNull(host, "host cannot be null");
+            this.host = host.toLowerCase(Locale.ENGLISH);
+            this.port = port;
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return host.equals(other.host) && port == other.port && username.equals(other.username)
+                    && password.equals(other.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, port, username, password);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + username.map(u -> " as " + u).orElse("");
+        }
+
+    }
+
+}
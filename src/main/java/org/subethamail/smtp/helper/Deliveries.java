@@ -0,0 +1,234 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.internal.io.DeferredFileOutputStream;
+
+/**
+ * Hands one message to several deliveries, which is shared by the listener
+ * adapters.
+ */
+final class Deliveries {
+
+    private static final Logger log = LoggerFactory.getLogger(Deliveries.class);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private Deliveries() {
+        // prevent instantiation
+    }
+
+    /**
+     * A delivery of the message to one listener.
+     */
+    interface Delivery {
+        void deliver(InputStream data) throws IOException;
+    }
+
+    /**
+     * Buffers the message and hands each delivery its own stream of it, one
+     * after the other if no executor is given, otherwise concurrently on the
+     * executor. Either way every delivery runs, even if another one failed.
+     * <p>
+     * If some deliveries fail, the message is rejected although the others
+     * succeeded. A client which retries after the temporary reply delivers
+     * the message again to the listeners which already have it: a duplicate
+     * is preferred to losing the message for the listeners which failed.
+     *
+     * @throws RejectException
+     *             if deliveries fail, with a single reply for all of the
+     *             failures: 552 if one threw {@link TooMuchDataException}, 451
+     *             otherwise
+     */
+    static void deliver(InputStream data, int dataDeferredSize, Optional<Executor> executor,
+            List<Delivery> deliveries) throws RejectException, IOException {
+        try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(dataDeferredSize)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = data.read(buffer)) != -1) {
+                dfos.write(buffer, 0, n);
+            }
+
+            List<Throwable> failures;
+            if (executor.isPresent()) {
+                failures = deliverConcurrently(dfos, executor.get(), deliveries);
+            } else {
+                failures = new ArrayList<>();
+                for (Delivery delivery : deliveries) {
+                    try {
+                        delivery.deliver(dfos.getInputStream());
+                    } catch (IOException | RuntimeException e) {
+                        failures.add(e);
+                    }
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw reject(failures, deliveries.size());
+            }
+        }
+    }
+
+    /**
+     * @return the failures of the deliveries
+     */
+    private static List<Throwable> deliverConcurrently(DeferredFileOutputStream dfos, Executor executor,
+            List<Delivery> deliveries) throws IOException {
+        List<Task> tasks = new ArrayList<>(deliveries.size());
+        for (Delivery delivery : deliveries) {
+            Task task = new Task(delivery, dfos.getInputStream());
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the executor is saturated, deliver on this thread instead
+                task.run();
+            }
+        }
+
+        List<Throwable> failures = new ArrayList<>();
+        for (Task task : tasks) {
+            try {
+                task.done.get();
+            } catch (InterruptedException e) {
+                // the buffer is closed when this method returns, so no task
+                // may still be reading it
+                for (Task t : tasks) {
+                    t.cancel();
+                }
+                for (Task t : tasks) {
+                    t.awaitStopped();
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for deliveries");
+            } catch (ExecutionException e) {
+                failures.add(e.getCause());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Returns the single reply for the failed deliveries.
+     */
+    private static RejectException reject(List<Throwable> failures, int deliveries) {
+        boolean tooMuchData = false;
+        for (Throwable failure : failures) {
+            log.warn("Delivery failed", failure);
+            tooMuchData |= failure instanceof TooMuchDataException;
+        }
+        String counts = failures.size() + " of " + deliveries + " deliveries";
+        if (tooMuchData) {
+            return new RejectException(552, "5.3.4 Message too big for " + counts);
+        } else {
+            return new RejectException(451, "4.3.0 Delivery failed for " + counts + ", try again later");
+        }
+    }
+
+    /**
+     * A delivery running on the executor, which can be cancelled: if it has
+     * not started it never reads the message, if it is running it is
+     * interrupted. It waits with a lock rather than a monitor, so a virtual
+     * thread does not pin its carrier while it waits.
+     */
+    private static final class Task implements Runnable {
+
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private final Delivery delivery;
+        private final InputStream in;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition stopped = lock.newCondition();
+
+        @GuardedBy("lock")
+        private boolean cancelled;
+
+        @GuardedBy("lock")
+        private Thread runner;
+
+        Task(Delivery delivery, InputStream in) {
+            this.delivery = delivery;
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                if (cancelled) {
+                    done.cancel(false);
+                    return;
+                }
+                runner = Thread.currentThread();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                delivery.deliver(in);
+                done.complete(null);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            } finally {
+                boolean wasCancelled;
+                lock.lock();
+                try {
+                    runner = null;
+                    wasCancelled = cancelled;
+                    stopped.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                if (wasCancelled) {
+                    // do not leave the interrupt to the next task of the thread
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Waits, ignoring interrupts, until the delivery is not running.
+         */
+        void awaitStopped() {
+            lock.lock();
+            try {
+                while (runner != null) {
+                    stopped.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+}
@@ -10,13 +10,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
-import org.subethamail.smtp.internal.io.DeferredFileOutputStream;
 
 /**
  * MessageHandlerFactory implementation which adapts to a collection of
@@ -33,6 +34,7 @@ public final class SimpleMessageListenerAdapter implements MessageHandlerFactory
 
     private final Collection<SimpleMessageListener> listeners;
     private final int dataDeferredSize;
+    private final Optional<Executor> deliveryExecutor;
 
     /**
      * Initializes this factory with a single listener.
@@ -55,6 +57,12 @@ public final class SimpleMessageListenerAdapter implements MessageHandlerFactory
     /**
      * Initializes this factory with the listeners.
      *
+     * <p>
+     * If a message has several deliveries and any fails, the client gets a
+     * single reply for all failures, 552 if a listener threw
+     * {@link TooMuchDataException} and 451 otherwise; when the client retries,
+     * the listeners which succeeded get the message again.
+     *
      * @param dataDeferredSize
      *            The server will buffer incoming messages to disk when they hit
      *            this limit in the DATA received.
@@ -62,6 +70,27 @@ public final class SimpleMessageListenerAdapter implements MessageHandlerFactory
     public SimpleMessageListenerAdapter(Collection<SimpleMessageListener> listeners, int dataDeferredSize) {
         this.listeners = listeners;
         this.dataDeferredSize = dataDeferredSize;
+        this.deliveryExecutor = Optional.empty();
+    }
+
+    /**
+     * Initializes this factory with the listeners, which receive a message
+     * with several deliveries concurrently.
+     *
+     * @param dataDeferredSize
+     *            The server will buffer incoming messages to disk when they hit
+     *            this limit in the DATA received.
+     * @param deliveryExecutor
+     *            runs the deliveries of a message, each reading its own stream
+     *            of the buffered message. It should be bounded; deliveries it
+     *            rejects run on the session thread. Failures get the
+     *            same reply as without an executor.
+     */
+    public SimpleMessageListenerAdapter(Collection<SimpleMessageListener> listeners, int dataDeferredSize,
+            Executor deliveryExecutor) {
+        this.listeners = listeners;
+        this.dataDeferredSize = dataDeferredSize;
+        this.deliveryExecutor = Optional.of(deliveryExecutor);
     }
 
     /*
@@ -131,23 +160,17 @@ public final class SimpleMessageListenerAdapter implements MessageHandlerFactory
         }
 
         @Override
-        public String data(InputStream data) throws TooMuchDataException, IOException {
+        public String data(InputStream data) throws RejectException, TooMuchDataException, IOException {
             if (this.deliveries.size() == 1) {
                 Delivery delivery = this.deliveries.get(0);
                 delivery.getListener().deliver(this.from, delivery.getRecipient(), data);
             } else {
-
-                try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(
-                        SimpleMessageListenerAdapter.this.dataDeferredSize)) {
-                    int value;
-                    while ((value = data.read()) >= 0) {
-                        dfos.write(value);
-                    }
-
-                    for (Delivery delivery : this.deliveries) {
-                        delivery.getListener().deliver(this.from, delivery.getRecipient(), dfos.getInputStream());
-                    }
+                List<Deliveries.Delivery> tasks = new ArrayList<>(this.deliveries.size());
+                for (Delivery delivery : this.deliveries) {
+                    tasks.add(in -> delivery.getListener().deliver(this.from, delivery.getRecipient(), in));
                 }
+                Deliveries.deliver(data, SimpleMessageListenerAdapter.this.dataDeferredSize,
+                        SimpleMessageListenerAdapter.this.deliveryExecutor, tasks);
             }
             return null;
         }
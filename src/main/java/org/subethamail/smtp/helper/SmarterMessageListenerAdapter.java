@@ -10,6 +10,8 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executor;
 
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
@@ -17,7 +19,6 @@ import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.smtp.helper.SmarterMessageListener.Receiver;
-import org.subethamail.smtp.internal.io.DeferredFileOutputStream;
 
 /**
  * MessageHandlerFactory implementation which adapts to a collection of
@@ -38,6 +39,7 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
 
     private final Collection<SmarterMessageListener> listeners;
     private final int dataDeferredSize;
+    private final Optional<Executor> deliveryExecutor;
 
     /**
      * Initializes this factory with a single listener.
@@ -60,6 +62,12 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
     /**
      * Initializes this factory with the listeners.
      * 
+     * <p>
+     * If a message has several deliveries and any fails, the client gets a
+     * single reply for all failures, 552 if a listener threw
+     * {@link TooMuchDataException} and 451 otherwise; when the client retries,
+     * the listeners which succeeded get the message again.
+     *
      * @param dataDeferredSize
      *            The server will buffer incoming messages to disk when they hit
      *            this limit in the DATA received.
@@ -67,6 +75,27 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
     public SmarterMessageListenerAdapter(Collection<SmarterMessageListener> listeners, int dataDeferredSize) {
         this.listeners = listeners;
         this.dataDeferredSize = dataDeferredSize;
+        this.deliveryExecutor = Optional.empty();
+    }
+
+    /**
+     * Initializes this factory with the listeners, which receive a message
+     * with several deliveries concurrently.
+     *
+     * @param dataDeferredSize
+     *            The server will buffer incoming messages to disk when they hit
+     *            this limit in the DATA received.
+     * @param deliveryExecutor
+     *            runs the deliveries of a message, each reading its own stream
+     *            of the buffered message. It should be bounded; deliveries it
+     *            rejects run on the session thread. Failures get the
+     *            same reply as without an executor.
+     */
+    public SmarterMessageListenerAdapter(Collection<SmarterMessageListener> listeners, int dataDeferredSize,
+            Executor deliveryExecutor) {
+        this.listeners = listeners;
+        this.dataDeferredSize = dataDeferredSize;
+        this.deliveryExecutor = Optional.of(deliveryExecutor);
     }
 
     /*
@@ -110,22 +139,16 @@ public class SmarterMessageListenerAdapter implements MessageHandlerFactory {
         }
 
         @Override
-        public String data(InputStream data) throws TooMuchDataException, IOException {
+        public String data(InputStream data) throws RejectException, TooMuchDataException, IOException {
             if (this.deliveries.size() == 1) {
                 this.deliveries.get(0).deliver(data);
             } else {
-
-                try (DeferredFileOutputStream dfos = new DeferredFileOutputStream(
-                        SmarterMessageListenerAdapter.this.dataDeferredSize)) {
-                    int value;
-                    while ((value = data.read()) >= 0) {
-                        dfos.write(value);
-                    }
-
-                    for (Receiver rec : this.deliveries) {
-                        rec.deliver(dfos.getInputStream());
-                    }
+                List<Deliveries.Delivery> tasks = new ArrayList<>(this.deliveries.size());
+                for (Receiver rec : this.deliveries) {
+                    tasks.add(rec::deliver);
                 }
+                Deliveries.deliver(data, SmarterMessageListenerAdapter.this.dataDeferredSize,
+                        SmarterMessageListenerAdapter.this.deliveryExecutor, tasks);
             }
             return null;
         }
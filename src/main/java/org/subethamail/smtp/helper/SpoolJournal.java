@@ -0,0 +1,461 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The shared segment files of {@link SpoolingMessageHandlerFactory.Sync#GROUP_COMMIT}.
+ * Sessions append their messages to the current segment and wait while a
+ * single commit thread collects the messages arriving within a short delay,
+ * or until a batch is full, and forces the segment once for all of them.
+ * <p>
+ * Each message is a record of a header and the content. The header is the
+ * state ({@link #LIVE} or {@link #RELEASED}), the length of the content as a
+ * long and the CRC32 of the content. A released record is marked but not
+ * forced, so a message may come back from {@link #recover()} after a crash
+ * although it was released.
+ */
+final class SpoolJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(SpoolJournal.class);
+
+    static final int LIVE = 0x534d5450;
+    static final int RELEASED = 0x44454144;
+    static final int HEADER_SIZE = 16;
+
+    static final String SEGMENT_PREFIX = "smtp-";
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int RECOVER_BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long maxDelayNanos;
+    private final int maxBatchSize;
+    private final ExecutorService committer;
+
+    // not a monitor, so virtual threads do not pin their carrier while they
+    // wait for the batch
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchFull = lock.newCondition();
+
+    @GuardedBy("lock")
+    private Segment current;
+
+    /** The segments this journal created or recovered, until deleted. */
+    @GuardedBy("lock")
+    private final Set<Path> segments = new HashSet<>();
+
+    /** True if a segment was created since the directory was last forced. */
+    @GuardedBy("lock")
+    private boolean directoryChanged;
+
+    @GuardedBy("lock")
+    private List<Commit> pending = new ArrayList<>();
+
+    @GuardedBy("lock")
+    private boolean committing;
+
+    private final AtomicLong batches = new AtomicLong();
+
+    SpoolJournal(Path directory, long segmentSize, long maxDelay, TimeUnit unit, int maxBatchSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.maxBatchSize = maxBatchSize;
+        // the idle thread times out, so the journal needs no shutdown
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, SpoolJournal.class.getSimpleName());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.committer = executor;
+    }
+
+    /**
+     * Appends a message to the current segment and returns once the batch
+     * with it was forced to the storage device.
+     *
+     * @param spill
+     *            the beginning of the content, or null if it all fits in the
+     *            tail
+     * @param spillSize
+     *            the number of bytes in spill
+     * @param tail
+     *            the rest of the content, ready to be read
+     * @param crc
+     *            the CRC32 of the whole content
+     */
+    SpooledMessage append(FileChannel spill, long spillSize, ByteBuffer tail, int crc, Optional<byte[]> digest)
+            throws IOException {
+        long size = spillSize + tail.remaining();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(LIVE).putLong(size).putInt(crc);
+        header.flip();
+        Segment segment;
+        long position;
+        lock.lock();
+        try {
+            if (current == null || current.end >= segmentSize) {
+                roll();
+            }
+            segment = current;
+            position = segment.end;
+            // the headers are written in order, so every forced record follows
+            // a complete header and recovery can skip over a record whose
+            // content did not make it to the device
+            writeFully(segment.channel, header, position);
+            segment.end += HEADER_SIZE + size;
+            segment.references++;
+        } finally {
+            lock.unlock();
+        }
+        boolean committed = false;
+        try {
+            long offset = position + HEADER_SIZE;
+            long n = 0;
+            if (spill != null) {
+                spill.position(0);
+                while (n < spillSize) {
+                    long transferred = segment.channel.transferFrom(spill, offset + n, spillSize - n);
+                    if (transferred <= 0) {
+                        throw new IOException("spill file is shorter than " + spillSize + " bytes");
+                    }
+                    n += transferred;
+                }
+            }
+            writeFully(segment.channel, tail, offset + n);
+            commit(segment);
+            committed = true;
+            return new SpooledMessage(segment.path, offset, size, digest, () -> release(segment, position));
+        } finally {
+            if (!committed) {
+                release(segment, position);
+            }
+        }
+    }
+
+    /**
+     * Returns the live messages of the segments in the directory which this
+     * journal did not create, usually left over by an earlier run. A segment
+     * is deleted when all its messages are released.
+     */
+    List<SpooledMessage> recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        paths.sort(null);
+        List<SpooledMessage> messages = new ArrayList<>();
+        for (Path path : paths) {
+            lock.lock();
+            try {
+                if (segments.contains(path)) {
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            Segment segment = new Segment(path, FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE));
+            List<Long> positions = liveRecords(segment.channel);
+            lock.lock();
+            try {
+                segments.add(path);
+                segment.references = positions.size();
+                if (positions.isEmpty()) {
+                    delete(segment);
+                }
+            } finally {
+                lock.unlock();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            for (long position : positions) {
+                header.clear();
+                readFully(segment.channel, header, position);
+                messages.add(new SpooledMessage(path, position + HEADER_SIZE, header.getLong(4), Optional.empty(),
+                        () -> release(segment, position)));
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * @return the number of batches committed so far
+     */
+    long getBatchCount() {
+        return batches.get();
+    }
+
+    @GuardedBy("lock")
+    private void roll() throws IOException {
+        Path path = Files.createTempFile(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        Segment segment;
+        try {
+            segment = new Segment(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        Segment old = current;
+        current = segment;
+        segments.add(path);
+        directoryChanged = true;
+        if (old != null && old.references == 0) {
+            delete(old);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void delete(Segment segment) {
+        segments.remove(segment.path);
+        segment.delete();
+    }
+
+    private void release(Segment segment, long position) {
+        ByteBuffer state = ByteBuffer.allocate(4).putInt(RELEASED);
+        state.flip();
+        try {
+            writeFully(segment.channel, state, position);
+        } catch (IOException e) {
+            log.warn("Cannot mark the message at " + position + " of " + segment.path + " released", e);
+        }
+        lock.lock();
+        try {
+            segment.references--;
+            if (segment.references == 0 && segment != current) {
+                delete(segment);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void commit(Segment segment) throws IOException {
+        Commit commit = new Commit(segment);
+        boolean startCommitter;
+        lock.lock();
+        try {
+            pending.add(commit);
+            if (pending.size() >= maxBatchSize) {
+                batchFull.signal();
+            }
+            startCommitter = !committing;
+            committing = true;
+        } finally {
+            lock.unlock();
+        }
+        if (startCommitter) {
+            committer.execute(this::commitLoop);
+        }
+        try {
+            commit.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the group commit");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<Commit> batch;
+            boolean forceDirectory;
+            lock.lock();
+            try {
+                if (pending.isEmpty()) {
+                    committing = false;
+                    return;
+                }
+                long remaining = maxDelayNanos;
+                while (pending.size() < maxBatchSize && remaining > 0) {
+                    try {
+                        remaining = batchFull.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        // commit what we have
+                        break;
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                forceDirectory = directoryChanged;
+                directoryChanged = false;
+            } finally {
+                lock.unlock();
+            }
+            commit(batch, forceDirectory);
+        }
+    }
+
+    private void commit(List<Commit> batch, boolean forceDirectory) {
+        batches.incrementAndGet();
+        Map<Segment, Optional<Throwable>> forced = new IdentityHashMap<>();
+        Optional<Throwable> directoryFailure = Optional.empty();
+        if (forceDirectory) {
+            try {
+                SpoolingMessageHandlerFactory.forceDirectory(directory);
+            } catch (IOException | RuntimeException e) {
+                directoryFailure = Optional.of(e);
+                lock.lock();
+                try {
+                    directoryChanged = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        for (Commit commit : batch) {
+            Optional<Throwable> failure = forced.computeIfAbsent(commit.segment, segment -> {
+                try {
+                    segment.channel.force(true);
+                    return Optional.empty();
+                } catch (IOException | RuntimeException e) {
+                    return Optional.of(e);
+                }
+            });
+            if (!failure.isPresent()) {
+                failure = directoryFailure;
+            }
+            if (failure.isPresent()) {
+                commit.done.completeExceptionally(failure.get());
+            } else {
+                commit.done.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Returns the positions of the live records with a valid CRC, up to the
+     * first position which holds no record header.
+     */
+    private static List<Long> liveRecords(FileChannel channel) throws IOException {
+        List<Long> positions = new ArrayList<>();
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer content = ByteBuffer.allocate(RECOVER_BUFFER_SIZE);
+        long position = 0;
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            readFully(channel, header, position);
+            int state = header.getInt(0);
+            long size = header.getLong(4);
+            if (state != LIVE && state != RELEASED || size < 0 || size > fileSize - position - HEADER_SIZE) {
+                break;
+            }
+            if (state == LIVE && crc(channel, position + HEADER_SIZE, size, content) == header.getInt(12)) {
+                positions.add(position);
+            }
+            position += HEADER_SIZE + size;
+        }
+        return positions;
+    }
+
+    private static int crc(FileChannel channel, long position, long size, ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        long n = 0;
+        while (n < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - n));
+            readFully(channel, buffer, position + n);
+            crc.update(buffer);
+            n += buffer.limit();
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Fills the buffer from the position and flips it.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n == -1) {
+                throw new IOException("unexpected end of segment at " + position);
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    private static final class Segment {
+
+        final Path path;
+        final FileChannel channel;
+
+        /** Where the next record goes, guarded by the journal lock. */
+        long end;
+
+        /** The messages not released yet, guarded by the journal lock. */
+        int references;
+
+        Segment(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Cannot delete segment " + path, e);
+            }
+        }
+
+    }
+
+    private static final class Commit {
+
+        final Segment segment;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Commit(Segment segment) {
+            this.segment = segment;
+        }
+
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.internal.util.HexUtils;
+
+/**
+ * A message content written to a spool file by a
+ * {@link SpoolingMessageHandlerFactory}. The content is the whole file, or
+ * with {@link SpoolingMessageHandlerFactory.Sync#GROUP_COMMIT} the
+ * {@link #getSize()} bytes at {@link #getOffset()} of a segment file shared
+ * with other messages.
+ */
+public final class SpooledMessage {
+
+    private static final Logger log = LoggerFactory.getLogger(SpooledMessage.class);
+
+    private final Path path;
+    private final long offset;
+    private final long size;
+    private final Optional<byte[]> digest;
+    private final Runnable releaser;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    public SpooledMessage(Path path, long size, Optional<byte[]> digest) {
+        this(path, 0, size, digest, () -> {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Cannot delete spool file " + path, e);
+            }
+        });
+    }
+
+    SpooledMessage(Path path, long offset, long size, Optional<byte[]> digest, Runnable releaser) {
+        this.path = path;
+        this.offset = offset;
+        this.size = size;
+        this.digest = digest;
+        this.releaser = releaser;
+    }
+
+    /**
+     * @return the spool file, or the segment file which holds the content
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return where the content starts in the file, 0 unless the file is a
+     *         shared segment
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the size of the message content in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the digest of the message content, or empty if the factory
+     *         does not compute one
+     */
+    public Optional<byte[]> getDigest() {
+        return digest.map(byte[]::clone);
+    }
+
+    /**
+     * @return the digest as lower case hex digits, or empty if the factory
+     *         does not compute one
+     */
+    public Optional<String> getDigestHex() {
+        return digest.map(d -> HexUtils.toHex(d).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gives up the content once it is no longer needed: the spool file is
+     * deleted, or the message is marked released in its segment, which is
+     * deleted with its last message. Calling it again has no effect.
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            releaser.run();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SpooledMessage[path=" + path + ", offset=" + offset + ", size=" + size + ", digest="
+                + getDigestHex().orElse("none") + "]";
+    }
+
+}
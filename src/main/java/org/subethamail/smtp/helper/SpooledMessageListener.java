@@ -0,0 +1,35 @@
+package org.subethamail.smtp.helper;
+
+import java.util.List;
+
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.RejectException;
+
+/**
+ * Receives the messages which a {@link SpoolingMessageHandlerFactory} has
+ * written to disk.
+ */
+@FunctionalInterface
+public interface SpooledMessageListener {
+
+    /**
+     * Process a message that has just arrived. The listener takes over the
+     * spool file and must move or delete it, or call
+     * {@link SpooledMessage#release()} when it is done with the content, which
+     * it must do if the file is a shared segment. If it throws, the message is
+     * released and rejected, with a 451 temporary failure unless a
+     * {@link RejectException} gives the reply.
+     * 
+     * @param from
+     *            source of message
+     * @param recipients
+     *            destinations of message
+     * @param message
+     *            the spool file of the message content
+     * @throws RejectException
+     *             when caller to be given an SMTP error response
+     */
+    void messageArrived(MessageContext context, String from, List<String> recipients, SpooledMessage message)
+            throws RejectException;
+
+}
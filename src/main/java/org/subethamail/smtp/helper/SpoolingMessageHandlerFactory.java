@@ -0,0 +1,518 @@
+package org.subethamail.smtp.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.MessageContext;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.MessageHandlerFactory;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A {@link MessageHandlerFactory} which writes the content of each message to
+ * a file in a spool directory and hands the file to a
+ * {@link SpooledMessageListener}, so the message content is never held on the
+ * heap. The content is copied through pooled direct buffers in large writes,
+ * and read straight from the connection if the content stream is a channel
+ * (BDAT).
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * SMTPServer.port(25)
+ *         .messageHandlerFactory(SpoolingMessageHandlerFactory.directory(spool)
+ *                 .sync(Sync.PER_MESSAGE)
+ *                 .listener((context, from, recipients, message) -&gt; queue.add(message))
+ *                 .build())
+ *         .build();
+ * </pre>
+ */
+public final class SpoolingMessageHandlerFactory implements MessageHandlerFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(SpoolingMessageHandlerFactory.class);
+
+    private static final int STREAM_CHUNK_SIZE = 8192;
+
+    /**
+     * When the spool file is forced to the storage device.
+     */
+    public enum Sync {
+        /**
+         * The operating system writes the file when it sees fit; a message may
+         * be lost on a crash after it was acknowledged.
+         */
+        NONE,
+        /**
+         * Each file, and then the spool directory, is forced to the device
+         * before the listener is called and the message is acknowledged. The
+         * file is forced on the thread of its session, so every message pays
+         * the flush latency of the device.
+         */
+        PER_MESSAGE,
+        /**
+         * Messages are appended to a segment file shared by all sessions,
+         * which a single thread forces once for each batch of messages
+         * arriving within a short delay, see
+         * {@link Builder#groupCommit(long, TimeUnit, int)}. A message is
+         * acknowledged, and the listener called, once its batch is forced, so
+         * the flush latency of the device is paid once per batch. The listener
+         * must {@link SpooledMessage#release() release} each message, and
+         * {@link SpoolingMessageHandlerFactory#recover()} returns the
+         * messages which were not released before a crash.
+         */
+        GROUP_COMMIT
+    }
+
+    private final Path directory;
+    private final SpooledMessageListener listener;
+    private final int maxMessageSize;
+    private final Sync sync;
+    private final Optional<String> digestAlgorithm;
+    private final int bufferSize;
+    private final Optional<SpoolJournal> journal;
+
+    /**
+     * Direct buffers of returned handlers, at most one per concurrent message.
+     */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    private SpoolingMessageHandlerFactory(Builder b) {
+        this.directory = b.directory;
+        this.listener = b.listener;
+        this.maxMessageSize = b.maxMessageSize;
+        this.sync = b.sync;
+        this.digestAlgorithm = b.digestAlgorithm;
+        this.bufferSize = b.bufferSize;
+        this.journal = b.sync == Sync.GROUP_COMMIT
+                ? Optional.of(new SpoolJournal(b.directory, b.segmentSize, b.maxCommitDelayNanos,
+                        TimeUnit.NANOSECONDS, b.maxBatchSize))
+                : Optional.empty();
+    }
+
+    /**
+     * Starts building a factory which spools into the specified directory.
+     *
+     * @param directory
+     *            the spool directory, which must exist
+     * @return the builder
+     */
+    public static Builder directory(Path directory) {
+        return new Builder(directory);
+    }
+
+    @Override
+    public MessageHandler create(MessageContext context) {
+        return new SpoolingMessageHandler(context);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Sync getSync() {
+        return sync;
+    }
+
+    /**
+     * Returns the messages in segment files of the spool directory which were
+     * not released, usually by the listener of an earlier run before a crash.
+     * Each must be released like a message handed to the listener. Messages
+     * whose content was not completely written are skipped, and the messages
+     * have no digest.
+     *
+     * @return the messages, empty unless the policy is
+     *         {@link Sync#GROUP_COMMIT}
+     */
+    public List<SpooledMessage> recover() throws IOException {
+        return journal.isPresent() ? journal.get().recover() : Collections.emptyList();
+    }
+
+    /**
+     * @return the number of batches forced so far, 0 unless the policy is
+     *         {@link Sync#GROUP_COMMIT}
+     */
+    public long getBatchCount() {
+        return journal.map(SpoolJournal::getBatchCount).orElse(0L);
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    private void returnBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        buffers.offer(buffer);
+    }
+
+    public static final class Builder {
+
+        private final Path directory;
+        private SpooledMessageListener listener;
+        private int maxMessageSize;
+        private Sync sync = Sync.NONE;
+        private Optional<String> digestAlgorithm = Optional.of("SHA-256");
+        private int bufferSize = 64 * 1024;
+        private long maxCommitDelayNanos = TimeUnit.MILLISECONDS.toNanos(2);
+        private int maxBatchSize = 256;
+        private long segmentSize = 64 * 1024 * 1024;
+
+        private Builder(Path directory) {
+            Preconditions.checkNotNull(directory, "directory cannot be null");
+            this.directory = directory;
+        }
+
+        public Builder listener(SpooledMessageListener listener) {
+            Preconditions.checkNotNull(listener, "listener cannot be null");
+            this.listener = listener;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of a message content in bytes, 0 means
+         * unlimited which is the default.
+         *
+         * @return this
+         */
+        public Builder maxMessageSize(int maxMessageSize) {
+            Preconditions.checkArgument(maxMessageSize >= 0, "maxMessageSize cannot be negative");
+            this.maxMessageSize = maxMessageSize;
+            return this;
+        }
+
+        /**
+         * Sets when the spool file is forced to the storage device. Default
+         * is {@link Sync#NONE}.
+         *
+         * @return this
+         */
+        public Builder sync(Sync sync) {
+            Preconditions.checkNotNull(sync, "sync cannot be null");
+            this.sync = sync;
+            return this;
+        }
+
+        /**
+         * Selects {@link Sync#GROUP_COMMIT}: the first message of a batch
+         * waits up to maxDelay for more messages, or until maxBatchSize
+         * messages wait, before the segment is forced. Default is 2 ms and
+         * 256 messages.
+         *
+         * @return this
+         */
+        public Builder groupCommit(long maxDelay, TimeUnit unit, int maxBatchSize) {
+            Preconditions.checkArgument(maxDelay >= 0, "maxDelay cannot be negative");
+            Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+            this.sync = Sync.GROUP_COMMIT;
+            this.maxCommitDelayNanos = unit.toNanos(maxDelay);
+            this.maxBatchSize = maxBatchSize;
+            return this;
+        }
+
+        /**
+         * Sets the size after which a new segment file is started with
+         * {@link Sync#GROUP_COMMIT}. A segment is deleted when its last
+         * message is released. Default is 64 MB.
+         *
+         * @return this
+         */
+        public Builder segmentSize(long segmentSize) {
+            Preconditions.checkArgument(segmentSize > 0, "segmentSize must be positive");
+            this.segmentSize = segmentSize;
+            return this;
+        }
+
+        /**
+         * Sets the {@link MessageDigest} algorithm of the digest computed
+         * while the content is written. Default is SHA-256.
+         *
+         * @return this
+         */
+        public Builder digestAlgorithm(String algorithm) {
+            Preconditions.checkNotNull(algorithm, "algorithm cannot be null");
+            try {
+                MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e);
+            }
+            this.digestAlgorithm = Optional.of(algorithm);
+            return this;
+        }
+
+        /**
+         * Computes no digest of the content.
+         *
+         * @return this
+         */
+        public Builder noDigest() {
+            this.digestAlgorithm = Optional.empty();
+            return this;
+        }
+
+        /**
+         * Sets the size of the direct buffers the content is copied through.
+         * Default is 64 KB.
+         *
+         * @return this
+         */
+        public Builder bufferSize(int bufferSize) {
+            Preconditions.checkArgument(bufferSize >= STREAM_CHUNK_SIZE,
+                    "bufferSize must be at least " + STREAM_CHUNK_SIZE);
+            this.bufferSize = bufferSize;
+            return this;
+        }
+
+        public SpoolingMessageHandlerFactory build() {
+            Preconditions.checkNotNull(listener, "listener must be set");
+            return new SpoolingMessageHandlerFactory(this);
+        }
+
+    }
+
+    private final class SpoolingMessageHandler implements MessageHandler {
+
+        private final MessageContext context;
+        private String from;
+        private final List<String> recipients = new ArrayList<>();
+
+        /**
+         * The spooled message until it is handed to the listener.
+         */
+        private SpooledMessage message;
+
+        SpoolingMessageHandler(MessageContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void from(String from) throws RejectException {
+            this.from = from;
+        }
+
+        @Override
+        public void recipient(String recipient) throws RejectException {
+            this.recipients.add(recipient);
+        }
+
+        @Override
+        public String data(InputStream data) throws RejectException, TooMuchDataException, IOException {
+            if (from == null) {
+                throw new RejectException("from not set");
+            }
+            if (recipients.isEmpty()) {
+                throw new RejectException("recipient not set");
+            }
+            MessageDigest digest = digestAlgorithm.map(SpoolingMessageHandlerFactory::newDigest).orElse(null);
+            message = journal.isPresent() ? append(data, digest, journal.get()) : spoolToFile(data, digest);
+            try {
+                listener.messageArrived(context, from, recipients, message);
+            } catch (RuntimeException e) {
+                log.error("Listener failed to take message from " + from, e);
+                throw new RejectException(451, "4.3.0 Message could not be accepted, try again later");
+            }
+            // the listener owns the message now
+            message = null;
+            return null;
+        }
+
+        private SpooledMessage spoolToFile(InputStream data, MessageDigest digest)
+                throws IOException, TooMuchDataException {
+            Path file = Files.createTempFile(directory, "smtp-", ".eml");
+            boolean spooled = false;
+            ByteBuffer buffer = takeBuffer();
+            try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                long size = spool(data, buffer, digest, null, b -> writeFully(b, out));
+                flip(buffer, digest, null);
+                writeFully(buffer, out);
+                if (sync == Sync.PER_MESSAGE) {
+                    out.force(true);
+                    // the directory entry of the new file must survive a crash too
+                    forceDirectory(directory);
+                }
+                spooled = true;
+                return new SpooledMessage(file, size, digest == null ? Optional.empty() : Optional.of(digest.digest()));
+            } finally {
+                returnBuffer(buffer);
+                if (!spooled) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+
+        /**
+         * Appends the content to the journal. A content larger than the
+         * buffer spills into a temporary file first, which is not forced, so
+         * usually never reaches the device.
+         */
+        private SpooledMessage append(InputStream data, MessageDigest digest, SpoolJournal journal)
+                throws IOException, TooMuchDataException {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = takeBuffer();
+            Spill spill = new Spill();
+            try {
+                spool(data, buffer, digest, crc, spill);
+                flip(buffer, digest, crc);
+                return journal.append(spill.channel, spill.size, buffer, (int) crc.getValue(),
+                        digest == null ? Optional.empty() : Optional.of(digest.digest()));
+            } finally {
+                returnBuffer(buffer);
+                spill.delete();
+            }
+        }
+
+        /**
+         * Reads the content into the buffer and writes each full buffer to
+         * the sink. The rest of the content stays in the buffer.
+         *
+         * @return the size of the content
+         */
+        private long spool(InputStream data, ByteBuffer buffer, MessageDigest digest, CRC32 crc, Sink sink)
+                throws IOException, TooMuchDataException {
+            ReadableByteChannel channel = data instanceof ReadableByteChannel ? (ReadableByteChannel) data : null;
+            byte[] chunk = channel == null ? new byte[STREAM_CHUNK_SIZE] : null;
+            long size = 0;
+            while (true) {
+                int n;
+                if (channel != null) {
+                    n = channel.read(buffer);
+                } else {
+                    n = data.read(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+                    if (n > 0) {
+                        buffer.put(chunk, 0, n);
+                    }
+                }
+                if (n == -1) {
+                    break;
+                }
+                size += n;
+                if (maxMessageSize > 0 && size > maxMessageSize) {
+                    throw new TooMuchDataException("message size exceeded maximum of " + maxMessageSize + " bytes");
+                }
+                if (!buffer.hasRemaining()) {
+                    flip(buffer, digest, crc);
+                    sink.write(buffer);
+                    buffer.clear();
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void done() {
+            if (message != null) {
+                message.release();
+                message = null;
+            }
+        }
+
+    }
+
+    @FunctionalInterface
+    private interface Sink {
+        void write(ByteBuffer buffer) throws IOException;
+    }
+
+    /**
+     * The beginning of a content which does not fit in the buffer, created
+     * when the first buffer is full.
+     */
+    private final class Spill implements Sink {
+
+        Path file;
+        FileChannel channel;
+        long size;
+
+        @Override
+        public void write(ByteBuffer buffer) throws IOException {
+            if (channel == null) {
+                file = Files.createTempFile(directory, "smtp-", ".tmp");
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            size += buffer.remaining();
+            writeFully(buffer, channel);
+        }
+
+        void delete() {
+            if (file != null) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    log.warn("Cannot delete spill file " + file, e);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Makes the buffer ready to be written and adds its content to the
+     * checksums.
+     */
+    private static void flip(ByteBuffer buffer, MessageDigest digest, CRC32 crc) {
+        buffer.flip();
+        if (digest != null) {
+            digest.update(buffer.duplicate());
+        }
+        if (crc != null) {
+            crc.update(buffer.duplicate());
+        }
+    }
+
+    private static void writeFully(ByteBuffer buffer, FileChannel out) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Forces the directory entries of the directory to the storage device.
+     * Some platforms, like Windows, cannot open a directory, there the file
+     * system is trusted to persist the entries of a forced file.
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            log.debug("Cannot open directory {} to force it", directory, e);
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // checked by the builder
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
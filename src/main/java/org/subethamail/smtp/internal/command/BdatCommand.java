@@ -14,6 +14,7 @@ import org.subethamail.smtp.server.Session;
  * @author David Moten
  */
 public final class BdatCommand extends BaseCommand {
+    private final static int DRAIN_BUFFER_SIZE = 8192;
 
     public BdatCommand() {
         super("BDAT", "A sequence of BDAT packets is collected as the data of the message.");
@@ -46,7 +47,8 @@ public final class BdatCommand extends BaseCommand {
             // well suck it up so it doesn't pollute further exchanges. This
             // code used to throw an exception, but this seems an arbitrary part
             // of the contract that we might as well relax.
-            while (stream.read() != -1)
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (stream.read(buffer) != -1)
                 ;
 
         } catch (DropConnectionException ex) {
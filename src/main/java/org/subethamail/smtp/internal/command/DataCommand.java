@@ -1,14 +1,12 @@
 package org.subethamail.smtp.internal.command;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Optional;
 
 import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.RejectException;
-import org.subethamail.smtp.internal.io.DotTerminatedInputStream;
-import org.subethamail.smtp.internal.io.DotUnstuffingInputStream;
+import org.subethamail.smtp.internal.io.DotTerminatedUnstuffingInputStream;
 import org.subethamail.smtp.internal.io.ReceivedHeaderStream;
 import org.subethamail.smtp.internal.util.SMTPResponseHelper;
 import org.subethamail.smtp.internal.server.BaseCommand;
@@ -21,7 +19,7 @@ import org.subethamail.smtp.server.Session;
  * @author Jeff Schnitzer
  */
 public final class DataCommand extends BaseCommand {
-    private final static int BUFFER_SIZE = 1024 * 32; // 32k seems reasonable
+    private final static int DRAIN_BUFFER_SIZE = 8192;
 
     public DataCommand() {
         super("DATA", "Following text is collected as the message.\n"
@@ -41,16 +39,13 @@ public final class DataCommand extends BaseCommand {
 
         sess.sendResponse("354 End data with <CR><LF>.<CR><LF>");
 
-        InputStream stream = sess.getRawInput();
-        stream = new BufferedInputStream(stream, BUFFER_SIZE);
-        stream = new DotTerminatedInputStream(stream);
-        stream = new DotUnstuffingInputStream(stream);
+        InputStream stream = new DotTerminatedUnstuffingInputStream(sess.getReader());
         SMTPServer server = sess.getServer();
         if (!server.getDisableReceivedHeaders()) {
-            stream = new ReceivedHeaderStream(stream, sess.getHelo(),
-                    sess.getRemoteAddress().getAddress(), server.getHostName(),
-                    Optional.of(server.getSoftwareName()), sess.getSessionId(),
-                    sess.getSingleRecipient());
+            Optional<String> hostName = server.getHostNameResolver()
+                    .getIfReady(sess.getRemoteAddress().getAddress());
+            stream = new ReceivedHeaderStream(stream,
+                    sess.getReceivedHeader(hostName).toBytes(sess.getSessionId(), sess.getSingleRecipient()));
         }
 
         String dataMessage = null;
@@ -61,7 +56,8 @@ public final class DataCommand extends BaseCommand {
             // well suck it up so it doesn't pollute further exchanges. This
             // code used to throw an exception, but this seems an arbitrary part
             // of the contract that we might as well relax.
-            while (stream.read() != -1)
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (stream.read(buffer) != -1)
                 ;
 
         } catch (DropConnectionException ex) {
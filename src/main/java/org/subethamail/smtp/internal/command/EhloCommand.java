@@ -53,6 +53,7 @@ public final class EhloCommand extends BaseCommand
 		response.append("250-");
 		response.append(sess.getServer().getHostName());
 		response.append("\r\n" + "250-8BITMIME");
+		response.append("\r\n" + "250-PIPELINING");
 
 		int maxSize = sess.getServer().getMaxMessageSize();
 		if (maxSize > 0)
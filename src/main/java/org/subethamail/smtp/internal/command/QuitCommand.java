@@ -21,6 +21,7 @@ public final class QuitCommand extends BaseCommand
 	@Override
 	public void execute(String commandString, Session sess) throws IOException
 	{
+		sess.notifySessionEnd();
 		sess.sendResponse("221 Bye");
 		sess.quit();
 	}
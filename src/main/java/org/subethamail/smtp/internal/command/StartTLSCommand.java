@@ -12,6 +12,7 @@ import javax.net.ssl.SSLSocket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.subethamail.smtp.internal.server.BaseCommand;
+import org.subethamail.smtp.internal.server.SessionAccess;
 import org.subethamail.smtp.server.Session;
 
 /**
@@ -51,7 +52,11 @@ public final class StartTLSCommand extends BaseCommand
 				return;
 			}
 
+			// the handshake runs in blocking mode, and the selector thread must
+			// not swallow the first bytes of it
+			SessionAccess.get().detachFromSelector(sess);
 			sess.sendResponse("220 Ready to start TLS");
+			sess.flush();
 
 			SSLSocket s = sess.getServer().createSSLSocket(socket);
 			s.startHandshake();
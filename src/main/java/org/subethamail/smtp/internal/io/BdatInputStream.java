@@ -2,32 +2,45 @@ package org.subethamail.smtp.internal.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
 
 import org.subethamail.smtp.internal.command.BdatCommand;
 import org.subethamail.smtp.internal.command.BdatCommand.Bdat;
 import org.subethamail.smtp.server.Session;
 
 /**
+ * The message content sent in a sequence of BDAT chunks. Reads are served
+ * straight from the buffer of the session's {@link CRLFTerminatedReader} and
+ * never go past the end of the current chunk, so the next BDAT command line
+ * stays in the buffer.
+ * <p>
+ * The stream is also a {@link ReadableByteChannel}, which lets a message
+ * handler move the content into a channel without going through a byte
+ * array of its own, for example with {@code FileChannel.transferFrom()}.
+ *
  * @author David Moten
  */
-public final class BdatInputStream extends InputStream {
+public final class BdatInputStream extends InputStream implements ReadableByteChannel {
 
     private final InputStream in;
     private final Session session;
 
-    
+
     // mutable fields
     private final CRLFTerminatedReader reader;
     private long remainingSize;
 
     private long size;
     private boolean isLast;
-    
+    private boolean open = true;
+
 
     public BdatInputStream(InputStream in, Session session, long size, boolean isLast) {
         this.in = in;
         this.session = session;
-        this.reader = new CRLFTerminatedReader(in);
+        this.reader = session.getReader();
         this.remainingSize = size;
         this.size = size;
         this.isLast = isLast;
@@ -37,34 +50,117 @@ public final class BdatInputStream extends InputStream {
     public int read() throws IOException {
         // Note that at no point do we close `in` or `reader`. The closure of the
         // inputStream is left to the BdatCommand class and beyond.
-        while (true) {
-            if (remainingSize > 0) {
-                int v = in.read();
-                remainingSize--;
-                return v;
-            } else if (isLast) {
-                session.sendResponse("250 Message OK, " + size + " bytes received (last chunk)");
-                return -1;
-            } else {
-                session.sendResponse("250 Message OK, " + size + " bytes received");
-                String line = reader.readLine();
-                if (line.startsWith("BDAT ")) {
-                    Bdat bdat = BdatCommand.parse(line);
-                    if (bdat.errorMessage != null) {
-                        session.sendResponse(bdat.errorMessage);
-                        throw new IOException(bdat.errorMessage);
-                    } else {
-                        remainingSize = bdat.size;
-                        size = bdat.size;
-                        isLast = bdat.isLast;
-                    }
+        if (!awaitChunkData()) {
+            return -1;
+        }
+        int v = in.read();
+        if (v != -1) {
+            remainingSize--;
+        }
+        return v;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        } else if (!awaitChunkData()) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remainingSize));
+        if (n > 0) {
+            remainingSize -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        } else if (!dst.hasRemaining()) {
+            return 0;
+        } else if (!awaitChunkData()) {
+            return -1;
+        }
+        if (dst.hasArray()) {
+            int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+            return n;
+        }
+        // copy from the reader buffer without an intermediate array
+        if (reader.position() == reader.limit() && reader.ensureBuffered(1) == 0) {
+            return -1;
+        }
+        int n = (int) Math.min(Math.min(dst.remaining(), remainingSize), reader.limit() - reader.position());
+        dst.put(reader.buffer(), reader.position(), n);
+        reader.position(reader.position() + n);
+        remainingSize -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || !awaitChunkData()) {
+            return 0;
+        }
+        long skipped = in.skip(Math.min(n, remainingSize));
+        remainingSize -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(remainingSize, in.available());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    /**
+     * Moves on to the next chunk when the current one has been read
+     * completely, acknowledging the finished chunk and reading the next BDAT
+     * command line. The last chunk is acknowledged by the BDAT command itself.
+     *
+     * @return false if there is no more content
+     */
+    private boolean awaitChunkData() throws IOException {
+        while (remainingSize == 0) {
+            if (isLast) {
+                return false;
+            }
+            session.sendResponse("250 Message OK, " + size + " bytes received");
+            String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("end of stream while waiting for BDAT command line");
+            } else if (line.startsWith("BDAT ")) {
+                Bdat bdat = BdatCommand.parse(line);
+                if (bdat.errorMessage != null) {
+                    session.sendResponse(bdat.errorMessage);
+                    throw new IOException(bdat.errorMessage);
                 } else {
-                    String message = "503 Error: expected BDAT command line but encountered: '" + line + "'";
-                    session.sendResponse(message);
-                    throw new IOException(message);
+                    remainingSize = bdat.size;
+                    size = bdat.size;
+                    isLast = bdat.isLast;
                 }
+            } else {
+                String message = "503 Error: expected BDAT command line but encountered: '" + line + "'";
+                session.sendResponse(message);
+                throw new IOException(message);
             }
         }
+        return true;
     }
 
 }
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 /**
  * A Reader for use with SMTP or other protocols in which lines
  * must end with CRLF.  Extends Reader and overrides its
@@ -31,11 +32,19 @@ import java.io.UnsupportedEncodingException;
  * the Apache JAMES version to throw an IOException if the line is
  * greater than or equal to MAX_LINE_LENGTH (998) which is defined
  * in <a href="http://rfc.net/rfc2822.html#s2.1.1.">RFC 2822</a>.
+ *
+ * Input is read from the underlying stream in blocks into a buffer which
+ * is reused for the lifetime of the reader. Bytes following the last line
+ * which was read stay in this buffer, so anything which reads the rest of
+ * the input (the DATA and BDAT commands) must read it through
+ * {@link #getInputStream()}.
  */
 public final class CRLFTerminatedReader extends Reader
 {
 	private static final int MAX_LINE_LENGTH = 998;
 
+	private static final int BUFFER_SIZE = 8192;
+
 	@SuppressWarnings("serial")
 	public static final class TerminationException extends IOException
 	{
@@ -75,6 +84,13 @@ public final class CRLFTerminatedReader extends Reader
 
 	private final InputStream in;
 
+	private final InputStream inputStream = new BufferedInput();
+
+	/** bytes read from {@link #in} and not consumed yet are buffer[pos..limit) */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int pos;
+	private int limit;
+
 	/**
 	 * Constructs this CRLFTerminatedReader.
 	 *
@@ -89,12 +105,15 @@ public final class CRLFTerminatedReader extends Reader
 		this.in = in;
 	}
 
-	private final StringBuffer lineBuffer = new StringBuffer();
 	private final static int
 			EOF = -1,
 			CR  = 13,
 			LF  = 10;
 
+	/*
+	 * The position of the first bare CR or LF of a line which was too long,
+	 * reported by the next line.
+	 */
 	private int tainted = -1;
 
 	/**
@@ -105,6 +124,11 @@ public final class CRLFTerminatedReader extends Reader
 	 * end of the stream may be lost if they are in a "line" not
 	 * terminated by CRLF.
 	 *
+	 * The buffer is scanned in place for the CRLF, and the line is decoded
+	 * from it with a single copy. A line which is split over two reads from
+	 * the underlying stream is first moved to the start of the buffer, which
+	 * is larger than the longest line.
+	 *
 	 * @return either a String containing the contents of a
 	 * line which must end with CRLF, or null if the end of the
 	 * stream has been reached, possibly discarding some characters
@@ -113,93 +137,205 @@ public final class CRLFTerminatedReader extends Reader
 	 */
 	public String readLine() throws IOException
 	{
-		//start with the StringBuffer empty
-		this.lineBuffer.delete(0, this.lineBuffer.length());
-
-		/* This boolean tells which state we are in,
-		 * depending upon whether or not we got a CR
-		 * in the preceding read().
-		 */
-		boolean cr_just_received = false;
-
+		// offsets from pos: the bytes before scanned hold no CRLF which ends
+		// the line, the first CR or LF among them is at bare
+		int scanned = 0;
+		int bare = -1;
 		while (true)
 		{
-			int inChar = this.read();
-
-			if (!cr_just_received)
+			// a CRLF after offset MAX_LINE_LENGTH - 1 does not end the line
+			int end = Math.min(this.limit - this.pos, MAX_LINE_LENGTH + 1);
+			for (int i = scanned; i < end; i++)
 			{
-				//the most common case, somewhere before the end of a line
-				switch (inChar)
-				{
-					case CR:
-						cr_just_received = true;
-						break;
-					case EOF:
-						return null; // premature EOF -- discards data(?)
-					case LF: //the normal ending of a line
-						if (this.tainted == -1)
-							this.tainted = this.lineBuffer.length();
-					// intentional fall-through
-					default:
-						this.lineBuffer.append((char) inChar);
-				}
+				byte b = this.buffer[this.pos + i];
+				if (b == LF && i > 0 && this.buffer[this.pos + i - 1] == CR)
+					return endLine(i - 1, bare);
+				if ((b == CR || b == LF) && bare == -1)
+					bare = i;
 			}
-			else
+			scanned = end;
+			if (scanned >= MAX_LINE_LENGTH)
 			{
-				// CR has been received, we may be at end of line
-				switch (inChar)
-				{
-					case LF: // LF without a preceding CR
-						if (this.tainted != -1)
-						{
-							int pos = this.tainted;
-							this.tainted = -1;
-							throw new TerminationException(
-									"\"bare\" CR or LF in data stream", pos);
-						}
-						return this.lineBuffer.toString();
-					case EOF:
-						return null; // premature EOF -- discards data(?)
-					case CR: //we got two (or more) CRs in a row
-						if (this.tainted == -1)
-							this.tainted = this.lineBuffer.length();
-						this.lineBuffer.append((char) CR);
-						break;
-					default: //we got some other character following a CR
-						if (this.tainted == -1)
-							this.tainted = this.lineBuffer.length();
-						this.lineBuffer.append((char) CR);
-						this.lineBuffer.append((char) inChar);
-						cr_just_received = false;
-				}
+				// a CR at the limit may still end the line with the next byte
+				boolean crAtLimit = this.buffer[this.pos + MAX_LINE_LENGTH - 1] == CR;
+				if (!crAtLimit || scanned > MAX_LINE_LENGTH)
+					throw lineTooLong(crAtLimit ? MAX_LINE_LENGTH + 1 : MAX_LINE_LENGTH, bare);
 			}
-			if (this.lineBuffer.length() >= MAX_LINE_LENGTH)
+			if (!readMore())
 			{
-				throw new MaxLineLengthException("Input line length is too long!");
+				// premature EOF -- discards data(?)
+				this.pos = this.limit;
+				return null;
 			}
 		}
 	}
 
+	/**
+	 * Consumes the line and its CRLF at the given offset.
+	 */
+	private String endLine(int length, int bare) throws TerminationException
+	{
+		String line = new String(this.buffer, this.pos, length, StandardCharsets.ISO_8859_1);
+		this.pos += length + 2;
+		if (this.tainted == -1 && bare < length)
+			this.tainted = bare;
+		if (this.tainted != -1)
+		{
+			int position = this.tainted;
+			this.tainted = -1;
+			throw new TerminationException("\"bare\" CR or LF in data stream", position);
+		}
+		return line;
+	}
+
+	/**
+	 * Consumes the given number of bytes of a line which is too long.
+	 */
+	private MaxLineLengthException lineTooLong(int consumed, int bare)
+	{
+		this.pos += consumed;
+		if (this.tainted == -1 && bare < MAX_LINE_LENGTH)
+			this.tainted = bare;
+		return new MaxLineLengthException("Input line length is too long!");
+	}
+
+	/**
+	 * Reads more bytes from the underlying stream after those buffered,
+	 * moving them to the start of the buffer if it is full.
+	 *
+	 * @return false on end of stream
+	 */
+	private boolean readMore() throws IOException
+	{
+		if (this.limit == this.buffer.length || this.pos == this.limit)
+		{
+			System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+			this.limit -= this.pos;
+			this.pos = 0;
+		}
+		int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+		if (n <= 0)
+			return false;
+		this.limit += n;
+		return true;
+	}
+
+	/**
+	 * Returns true if a complete line is already buffered, that is the next
+	 * {@link #readLine()} will not read from the underlying stream.
+	 */
+	public boolean isLineBuffered()
+	{
+		for (int i = this.pos; i < this.limit; i++)
+		{
+			if (this.buffer[i] == LF)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a stream over the input which has not been consumed by
+	 * {@link #readLine()} yet: first the buffered bytes, then the underlying
+	 * stream. Closing it closes the underlying stream.
+	 */
+	public InputStream getInputStream()
+	{
+		return this.inputStream;
+	}
+
+	/**
+	 * Reads more bytes from the underlying stream into the empty buffer.
+	 *
+	 * @return false on end of stream
+	 */
+	private boolean fill() throws IOException
+	{
+		int n = this.in.read(this.buffer, 0, this.buffer.length);
+		if (n <= 0)
+			return false;
+		this.pos = 0;
+		this.limit = n;
+		return true;
+	}
+
+	/*
+	 * Direct access to the buffer for DotTerminatedUnstuffingInputStream,
+	 * which scans the message content in place.
+	 */
+
+	byte[] buffer()
+	{
+		return this.buffer;
+	}
+
+	int position()
+	{
+		return this.pos;
+	}
+
+	void position(int pos)
+	{
+		this.pos = pos;
+	}
+
+	int limit()
+	{
+		return this.limit;
+	}
+
+	/**
+	 * Moves the buffered bytes to the start of the buffer and reads from the
+	 * underlying stream until at least {@code n} bytes are buffered or the end
+	 * of the stream is reached.
+	 *
+	 * @return the number of buffered bytes, which is less than {@code n} only
+	 *         at the end of the stream
+	 */
+	int ensureBuffered(int n) throws IOException
+	{
+		int buffered = this.limit - this.pos;
+		if (buffered >= n)
+			return buffered;
+		System.arraycopy(this.buffer, this.pos, this.buffer, 0, buffered);
+		this.pos = 0;
+		this.limit = buffered;
+		while (this.limit < n)
+		{
+			int count = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+			if (count <= 0)
+				break;
+			this.limit += count;
+		}
+		return this.limit;
+	}
+
 	@Override
 	public int read() throws IOException
 	{
-		return this.in.read();
+		if (this.pos == this.limit && !fill())
+			return EOF;
+		return this.buffer[this.pos++] & 0xff;
 	}
 
 	@Override
 	public boolean ready() throws IOException
 	{
-		return this.in.available() > 0;
+		return this.pos < this.limit || this.in.available() > 0;
 	}
 
 	@Override
 	public int read(char[] cbuf, int off, int len) throws IOException
 	{
-		byte[] temp = new byte[len];
-		int result = this.in.read(temp, 0, len);
-		for (int i = 0; i < result; i++)
-			cbuf[i] = (char) temp[i];
-		return result;
+		if (len == 0)
+			return 0;
+		if (this.pos == this.limit && !fill())
+			return EOF;
+		int n = Math.min(len, this.limit - this.pos);
+		for (int i = 0; i < n; i++)
+			cbuf[off + i] = (char) (this.buffer[this.pos + i] & 0xff);
+		this.pos += n;
+		return n;
 	}
 
 	@Override
@@ -207,4 +343,65 @@ public final class CRLFTerminatedReader extends Reader
 	{
 		this.in.close();
 	}
+
+	/**
+	 * The byte oriented view of this reader returned by
+	 * {@link CRLFTerminatedReader#getInputStream()}.
+	 */
+	private final class BufferedInput extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+			return CRLFTerminatedReader.this.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (off < 0 || len < 0 || len > b.length - off)
+				throw new IndexOutOfBoundsException();
+			if (len == 0)
+				return 0;
+			int buffered = limit - pos;
+			if (buffered == 0)
+			{
+				// nothing to gain from copying large reads through the buffer
+				if (len >= buffer.length)
+					return in.read(b, off, len);
+				if (!fill())
+					return EOF;
+				buffered = limit;
+			}
+			int n = Math.min(len, buffered);
+			System.arraycopy(buffer, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			if (n <= 0)
+				return 0;
+			int buffered = limit - pos;
+			if (buffered == 0)
+				return in.skip(n);
+			int skipped = (int) Math.min(n, buffered);
+			pos += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (limit - pos) + in.available();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			CRLFTerminatedReader.this.close();
+		}
+	}
 }
@@ -0,0 +1,289 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An InputStream over the bytes a selector thread has read from a non-blocking
+ * channel. The selector thread pushes the bytes in with {@link #feed}, the
+ * session thread reads them out, blocking (with a timeout) when nothing is
+ * buffered.
+ * <p>
+ * The listener passed to the constructor is notified whenever the state of the
+ * stream changes in a way that may allow the session to make progress: bytes
+ * arrived, the end of the stream was reached or the connection idled out.
+ */
+public final class ChannelInputStream extends InputStream {
+
+    /**
+     * When this many bytes are buffered the selector thread stops reading from
+     * the channel until the session has consumed half of them.
+     */
+    private static final int HIGH_WATER_MARK = 64 * 1024;
+
+    /**
+     * A command line is never longer than this, so if this many bytes are
+     * buffered without a line feed the session should be woken up to reject
+     * the line.
+     */
+    private static final int LINE_DISPATCH_THRESHOLD = 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final long readTimeoutNanos;
+    private final Runnable listener;
+
+    private byte[] buffer = new byte[4096];
+    private int start;
+    private int end;
+
+    /** index up to which the buffer was searched for a line feed */
+    private int scanned;
+    private boolean endOfStream;
+    private boolean closed;
+
+    private volatile boolean expired;
+    private volatile long lastActivityNanos = System.nanoTime();
+    private volatile boolean readingSuspended;
+    private volatile Runnable onDrained = () -> {
+    };
+
+    /**
+     * @param readTimeoutMs
+     *            how long a read waits for data before it fails with a
+     *            {@link SocketTimeoutException}, 0 means forever
+     * @param listener
+     *            notified (on the selector thread) when new input may be
+     *            available
+     */
+    public ChannelInputStream(int readTimeoutMs, Runnable listener) {
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(readTimeoutMs);
+        this.listener = listener;
+    }
+
+    /**
+     * Appends the remaining bytes of {@code bytes} to this stream.
+     *
+     * @return false if the selector thread should stop reading from the
+     *         channel until {@link #onDrained(Runnable) notified}
+     */
+    public boolean feed(ByteBuffer bytes) {
+        boolean moreWanted;
+        lock.lock();
+        try {
+            int n = bytes.remaining();
+            ensureCapacity(n);
+            bytes.get(buffer, end, n);
+            end += n;
+            lastActivityNanos = System.nanoTime();
+            readable.signalAll();
+            moreWanted = end - start < HIGH_WATER_MARK;
+            readingSuspended = !moreWanted;
+        } finally {
+            lock.unlock();
+        }
+        listener.run();
+        return moreWanted;
+    }
+
+    /**
+     * Signals that the client has closed its side of the connection.
+     */
+    public void endOfStream() {
+        lock.lock();
+        try {
+            endOfStream = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        listener.run();
+    }
+
+    /**
+     * Marks this stream as expired if nothing was received or read for the
+     * specified duration.
+     */
+    public void expireIfIdle(long nowNanos, long idleTimeoutNanos) {
+        if (!expired && nowNanos - lastActivityNanos >= idleTimeoutNanos) {
+            expired = true;
+            listener.run();
+        }
+    }
+
+    /**
+     * Returns true if the connection has been idle for longer than the
+     * timeout and no complete line is waiting to be read.
+     */
+    public boolean isExpired() {
+        return expired && System.nanoTime() - lastActivityNanos >= readTimeoutNanos;
+    }
+
+    /**
+     * Restarts the idle timer.
+     */
+    public void touch() {
+        expired = false;
+        lastActivityNanos = System.nanoTime();
+    }
+
+    /**
+     * Sets the callback which re-enables reading after the selector thread
+     * was told to stop by {@link #feed}.
+     */
+    public void onDrained(Runnable onDrained) {
+        this.onDrained = onDrained;
+    }
+
+    /**
+     * Returns true if a {@link CRLFTerminatedReader#readLine()} on this stream
+     * would most likely not block: a line feed is buffered, the line is too
+     * long anyway, or the stream has ended.
+     */
+    public boolean isReadyForLine() {
+        lock.lock();
+        try {
+            if (endOfStream || closed || end - start >= LINE_DISPATCH_THRESHOLD) {
+                return true;
+            }
+            for (int i = Math.max(scanned, start); i < end; i++) {
+                if (buffer[i] == '\n') {
+                    return true;
+                }
+            }
+            scanned = end;
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        lock.lock();
+        try {
+            if (!awaitData()) {
+                return -1;
+            }
+            int b = buffer[start++] & 0xff;
+            consumed();
+            return b;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            if (!awaitData()) {
+                return -1;
+            }
+            int n = Math.min(len, end - start);
+            System.arraycopy(buffer, start, b, off, n);
+            start += n;
+            consumed();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        lock.lock();
+        try {
+            return end - start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until there is something to read. Must be called with the lock
+     * held.
+     *
+     * @return false on end of stream
+     */
+    private boolean awaitData() throws IOException {
+        long remaining = readTimeoutNanos;
+        while (start == end) {
+            if (closed) {
+                throw new SocketException("Socket closed");
+            } else if (endOfStream) {
+                return false;
+            }
+            try {
+                if (readTimeoutNanos == 0) {
+                    readable.await();
+                } else if (remaining <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                } else {
+                    remaining = readable.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("Interrupted while waiting for data");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Book-keeping after bytes were taken out of the buffer. Must be called
+     * with the lock held.
+     */
+    private void consumed() {
+        lastActivityNanos = System.nanoTime();
+        if (start == end) {
+            start = 0;
+            end = 0;
+            scanned = 0;
+        }
+        if (readingSuspended && end - start <= HIGH_WATER_MARK / 2) {
+            readingSuspended = false;
+            onDrained.run();
+        }
+    }
+
+    private void ensureCapacity(int n) {
+        if (buffer.length - end >= n) {
+            return;
+        }
+        int size = end - start;
+        if (buffer.length - size >= n && start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, size);
+        } else {
+            byte[] b = new byte[Math.max(buffer.length * 2, size + n)];
+            System.arraycopy(buffer, start, b, 0, size);
+            buffer = b;
+        }
+        scanned = Math.max(0, scanned - start);
+        start = 0;
+        end = size;
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An OutputStream which writes to a non-blocking channel, waiting (with a
+ * timeout) for the channel to become writable when the socket send buffer is
+ * full. Closing this stream does not close the channel.
+ */
+public final class ChannelOutputStream extends OutputStream {
+
+    private final SocketChannel channel;
+    private final int writeTimeoutMs;
+
+    /**
+     * Only opened if the channel ever refuses to take bytes, which is rare for
+     * SMTP replies.
+     */
+    private Selector writeSelector;
+
+    public ChannelOutputStream(SocketChannel channel, int writeTimeoutMs) {
+        this.channel = channel;
+        this.writeTimeoutMs = writeTimeoutMs;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+        while (bb.hasRemaining()) {
+            if (channel.write(bb) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        if (writeSelector.select(writeTimeoutMs) == 0) {
+            throw new SocketTimeoutException("Write timed out");
+        }
+        writeSelector.selectedKeys().clear();
+    }
+
+    /**
+     * Releases the private selector, if any. The channel stays open.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writeSelector != null) {
+            writeSelector.close();
+            writeSelector = null;
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory output stream which keeps the data in a list of fixed size
+ * chunks instead of one array, so growing never copies the data written so
+ * far. The chunks come from a pool shared by all instances and go back to it
+ * on {@link #release()}.
+ * <p>
+ * The streams returned by {@link #getInputStream()} read the chunks in place,
+ * so they fail once the chunks are released: a late reader must never see the
+ * bytes of the message which got the chunks next. Bulk reads and the release
+ * synchronize on this stream; a single byte read checks the volatile flag
+ * before and after reading instead, so reading byte by byte does not take a
+ * lock per byte.
+ */
+final class ChunkedByteArrayOutputStream extends OutputStream {
+
+    static final int CHUNK_SIZE = 8192;
+
+    /**
+     * At most 8 MB are kept in the pool.
+     */
+    private static final int MAX_POOLED_CHUNKS = 1024;
+
+    private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    private final List<byte[]> chunks = new ArrayList<>();
+
+    /** The number of bytes written. */
+    private int count;
+
+    /** Only set while holding the lock, so a bulk read in progress completes. */
+    private volatile boolean released;
+
+    @Override
+    public void write(int b) {
+        int position = count % CHUNK_SIZE;
+        if (position == 0) {
+            chunks.add(takeChunk());
+        }
+        chunks.get(chunks.size() - 1)[position] = (byte) b;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            int position = count % CHUNK_SIZE;
+            if (position == 0) {
+                chunks.add(takeChunk());
+            }
+            int n = Math.min(len, CHUNK_SIZE - position);
+            System.arraycopy(b, off, chunks.get(chunks.size() - 1), position, n);
+            off += n;
+            len -= n;
+            count += n;
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Writes the data to the stream in chunk sized writes.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        int remaining = count;
+        for (byte[] chunk : chunks) {
+            int n = Math.min(remaining, CHUNK_SIZE);
+            out.write(chunk, 0, n);
+            remaining -= n;
+        }
+    }
+
+    /**
+     * Returns a stream of the data written so far, which reads the chunks
+     * without copying them. It is invalid after {@link #release()}.
+     */
+    InputStream getInputStream() {
+        return new ChunksInputStream(chunks.toArray(new byte[0][]), count);
+    }
+
+    /**
+     * Returns the chunks to the pool; nothing may be read or written
+     * afterwards, and the streams returned by {@link #getInputStream()} throw
+     * an {@link IOException} from then on.
+     */
+    void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            // waits for a read in progress
+            released = true;
+        }
+        for (byte[] chunk : chunks) {
+            if (POOL_SIZE.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+                POOL.offer(chunk);
+            } else {
+                POOL_SIZE.decrementAndGet();
+            }
+        }
+        chunks.clear();
+        count = 0;
+    }
+
+    private static byte[] takeChunk() {
+        byte[] chunk = POOL.poll();
+        if (chunk == null) {
+            return new byte[CHUNK_SIZE];
+        }
+        POOL_SIZE.decrementAndGet();
+        return chunk;
+    }
+
+    private final class ChunksInputStream extends InputStream {
+
+        private final byte[][] chunks;
+        private final int count;
+        private int position;
+
+        ChunksInputStream(byte[][] chunks, int count) {
+            this.chunks = chunks;
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkNotReleased();
+            if (position == count) {
+                return -1;
+            }
+            int b = chunks[position / CHUNK_SIZE][position % CHUNK_SIZE] & 0xff;
+            // the chunk only goes back to the pool after released is set, so
+            // if it is still clear the byte was read before any reuse
+            checkNotReleased();
+            position++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            } else if (len == 0) {
+                return 0;
+            }
+            synchronized (ChunkedByteArrayOutputStream.this) {
+                checkNotReleased();
+                return copy(b, off, len);
+            }
+        }
+
+        private int copy(byte[] b, int off, int len) {
+            if (position == count) {
+                return -1;
+            }
+            int total = 0;
+            while (len > 0 && position < count) {
+                int offsetInChunk = position % CHUNK_SIZE;
+                int n = Math.min(len, Math.min(CHUNK_SIZE - offsetInChunk, count - position));
+                System.arraycopy(chunks[position / CHUNK_SIZE], offsetInChunk, b, off, n);
+                position += n;
+                off += n;
+                len -= n;
+                total += n;
+            }
+            return total;
+        }
+
+        private void checkNotReleased() throws IOException {
+            if (released) {
+                throw new IOException("the content was released");
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkNotReleased();
+            long skipped = Math.max(0, Math.min(n, count - position));
+            position += (int) skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            checkNotReleased();
+            return count - position;
+        }
+
+    }
+
+}
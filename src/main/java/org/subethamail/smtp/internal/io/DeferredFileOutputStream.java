@@ -6,33 +6,29 @@ package org.subethamail.smtp.internal.io;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * This works like a ByteArrayOutputStream until a certain size is
  * reached, then creates a temp file and acts like a buffered
  * FileOutputStream.  The data can be retreived afterwards by
- * calling getInputStream().
+ * calling getInputStream(), as often as needed: each call returns a
+ * view of the same pooled memory chunks, or reads the file through
+ * one channel shared by all readers.
  *
- * When this object is closed, the temporary file is deleted.  You
- * can no longer call getInputStream().
+ * When this object is closed, the temporary file is deleted and the
+ * memory is given back to the pool.  You can no longer call
+ * getInputStream() or read from the streams it returned.
  *
  * @author Jeff Schnitzer
  */
 public final class DeferredFileOutputStream extends ThresholdingOutputStream
 {
-	/**
-	 * Initial size of the byte array buffer.  Better to make this
-	 * large to start with so that we can avoid reallocs; mail
-	 * messages are rarely tiny.
-	 */
-	static final int INITIAL_BUF_SIZE = 8192;
-
 	public static final String TMPFILE_PREFIX = "subetha";
 	public static final String TMPFILE_SUFFIX = ".msg";
 
@@ -42,6 +38,9 @@ public final class DeferredFileOutputStream extends ThresholdingOutputStream
 	/** If we switch to file output, this is the stream. */
 	FileOutputStream outFileStream;
 
+	/** The channel the readers share, once the file is complete and read. */
+	FileChannel inChannel;
+
 	/** When the output stream is closed, this becomes true */
 	boolean closed;
 
@@ -53,7 +52,7 @@ public final class DeferredFileOutputStream extends ThresholdingOutputStream
 	 */
 	public DeferredFileOutputStream(int transitionSize)
 	{
-		super(new BetterByteArrayOutputStream(INITIAL_BUF_SIZE), transitionSize);
+		super(new ChunkedByteArrayOutputStream(), transitionSize);
 	}
 
 	/*
@@ -69,21 +68,23 @@ public final class DeferredFileOutputStream extends ThresholdingOutputStream
 		this.outFile = File.createTempFile(TMPFILE_PREFIX, TMPFILE_SUFFIX);
 		this.outFileStream = new FileOutputStream(this.outFile);
 
-		((ByteArrayOutputStream)this.output).writeTo(this.outFileStream);
-		this.output = new BufferedOutputStream(this.outFileStream);
+		ChunkedByteArrayOutputStream memory = (ChunkedByteArrayOutputStream)this.output;
+		memory.writeTo(this.outFileStream);
+		memory.release();
+		this.output = new BufferedOutputStream(this.outFileStream, ChunkedByteArrayOutputStream.CHUNK_SIZE);
 	}
 
 	/**
 	 * Closes the output stream and creates an InputStream on the same data.
 	 *
-	 * @return either a BetterByteArrayOutputStream or buffered FileInputStream,
-	 *  depending on what state we are in.
+	 * @return either a view of the memory chunks or a buffered stream
+	 *  reading the file, depending on what state we are in.
 	 */
 	public InputStream getInputStream() throws IOException
 	{
-		if (this.output instanceof BetterByteArrayOutputStream)
+		if (this.output instanceof ChunkedByteArrayOutputStream)
 		{
-			return ((BetterByteArrayOutputStream)this.output).getInputStream();
+			return ((ChunkedByteArrayOutputStream)this.output).getInputStream();
 		}
 		else
 		{
@@ -94,7 +95,11 @@ public final class DeferredFileOutputStream extends ThresholdingOutputStream
 				this.closed = true;
 			}
 
-			return new BufferedInputStream(new FileInputStream(this.outFile));
+			if (this.inChannel == null)
+				this.inChannel = FileChannel.open(this.outFile.toPath(), StandardOpenOption.READ);
+
+			return new BufferedInputStream(new FileChannelInputStream(this.inChannel),
+					ChunkedByteArrayOutputStream.CHUNK_SIZE);
 		}
 	}
 
@@ -111,6 +116,15 @@ public final class DeferredFileOutputStream extends ThresholdingOutputStream
 			this.closed = true;
 		}
 
+		if (this.output instanceof ChunkedByteArrayOutputStream)
+			((ChunkedByteArrayOutputStream)this.output).release();
+
+		if (this.inChannel != null)
+		{
+			this.inChannel.close();
+			this.inChannel = null;
+		}
+
 		if (this.outFile != null)
 			this.outFile.delete();
 	}
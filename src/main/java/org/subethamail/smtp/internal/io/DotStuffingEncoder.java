@@ -0,0 +1,98 @@
+package org.subethamail.smtp.internal.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The framing of {@link ExtraDotOutputStream} and
+ * {@link DotTerminatedOutputStream} applied to a whole message in memory: it
+ * converts naked CR and LF to CR LF, doubles a dot at the beginning of a line
+ * and appends the "CR LF . CR LF" terminating sequence, without adding a CR LF
+ * if the content already ends with one.
+ * <p>
+ * The size of the result is counted first, so the content is encoded into a
+ * single array of exactly the right length which can be written to a channel
+ * as it is.
+ */
+public final class DotStuffingEncoder {
+
+    private static final int OTHER = 0;
+    private static final int CR = 1;
+    private static final int LF = 2;
+
+    private DotStuffingEncoder() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns the DATA content as it is sent over the wire, ready to be read.
+     */
+    public static ByteBuffer encode(byte[] data, int offset, int length) {
+        byte[] out = new byte[encodedLength(data, offset, length)];
+        int n = 0;
+        // like CRLFOutputStream, the content starts at the beginning of a line
+        int last = LF;
+        int runStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == '\r' || b == '\n' || (b == '.' && last != OTHER)) {
+                int run = i - runStart;
+                System.arraycopy(data, runStart, out, n, run);
+                n += run;
+                runStart = i + 1;
+                if (b == '\r') {
+                    out[n++] = '\r';
+                    out[n++] = '\n';
+                    last = CR;
+                } else if (b == '\n') {
+                    if (last != CR) {
+                        out[n++] = '\r';
+                        out[n++] = '\n';
+                    }
+                    last = LF;
+                } else {
+                    out[n++] = '.';
+                    out[n++] = '.';
+                    last = OTHER;
+                }
+            } else {
+                last = OTHER;
+            }
+        }
+        int run = end - runStart;
+        System.arraycopy(data, runStart, out, n, run);
+        n += run;
+        if (last == OTHER) {
+            out[n++] = '\r';
+            out[n++] = '\n';
+        }
+        out[n++] = '.';
+        out[n++] = '\r';
+        out[n++] = '\n';
+        return ByteBuffer.wrap(out, 0, n);
+    }
+
+    private static int encodedLength(byte[] data, int offset, int length) {
+        int extra = 0;
+        int last = LF;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            if (b == '\r') {
+                extra++;
+                last = CR;
+            } else if (b == '\n') {
+                extra += last == CR ? -1 : 1;
+                last = LF;
+            } else {
+                if (b == '.' && last != OTHER) {
+                    extra++;
+                }
+                last = OTHER;
+            }
+        }
+        // CR LF if missing, then . CR LF
+        return length + extra + (last == OTHER ? 2 : 0) + 3;
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the content of the SMTP DATA command like an
+ * {@link ExtraDotOutputStream} over a {@link DotTerminatedOutputStream}, but
+ * into its own buffer, which is written to the wrapped stream in large
+ * segments. Naked CR and LF are converted to CR LF, a dot at the beginning of
+ * a line is doubled and {@link #writeTerminatingSequence()} ends the content.
+ * <p>
+ * If the content is known to have CR LF line endings only, the conversion can
+ * be switched off with {@link #setCanonicalLineEndings(boolean)}; the content
+ * is then only scanned for dots after LF.
+ * <p>
+ * Unlike the streams it replaces this class is not thread safe, a message is
+ * written by one thread at a time.
+ */
+public final class DotStuffingOutputStream extends OutputStream {
+
+    private static final int OTHER = 0;
+    private static final int CR = 1;
+    private static final int LF = 2;
+
+    private final OutputStream out;
+
+    private final byte[] buffer;
+
+    private int count;
+
+    /**
+     * The kind of the last byte of the content, the content starts at the
+     * beginning of a line.
+     */
+    private int last = LF;
+
+    private boolean canonicalLineEndings;
+
+    private final byte[] single = new byte[1];
+
+    public DotStuffingOutputStream(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+    }
+
+    /**
+     * If true, the content is trusted to have CR LF line endings only and is
+     * copied unchanged except for the dots at the beginning of lines.
+     */
+    public void setCanonicalLineEndings(boolean canonicalLineEndings) {
+        this.canonicalLineEndings = canonicalLineEndings;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (canonicalLineEndings) {
+            writeCanonical(b, off, len);
+            return;
+        }
+        int runStart = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '\r' || c == '\n' || (c == '.' && last != OTHER)) {
+                put(b, runStart, i - runStart);
+                runStart = i + 1;
+                if (c == '\r') {
+                    put('\r', '\n');
+                    last = CR;
+                } else if (c == '\n') {
+                    if (last != CR) {
+                        put('\r', '\n');
+                    }
+                    last = LF;
+                } else {
+                    put('.', '.');
+                    last = OTHER;
+                }
+            } else {
+                last = OTHER;
+            }
+        }
+        put(b, runStart, end - runStart);
+    }
+
+    private void writeCanonical(byte[] b, int off, int len) throws IOException {
+        int runStart = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte c = b[i];
+            if (c == '.' && last == LF) {
+                // the dot is copied with the next run, after the extra one
+                put(b, runStart, i - runStart);
+                runStart = i;
+                put('.');
+                last = OTHER;
+            } else {
+                last = c == '\n' ? LF : c == '\r' ? CR : OTHER;
+            }
+        }
+        put(b, runStart, end - runStart);
+    }
+
+    /**
+     * Writes ". CR LF", preceded by CR LF if the content did not end with a
+     * line break, and flushes. The stream is then ready for the next message.
+     */
+    public void writeTerminatingSequence() throws IOException {
+        // a CR was already converted to CR LF unless the content is trusted
+        boolean endsWithLineBreak = last == LF || (last == CR && !canonicalLineEndings);
+        if (!endsWithLineBreak) {
+            put('\r', '\n');
+        }
+        put('.');
+        put('\r', '\n');
+        last = LF;
+        flush();
+    }
+
+    private void put(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            // too large to be worth copying
+            flushBuffer();
+            out.write(b, off, len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    private void put(char c) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) c;
+    }
+
+    private void put(char c1, char c2) throws IOException {
+        put(c1);
+        put(c2);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+}
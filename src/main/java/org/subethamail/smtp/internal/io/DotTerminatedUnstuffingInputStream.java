@@ -0,0 +1,126 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The message content of the DATA command: the input up to the US-ASCII
+ * encoded dot CR LF sequence at the start of a line, with the dot-stuffing
+ * removed. Returns the same bytes as a {@link DotUnstuffingInputStream} over a
+ * {@link DotTerminatedInputStream}, but scans the buffer of the session's
+ * {@link CRLFTerminatedReader} in place instead of passing single bytes
+ * through two streams, and leaves the input following the terminating line in
+ * that buffer.
+ */
+public final class DotTerminatedUnstuffingInputStream extends InputStream {
+
+    /*
+     * The position in the line of the next byte. The first line is special,
+     * because its terminating dot line ends the content but a leading dot is
+     * not removed (like in the stream chain this class replaces).
+     */
+    private static final int FIRST_LINE_START = 0;
+    private static final int IN_LINE = 1;
+    private static final int AFTER_CR = 2;
+    private static final int LINE_START = 3;
+
+    private final CRLFTerminatedReader source;
+
+    private final byte[] single = new byte[1];
+
+    private int state = FIRST_LINE_START;
+
+    /**
+     * Indicates that the terminating sequence was consumed.
+     */
+    private boolean endReached;
+
+    public DotTerminatedUnstuffingInputStream(CRLFTerminatedReader source) {
+        this.source = source;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        } else if (endReached) {
+            return -1;
+        }
+        int n = 0;
+        while (n < len) {
+            if (source.position() == source.limit()) {
+                if (n > 0) {
+                    // return what we have rather than block
+                    break;
+                }
+                if (source.ensureBuffered(1) == 0) {
+                    throw new EOFException("Pre-mature end of <CRLF>.<CRLF> terminated data");
+                }
+            }
+            byte[] buf = source.buffer();
+            int p = source.position();
+            int limit = source.limit();
+            int st = state;
+            while (p < limit && n < len) {
+                byte c = buf[p];
+                if (c == '.' && (st == LINE_START || st == FIRST_LINE_START)) {
+                    if (limit - p < 3) {
+                        if (n > 0) {
+                            // the look-ahead may block
+                            break;
+                        }
+                        source.position(p);
+                        limit = source.ensureBuffered(3);
+                        p = 0;
+                        if (limit < 3) {
+                            // end of stream, it cannot be the terminator
+                            if (st == FIRST_LINE_START) {
+                                b[off + n++] = c;
+                            }
+                            p++;
+                            st = IN_LINE;
+                            continue;
+                        }
+                    }
+                    if (buf[p + 1] == '\r' && buf[p + 2] == '\n') {
+                        source.position(p + 3);
+                        state = st;
+                        endReached = true;
+                        return n > 0 ? n : -1;
+                    } else if (st == LINE_START) {
+                        // skip the stuffed dot
+                        p++;
+                        st = IN_LINE;
+                        continue;
+                    }
+                }
+                b[off + n++] = c;
+                p++;
+                if (c == '\r') {
+                    st = AFTER_CR;
+                } else if (c == '\n' && st == AFTER_CR) {
+                    st = LINE_START;
+                } else {
+                    st = IN_LINE;
+                }
+            }
+            state = st;
+            source.position(p);
+            if (p < limit) {
+                // stopped before a dot which needs more look-ahead
+                break;
+            }
+        }
+        return n;
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file with positional reads on a {@link FileChannel}, so several
+ * streams can share one open channel without affecting each other. Reading
+ * fails once the channel is closed.
+ */
+final class FileChannelInputStream extends InputStream {
+
+    private final FileChannel channel;
+    private final byte[] single = new byte[1];
+    private long position;
+
+    FileChannelInputStream(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        int n;
+        do {
+            n = channel.read(buffer, position);
+        } while (n == 0);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, channel.size() - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - position));
+    }
+
+}
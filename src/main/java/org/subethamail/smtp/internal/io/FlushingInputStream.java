@@ -0,0 +1,41 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.FilterInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStream which flushes the output to the client before a read which
+ * may block because nothing is available yet. This lets replies to pipelined
+ * commands (RFC 2920) be collected and sent together, while the client still
+ * gets all of them before the server waits for it.
+ */
+public final class FlushingInputStream extends FilterInputStream {
+
+    private final Flushable output;
+
+    public FlushingInputStream(InputStream in, Flushable output) {
+        super(in);
+        this.output = output;
+    }
+
+    @Override
+    public int read() throws IOException {
+        flushIfNothingAvailable();
+        return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        flushIfNothingAvailable();
+        return in.read(b, off, len);
+    }
+
+    private void flushIfNothingAvailable() throws IOException {
+        if (in.available() == 0) {
+            output.flush();
+        }
+    }
+
+}
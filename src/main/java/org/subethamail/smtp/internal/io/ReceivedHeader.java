@@ -0,0 +1,171 @@
+package org.subethamail.smtp.internal.io;
+
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Optional;
+
+import org.subethamail.smtp.internal.util.TextUtils;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Builds the Received: header which {@link ReceivedHeaderStream} prepends to a
+ * message. The part which is the same for all messages of a session is
+ * encoded once, so that each message only adds its id, recipient and
+ * timestamp. The header looks like:
+ *
+ * <pre>
+ * Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])
+ *         by mx.google.com
+ *         with SMTP (SubEthaSMTP 4.0) id 32si2669129wfa.13.2009.05.27.18.27.31
+ *         for dave@oz.com;
+ *         Wed, 27 May 2009 18:27:48 -0700 (PDT)
+ * </pre>
+ */
+public final class ReceivedHeader {
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss Z (z)", Locale.US);
+
+    private static final byte[] FOR = TextUtils.getAsciiBytes("\r\n        for ");
+
+    private static final byte[] BEFORE_TIMESTAMP = TextUtils.getAsciiBytes(";\r\n        ");
+
+    /**
+     * The formatted timestamp of the current second, shared by all sessions.
+     */
+    private static volatile Timestamp timestamp = new Timestamp(Long.MIN_VALUE, new byte[0]);
+
+    private final Optional<String> heloHost;
+    private final Optional<String> hostName;
+
+    /**
+     * The header up to and including "id ".
+     */
+    private final byte[] prefix;
+
+    /**
+     * @param heloHost
+     *            the name the client sent with HELO or EHLO
+     * @param host
+     *            the address of the client
+     * @param hostName
+     *            the host name of the client, or empty if it is not known
+     * @param whoami
+     *            the host name of this server
+     * @param softwareName
+     *            a software name and version, or empty if this information
+     *            should not be printed
+     */
+    public ReceivedHeader(Optional<String> heloHost, InetAddress host, Optional<String> hostName, String whoami,
+            Optional<String> softwareName) {
+        Preconditions.checkNotNull(heloHost);
+        Preconditions.checkNotNull(hostName);
+        Preconditions.checkNotNull(softwareName);
+        this.heloHost = heloHost;
+        this.hostName = hostName;
+        StringBuilder header = new StringBuilder();
+        header.append("Received: from ").append(heloHost.orElse(null)).append(" (")
+                .append(constructTcpInfo(host, hostName)).append(")\r\n");
+        header.append("        by ").append(whoami).append("\r\n");
+        header.append("        with SMTP");
+        if (softwareName.isPresent())
+            header.append(" (").append(softwareName.get()).append(")");
+        header.append(" id ");
+        this.prefix = TextUtils.getAsciiBytes(header.toString());
+    }
+
+    /**
+     * Returns true if this header was built for the specified client names,
+     * which may change within a session.
+     */
+    public boolean isFor(Optional<String> heloHost, Optional<String> hostName) {
+        return this.heloHost.equals(heloHost) && this.hostName.equals(hostName);
+    }
+
+    /**
+     * Returns the encoded header of a message received now.
+     *
+     * @param id
+     *            the id of the message
+     * @param singleRecipient
+     *            the single recipient of the message, or empty if there are
+     *            more
+     */
+    public byte[] toBytes(String id, Optional<String> singleRecipient) {
+        Preconditions.checkNotNull(singleRecipient);
+        byte[] idBytes = TextUtils.getAsciiBytes(id);
+        byte[] recipientBytes = singleRecipient.isPresent() ? TextUtils.getAsciiBytes(singleRecipient.get()) : null;
+        byte[] time = currentTimestamp();
+        int length = prefix.length + idBytes.length + BEFORE_TIMESTAMP.length + time.length + 2;
+        if (recipientBytes != null) {
+            length += FOR.length + recipientBytes.length;
+        }
+        byte[] b = new byte[length];
+        int n = put(prefix, b, 0);
+        n = put(idBytes, b, n);
+        if (recipientBytes != null) {
+            n = put(FOR, b, n);
+            n = put(recipientBytes, b, n);
+        }
+        n = put(BEFORE_TIMESTAMP, b, n);
+        n = put(time, b, n);
+        b[n++] = '\r';
+        b[n] = '\n';
+        return b;
+    }
+
+    private static int put(byte[] source, byte[] target, int position) {
+        System.arraycopy(source, 0, target, position, source.length);
+        return position + source.length;
+    }
+
+    /**
+     * Returns the formatted current time, formatting it at most once a second.
+     */
+    static byte[] currentTimestamp() {
+        long second = System.currentTimeMillis() / 1000;
+        Timestamp t = timestamp;
+        if (t.second != second) {
+            String formatted = TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second).atZone(ZoneId.systemDefault()));
+            t = new Timestamp(second, TextUtils.getAsciiBytes(formatted));
+            timestamp = t;
+        }
+        return t.bytes;
+    }
+
+    /**
+     * Returns a formatted TCP-info element, depending on the success of the IP
+     * address name resolution either with domain name or only the address
+     * literal.
+     *
+     * @param host
+     *            the address of the remote SMTP client.
+     * @param domain
+     *            the host name of the remote SMTP client, if known
+     * @return the formatted TCP-info element as defined by RFC 5321
+     */
+    private static String constructTcpInfo(InetAddress host, Optional<String> domain) {
+        String address = host.getHostAddress();
+        if (domain.isPresent())
+            return domain.get() + " [" + address + "]";
+        else
+            return "[" + address + "]";
+    }
+
+    private static final class Timestamp {
+
+        final long second;
+        final byte[] bytes;
+
+        Timestamp(long second, byte[] bytes) {
+            this.second = second;
+            this.bytes = bytes;
+        }
+
+    }
+
+}
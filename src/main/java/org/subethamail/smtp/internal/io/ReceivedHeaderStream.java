@@ -3,37 +3,19 @@
  */
 package org.subethamail.smtp.internal.io;
 
-import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 import java.util.Optional;
 
-import org.subethamail.smtp.internal.util.TextUtils;
-
-import com.github.davidmoten.guavamini.Preconditions;
-
 /**
  * Prepends a Received: header at the beginning of the input stream.
  */
 public final class ReceivedHeaderStream extends FilterInputStream {
-    ByteArrayInputStream header;
+    private final byte[] header;
+    private int headerPosition;
 
-    /**
-     * Constructor.
-     * 
-     * @param softwareName
-     *            A software name and version, or null if this information
-     *            should not be printed
-     * @param singleRecipient
-     *            The single recipient of the message. If there are more than
-     *            one recipients then this must be null.
-     */
     /**
      * @param in
      * @param heloHost
@@ -46,58 +28,47 @@ public final class ReceivedHeaderStream extends FilterInputStream {
     public ReceivedHeaderStream(InputStream in, Optional<String> heloHost, InetAddress host,
             String whoami, Optional<String> softwareName, String id,
             Optional<String> singleRecipient) {
-        super(in);
-        /*
-         * Looks like: Received: from iamhelo (wasabi.infohazard.org
-         * [209.237.247.14]) by mx.google.com with SMTP id
-         * 32si2669129wfa.13.2009.05.27.18.27.31; Wed, 27 May 2009 18:27:48
-         * -0700 (PDT)
-         */
-        Preconditions.checkNotNull(heloHost);
-        Preconditions.checkNotNull(softwareName);
-        Preconditions.checkNotNull(singleRecipient);
-        DateFormat fmt = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z (z)", Locale.US);
-        String timestamp = fmt.format(new Date());
-
-        StringBuilder header = new StringBuilder();
-        header.append("Received: from ").append(heloHost.orElse(null)).append(" (").append(constructTcpInfo(host)).append(")\r\n");
-        header.append("        by ").append(whoami).append("\r\n");
-        header.append("        with SMTP");
-        if (softwareName.isPresent())
-            header.append(" (").append(softwareName.get()).append(")");
-        header.append(" id ").append(id);
-        if (singleRecipient.isPresent())
-            header.append("\r\n        for ").append(singleRecipient.get());
-        header.append(";\r\n");
-        header.append("        ").append(timestamp).append("\r\n");
-
-        this.header = new ByteArrayInputStream(TextUtils.getAsciiBytes(header.toString()));
+        this(in, heloHost, host, lookupHostName(host), whoami, softwareName, id, singleRecipient);
     }
 
     /**
-     * Returns a formatted TCP-info element, depending on the success of the IP
-     * address name resolution either with domain name or only the address
-     * literal.
+     * Constructor which takes the host name of the client instead of looking
+     * it up.
      * 
-     * @param host
-     *            the address of the remote SMTP client.
-     * @return the formatted TCP-info element as defined by RFC 5321
+     * @param hostName
+     *            the host name of the client, or empty if it is not known
      */
-    private String constructTcpInfo(InetAddress host) {
+    public ReceivedHeaderStream(InputStream in, Optional<String> heloHost, InetAddress host,
+            Optional<String> hostName, String whoami, Optional<String> softwareName, String id,
+            Optional<String> singleRecipient) {
+        this(in, new ReceivedHeader(heloHost, host, hostName, whoami, softwareName).toBytes(id, singleRecipient));
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param header
+     *            the encoded header, see {@link ReceivedHeader#toBytes}
+     */
+    public ReceivedHeaderStream(InputStream in, byte[] header) {
+        super(in);
+        this.header = header;
+    }
+
+    private static Optional<String> lookupHostName(InetAddress host) {
         // if it is not successful it just returns the address
         String domain = host.getCanonicalHostName();
-        String address = host.getHostAddress();
         // check whether the host name resolution was successful
-        if (domain.equals(address))
-            return "[" + address + "]";
+        if (domain.equals(host.getHostAddress()))
+            return Optional.empty();
         else
-            return domain + " [" + address + "]";
+            return Optional.of(domain);
     }
 
     /* */
     @Override
     public int available() throws IOException {
-        return this.header.available() + super.available();
+        return this.header.length - this.headerPosition + super.available();
     }
 
     /* */
@@ -121,8 +92,8 @@ public final class ReceivedHeaderStream extends FilterInputStream {
     /* */
     @Override
     public int read() throws IOException {
-        if (this.header.available() > 0)
-            return this.header.read();
+        if (this.headerPosition < this.header.length)
+            return this.header[this.headerPosition++] & 0xff;
         else
             return super.read();
     }
@@ -130,14 +101,16 @@ public final class ReceivedHeaderStream extends FilterInputStream {
     /* */
     @Override
     public int read(byte[] b, int off, int len) throws IOException {
-        if (this.header.available() > 0) {
-            int countRead = this.header.read(b, off, len);
+        if (this.headerPosition < this.header.length) {
+            int countRead = Math.min(len, this.header.length - this.headerPosition);
+            System.arraycopy(this.header, this.headerPosition, b, off, countRead);
+            this.headerPosition += countRead;
             if (countRead < len) {
                 // We need to add a little extra from the normal stream
                 int remainder = len - countRead;
                 int additionalRead = super.read(b, off + countRead, remainder);
 
-                return countRead + additionalRead;
+                return additionalRead == -1 ? countRead : countRead + additionalRead;
             } else
                 return countRead;
         } else
@@ -0,0 +1,141 @@
+package org.subethamail.smtp.internal.io;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes SMTP replies to the client. Replies are encoded into a buffer which
+ * is reused for the lifetime of the writer and only written to the network
+ * when the buffer is full or on {@link #flush()}, so that the replies to
+ * pipelined commands leave in a single write.
+ * <p>
+ * The writer may be closed by another thread (when the server shuts down)
+ * while the session thread is writing, so access to the buffer is locked.
+ */
+public final class ResponseWriter implements Flushable, Closeable {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * The most frequent replies, already encoded including the CRLF.
+     */
+    private static final Map<String, byte[]> CONSTANT_RESPONSES = new HashMap<>();
+
+    static {
+        for (String response : new String[] { //
+                "250 Ok", //
+                "221 Bye", //
+                "354 End data with <CR><LF>.<CR><LF>", //
+                "421 Timeout waiting for data from client.", //
+                "503 5.5.1 Error: need MAIL command", //
+                "503 Error: need RCPT command" }) {
+            CONSTANT_RESPONSES.put(response, (response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private final OutputStream out;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int count;
+
+    public ResponseWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Appends the reply followed by CRLF to the buffer. Replies should be
+     * US-ASCII, other characters are encoded as UTF-8.
+     */
+    public void write(String response) throws IOException {
+        lock.lock();
+        try {
+            byte[] constant = CONSTANT_RESPONSES.get(response);
+            if (constant != null) {
+                writeBytes(constant, 0, constant.length);
+                return;
+            }
+            int length = response.length();
+            if (BUFFER_SIZE - count < length + 2) {
+                flushBuffer();
+            }
+            if (BUFFER_SIZE < length + 2) {
+                byte[] bytes = (response + "\r\n").getBytes(StandardCharsets.UTF_8);
+                writeBytes(bytes, 0, bytes.length);
+                return;
+            }
+            int start = count;
+            for (int i = 0; i < length; i++) {
+                char c = response.charAt(i);
+                if (c >= 0x80) {
+                    count = start;
+                    byte[] bytes = (response + "\r\n").getBytes(StandardCharsets.UTF_8);
+                    writeBytes(bytes, 0, bytes.length);
+                    return;
+                }
+                buffer[count++] = (byte) c;
+            }
+            buffer[count++] = '\r';
+            buffer[count++] = '\n';
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered replies to the network.
+     */
+    @Override
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            flushBuffer();
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the buffered replies and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            try {
+                flushBuffer();
+            } finally {
+                out.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        if (BUFFER_SIZE - count < len) {
+            flushBuffer();
+        }
+        if (len > BUFFER_SIZE) {
+            out.write(b, off, len);
+        } else {
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            int n = count;
+            count = 0;
+            out.write(buffer, 0, n);
+        }
+    }
+
+}
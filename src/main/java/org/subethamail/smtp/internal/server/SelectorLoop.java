@@ -0,0 +1,198 @@
+package org.subethamail.smtp.internal.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.internal.io.ChannelInputStream;
+
+/**
+ * A thread which multiplexes the connections of many sessions over one
+ * {@link Selector}. It reads whatever the clients send into the
+ * {@link ChannelInputStream} of the session and leaves the processing of
+ * commands to the worker threads of the server's executor. It also detects
+ * connections which stay idle for longer than the connection timeout.
+ */
+public final class SelectorLoop extends Thread {
+
+    private static final Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private final Selector selector;
+
+    private final long idleTimeoutNanos;
+
+    /** Work handed over from other threads, run on this thread */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private volatile boolean running = true;
+
+    public SelectorLoop(String name, int idleTimeoutMs) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.nanoTime();
+        try {
+            while (running) {
+                runTasks();
+                selector.select(SWEEP_INTERVAL_MS);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+                long now = System.nanoTime();
+                if (idleTimeoutNanos > 0
+                        && now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_INTERVAL_MS)) {
+                    lastSweep = now;
+                    sweep(now);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Unexpected exception in selector thread, stopped", e);
+        } finally {
+            running = false;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Cannot close selector", e);
+            }
+            runTasks();
+        }
+    }
+
+    private void read(SelectionKey key) {
+        ChannelInputStream in = (ChannelInputStream) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        readBuffer.clear();
+        int n;
+        try {
+            n = channel.read(readBuffer);
+        } catch (IOException e) {
+            log.debug("Error reading from client", e);
+            n = -1;
+        }
+        if (n < 0) {
+            key.cancel();
+            in.endOfStream();
+        } else if (n > 0) {
+            readBuffer.flip();
+            if (!in.feed(readBuffer)) {
+                key.interestOps(0);
+            }
+        }
+    }
+
+    private void sweep(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                ((ChannelInputStream) key.attachment()).expireIfIdle(now, idleTimeoutNanos);
+            }
+        }
+    }
+
+    /**
+     * Starts reading from the channel into the stream. The channel must be in
+     * non-blocking mode.
+     */
+    public void register(SocketChannel channel, ChannelInputStream in) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, in);
+                in.onDrained(() -> execute(() -> {
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }));
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                in.endOfStream();
+            }
+        });
+    }
+
+    /**
+     * Stops reading from the channel and waits until the channel is no longer
+     * registered with the selector, so that it can be put into blocking mode.
+     */
+    public void deregister(SocketChannel channel) throws IOException {
+        CountDownLatch done = new CountDownLatch(1);
+        execute(() -> {
+            try {
+                SelectionKey key = channel.keyFor(selector);
+                if (key != null) {
+                    key.cancel();
+                    selector.selectNow();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                log.debug("Cannot flush cancelled key", e);
+            } finally {
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while leaving the selector");
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        if (running) {
+            selector.wakeup();
+        } else {
+            runTasks();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("Unexpected exception in selector task", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the loop and waits for it to finish. Sessions still registered are
+     * not closed.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -1,81 +1,102 @@
 package org.subethamail.smtp.internal.server;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
-import javax.annotation.concurrent.GuardedBy;
+import javax.net.ssl.SSLSocket;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
+import org.subethamail.smtp.server.ConnectionFilter;
+import org.subethamail.smtp.server.IoMode;
 import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.smtp.server.Session;
+import org.subethamail.smtp.server.SessionHandler.SessionAcceptance;
 
 /**
  * ServerThread accepts TCP connections to the server socket and starts a new
  * {@link Session} thread for each connection which will handle the connection.
- * On shutdown it terminates not only this thread, but the session threads too.
+ * <p>
+ * The server runs one ServerThread for each of its listeners and accept
+ * threads. These share the {@link SessionRegistry} and the selector threads,
+ * and are shut down by the server with {@link #stopAccepting()} and
+ * {@link #shutdownSessions}, which also ends the session threads.
  */
 public final class ServerThread extends Thread
 {
 	private static final Logger log = LoggerFactory.getLogger(ServerThread.class);
+	private static final SessionAcceptance TOO_MANY_CONNECTIONS = SessionAcceptance.failure(421,
+			"Too many connections, try again later");
 	private final SMTPServer server;
 	private final ServerSocket serverSocket;
         private final ProxyHandler proxyHandler;
 	/**
-	 * A semaphore which is used to prevent accepting new connections by
-	 * blocking this thread if the allowed count of open connections is already
-	 * reached.
+	 * The open connections, possibly shared with other server threads.
 	 */
-	private final Semaphore connectionPermits;
+	private final SessionRegistry sessions;
 	/**
-	 * The list of currently running sessions.
+	 * The local address which is logged, for example "*:25".
 	 */
-	@GuardedBy("this")
-	private final Set<Session> sessionThreads;
+	private final String displayableLocalSocketAddress;
 	/**
 	 * A flag which indicates that this SMTP port and all of its open
 	 * connections are being shut down.
 	 */
 	private volatile boolean shuttingDown;
+	/**
+	 * The selector threads which park idle sessions in {@link IoMode#NIO}
+	 * mode, empty in blocking mode.
+	 */
+	private final List<SelectorLoop> selectorLoops;
+	private int nextSelectorLoop;
 
-	public ServerThread(SMTPServer server, ServerSocket serverSocket, ProxyHandler proxyHandler)
+	/**
+	 * Creates one of the server threads of a server.
+	 *
+	 * @param selectorLoops
+	 *            the started selector threads shared by the server threads,
+	 *            empty in blocking mode
+	 */
+	public ServerThread(SMTPServer server, ServerSocket serverSocket, ProxyHandler proxyHandler,
+			SessionRegistry sessions, List<SelectorLoop> selectorLoops, String name,
+			String displayableLocalSocketAddress)
 	{
-		super(server.getServerThreadName());
+		super(name);
 		this.server = server;
 		this.serverSocket = serverSocket;
 		this.proxyHandler = proxyHandler;
-		// reserve a few places for graceful disconnects with informative
-		// messages
-		int countOfConnectionPermits = server.getMaxConnections() + 10;
-		this.connectionPermits = new Semaphore(countOfConnectionPermits);
-		this.sessionThreads = new HashSet<>(countOfConnectionPermits * 4 / 3 + 1);
+		this.sessions = sessions;
+		this.selectorLoops = Collections.unmodifiableList(selectorLoops);
+		this.displayableLocalSocketAddress = displayableLocalSocketAddress;
 	}
 
 	/**
 	 * This method is called by this thread when it starts up. To safely cause
-	 * this to exit, call {@link #shutdown()}.
+	 * this to exit, call {@link #stopAccepting()}.
 	 */
 	@Override
 	public void run()
 	{
-		MDC.put("smtpServerLocalSocketAddress", server.getDisplayableLocalSocketAddress());
-		log.info("SMTP server {} started", server.getDisplayableLocalSocketAddress());
+		MDC.put("smtpServerLocalSocketAddress", displayableLocalSocketAddress);
+		log.info("SMTP server {} started", displayableLocalSocketAddress);
 
 		try
 		{
 			runAcceptLoop();
 			log.info("SMTP server {} stopped accepting connections",
-					server.getDisplayableLocalSocketAddress());
+					displayableLocalSocketAddress);
 		}
 		catch (RuntimeException e)
 		{
@@ -93,6 +114,36 @@ public final class ServerThread extends Thread
 		}
 	}
 
+	/**
+	 * Starts the selector threads of the server, if it runs in
+	 * {@link IoMode#NIO} mode.
+	 *
+	 * @return the started threads, empty in blocking mode
+	 */
+	public static List<SelectorLoop> startSelectorLoops(SMTPServer server, String namePrefix)
+	{
+		List<SelectorLoop> loops = new ArrayList<>();
+		if (server.getIoMode() != IoMode.NIO)
+			return loops;
+		for (int i = 0; i < server.getSelectorThreads(); i++)
+		{
+			SelectorLoop loop;
+			try
+			{
+				loop = new SelectorLoop(namePrefix + " selector-" + i, server.getConnectionTimeout());
+			}
+			catch (IOException e)
+			{
+				for (SelectorLoop started : loops)
+					started.shutdown();
+				throw new RuntimeException("Cannot open selector", e);
+			}
+			loop.start();
+			loops.add(loop);
+		}
+		return loops;
+	}
+
 	/**
 	 * Accept connections and run them in session threads until shutdown.
 	 */
@@ -103,7 +154,7 @@ public final class ServerThread extends Thread
 			try
 			{
 				// block if too many connections are open
-				connectionPermits.acquire();
+				sessions.acquirePermit();
 			}
 			catch (InterruptedException consumed)
 			{
@@ -117,7 +168,7 @@ public final class ServerThread extends Thread
 			}
 			catch (IOException e)
 			{
-				connectionPermits.release();
+				sessions.releasePermit();
 				// it also happens during shutdown, when the socket is closed
 				if (!this.shuttingDown)
 				{
@@ -135,14 +186,27 @@ public final class ServerThread extends Thread
 				continue;
 			}
 
+			if (rejectEarly(socket))
+			{
+				sessions.releasePermit();
+				continue;
+			}
+
 			Session session = null;
 			try
 			{
 				session = new Session(server, this, socket, proxyHandler);
+				// sockets from a custom, non channel based server socket
+				// factory are served in blocking mode
+				if (!selectorLoops.isEmpty() && socket.getChannel() != null)
+				{
+					SessionAccess.get().attach(session, selectorLoops.get(nextSelectorLoop));
+					nextSelectorLoop = (nextSelectorLoop + 1) % selectorLoops.size();
+				}
 			}
 			catch (IOException e)
 			{
-				connectionPermits.release();
+				sessions.releasePermit();
 				log.error("Error while starting a connection", e);
 				try
 				{
@@ -157,20 +221,13 @@ public final class ServerThread extends Thread
 
 			// add thread before starting it,
 			// because it will check the count of sessions
-			synchronized (this)
-			{
-				this.sessionThreads.add(session);
-			}
+			sessions.add(session);
 
 			try {
 				server.getExecutorService().execute(session);
 			}
 			catch (RejectedExecutionException e) {
-				connectionPermits.release();
-				synchronized (this)
-				{
-					this.sessionThreads.remove(session);
-				}
+				sessions.remove(session);
 				log.error("Error while executing a session", e);
 				try
 				{
@@ -186,17 +243,75 @@ public final class ServerThread extends Thread
 	}
 
 	/**
-	 * Closes the server socket and all client sockets.
+	 * Applies the connection limit and the {@link ConnectionFilter} to a new
+	 * connection before a session is created for it. A rejected connection is
+	 * answered and closed right here on the accept thread. Connections which
+	 * start with a PROXY header or a TLS handshake are left to the session,
+	 * because the reply would have to wait for the client.
+	 *
+	 * @return true if the connection was rejected and closed
 	 */
-	public void shutdown()
+	private boolean rejectEarly(Socket socket)
+	{
+		if (proxyHandler != ProxyHandler.NOP || socket instanceof SSLSocket)
+			return false;
+
+		SessionAcceptance acceptance;
+		if (sessions.getNumberOfConnections() >= server.getMaxConnections())
+		{
+			acceptance = TOO_MANY_CONNECTIONS;
+		}
+		else
+		{
+			try
+			{
+				acceptance = server.getConnectionFilter()
+						.accept((InetSocketAddress) socket.getRemoteSocketAddress());
+			}
+			catch (RuntimeException e)
+			{
+				log.error("Connection filter failed, closing connection", e);
+				closeQuietly(socket);
+				return true;
+			}
+		}
+		if (acceptance.accepted())
+			return false;
+
+		log.debug("SMTP connection from {} rejected: {} {}", socket.getRemoteSocketAddress(),
+				acceptance.errorCode(), acceptance.errorMessage());
+		try
+		{
+			// a fresh socket has an empty send buffer, this does not block
+			OutputStream out = socket.getOutputStream();
+			out.write((acceptance.errorCode() + " " + acceptance.errorMessage() + "\r\n")
+					.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+		catch (IOException e)
+		{
+			log.debug("Cannot send rejection", e);
+		}
+		closeQuietly(socket);
+		return true;
+	}
+
+	private static void closeQuietly(Socket socket)
 	{
-		// First make sure we aren't accepting any new connections
-		shutdownServerThread();
-		// Shut down any open connections.
-		shutdownSessions();
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			log.debug("Cannot close socket after rejection", e);
+		}
 	}
 
-	private void shutdownServerThread()
+	/**
+	 * Closes the server socket and waits until this thread has finished.
+	 */
+	public void stopAccepting()
 	{
 		shuttingDown = true;
 		closeServerSocket();
@@ -224,25 +339,19 @@ public final class ServerThread extends Thread
 		}
 	}
 
-	private void shutdownSessions()
+	/**
+	 * Ends the open sessions and waits for the executor to terminate.
+	 */
+	public static void shutdownSessions(ExecutorService executorService, SessionRegistry sessions)
 	{
-		// Copy the sessionThreads collection so the guarding lock on this
-		// instance can be released before calling the Session.shutdown methods.
-		// This is necessary to avoid a deadlock, because the terminating
-		// session threads call back the sessionEnded function in this instance,
-		// which locks this instance.
-		List<Session> sessionsToBeClosed;
-		synchronized (this) {
-			sessionsToBeClosed = new ArrayList<>(sessionThreads);
-		}
-		for (Session sessionThread : sessionsToBeClosed)
+		for (Session session : sessions.snapshot())
 		{
-			sessionThread.quit();
+			session.quit();
 		}
 
-		server.getExecutorService().shutdown();
+		executorService.shutdown();
 		try {
-			server.getExecutorService().awaitTermination(Long.MAX_VALUE,
+			executorService.awaitTermination(Long.MAX_VALUE,
 					TimeUnit.NANOSECONDS);
 		} catch (InterruptedException e) {
 			log.warn("Interrupted waiting for termination of session threads",
@@ -251,14 +360,14 @@ public final class ServerThread extends Thread
 		}
 	}
 
-	public synchronized boolean hasTooManyConnections()
+	public boolean hasTooManyConnections()
 	{
-		return sessionThreads.size() > server.getMaxConnections();
+		return sessions.hasTooManyConnections();
 	}
 
-	public synchronized int getNumberOfConnections()
+	public int getNumberOfConnections()
 	{
-		return sessionThreads.size();
+		return sessions.getNumberOfConnections();
 	}
 
 	/**
@@ -267,10 +376,6 @@ public final class ServerThread extends Thread
 	 */
 	public void sessionEnded(Session session)
 	{
-		synchronized (this)
-		{
-			sessionThreads.remove(session);
-		}
-		connectionPermits.release();
+		sessions.remove(session);
 	}
 }
@@ -0,0 +1,46 @@
+package org.subethamail.smtp.internal.server;
+
+import java.io.IOException;
+
+import org.subethamail.smtp.server.Session;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Gives the internal server classes access to the parts of {@link Session}
+ * which are not public API, namely moving a session on and off a
+ * {@link SelectorLoop}. {@link Session} installs the only instance when it is
+ * initialized.
+ */
+public abstract class SessionAccess {
+
+    private static volatile SessionAccess instance;
+
+    protected SessionAccess() {
+    }
+
+    public static void set(SessionAccess access) {
+        Preconditions.checkArgument(instance == null, "session access already set");
+        instance = access;
+    }
+
+    /**
+     * Returns the instance, which is set once any {@link Session} exists.
+     */
+    public static SessionAccess get() {
+        return instance;
+    }
+
+    /**
+     * Switches the session to event driven mode, see
+     * {@code Session.attach(SelectorLoop)}.
+     */
+    public abstract void attach(Session session, SelectorLoop loop) throws IOException;
+
+    /**
+     * Puts the session back into blocking mode, see
+     * {@code Session.detachFromSelector()}.
+     */
+    public abstract void detachFromSelector(Session session) throws IOException;
+
+}
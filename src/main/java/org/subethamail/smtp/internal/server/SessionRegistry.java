@@ -0,0 +1,113 @@
+package org.subethamail.smtp.internal.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.subethamail.smtp.server.Session;
+
+/**
+ * The open connections of a server, shared by all of its accept threads so
+ * that the connection limit applies to the server as a whole.
+ * <p>
+ * Sessions register and unregister themselves from many threads at once, so
+ * the registry holds no lock: the sessions are kept in a concurrent set and
+ * counted separately, because the size of a concurrent set is not a constant
+ * time operation.
+ */
+public final class SessionRegistry
+{
+	private final int maxConnections;
+
+	/**
+	 * A semaphore which is used to prevent accepting new connections by
+	 * blocking the accept threads if the allowed count of open connections is
+	 * already reached.
+	 */
+	private final Semaphore connectionPermits;
+
+	/**
+	 * The set of currently running sessions.
+	 */
+	private final Set<Session> sessions;
+
+	/**
+	 * The size of {@link #sessions}.
+	 */
+	private final AtomicInteger count = new AtomicInteger();
+
+	public SessionRegistry(int maxConnections)
+	{
+		this.maxConnections = maxConnections;
+		// reserve a few places for graceful disconnects with informative
+		// messages
+		int countOfConnectionPermits = maxConnections + 10;
+		this.connectionPermits = new Semaphore(countOfConnectionPermits);
+		this.sessions = ConcurrentHashMap.newKeySet(countOfConnectionPermits);
+	}
+
+	/**
+	 * Blocks until a new connection may be accepted.
+	 */
+	public void acquirePermit() throws InterruptedException
+	{
+		connectionPermits.acquire();
+	}
+
+	/**
+	 * Gives back a permit which did not end up in a session.
+	 */
+	public void releasePermit()
+	{
+		connectionPermits.release();
+	}
+
+	public void add(Session session)
+	{
+		if (sessions.add(session))
+		{
+			count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes a session which ended or could not be started and releases its
+	 * permit. Removing a session which is not registered, e.g. when it ends
+	 * twice, does nothing, so the permits never exceed the limit.
+	 */
+	public void remove(Session session)
+	{
+		if (sessions.remove(session))
+		{
+			count.decrementAndGet();
+			connectionPermits.release();
+		}
+	}
+
+	int availablePermits()
+	{
+		return connectionPermits.availablePermits();
+	}
+
+	public boolean hasTooManyConnections()
+	{
+		return count.get() > maxConnections;
+	}
+
+	public int getNumberOfConnections()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Returns a copy of the open sessions, so the caller can end them while
+	 * they remove themselves.
+	 */
+	public List<Session> snapshot()
+	{
+		return new ArrayList<>(sessions);
+	}
+}
@@ -0,0 +1,53 @@
+package org.subethamail.smtp.internal.util;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Access to the {@code SO_REUSEPORT} socket option of Java 9+ without
+ * requiring a newer Java version than 8 to compile or run the rest of the
+ * library.
+ */
+public final class ReusePort {
+
+    private ReusePort() {
+        // prevent instantiation
+    }
+
+    /**
+     * {@code StandardSocketOptions.SO_REUSEPORT}, or null before Java 9.
+     */
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookup();
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookup() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException | SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens an unbound server socket channel with {@code SO_REUSEPORT}
+     * enabled, so that several of them can be bound to the same port.
+     *
+     * @return the channel, or null if the JVM or the operating system does not
+     *         support the option
+     */
+    public static ServerSocketChannel openServerSocketChannel() throws IOException {
+        if (SO_REUSEPORT == null) {
+            return null;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        if (!channel.supportedOptions().contains(SO_REUSEPORT)) {
+            channel.close();
+            return null;
+        }
+        channel.setOption(SO_REUSEPORT, true);
+        return channel;
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.subethamail.smtp.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.function.Predicate;
+
+import org.subethamail.smtp.server.SessionHandler.SessionAcceptance;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Decides whether a new connection is served, knowing only the address of the
+ * client. Unlike a {@link SessionHandler} it runs on the thread accepting the
+ * connections, before a {@link Session} is created or a thread of the executor
+ * is used, so a rejected connection costs little more than the reply and the
+ * close. It must therefore be fast and must not block.
+ * <p>
+ * If the server reads a PROXY protocol header, the address of the client is
+ * only known after reading the header, and on implicit TLS connections a reply
+ * can only be sent after the handshake. In these cases the filter runs in the
+ * session instead, before the {@link SessionHandler}.
+ */
+@FunctionalInterface
+public interface ConnectionFilter {
+
+    /**
+     * Checks a new connection.
+     *
+     * @param remoteAddress
+     *            the address of the client
+     * @return whether the connection is accepted, if not the code and message
+     *         of the reply sent to the client before closing the connection
+     */
+    SessionAcceptance accept(InetSocketAddress remoteAddress);
+
+    public static ConnectionFilter acceptAll() {
+        return remoteAddress -> SessionAcceptance.success();
+    }
+
+    /**
+     * Returns a filter which rejects the matching client addresses with
+     * {@code 554 5.7.1 Access denied}.
+     *
+     * @param blocked
+     *            matches the addresses to reject, for example a blocklist
+     * @return the filter
+     */
+    public static ConnectionFilter reject(Predicate<? super InetAddress> blocked) {
+        Preconditions.checkNotNull(blocked, "blocked cannot be null");
+        SessionAcceptance rejection = SessionAcceptance.failure(554, "5.7.1 Access denied");
+        return remoteAddress -> blocked.test(remoteAddress.getAddress()) ? rejection : SessionAcceptance.success();
+    }
+
+}
@@ -0,0 +1,352 @@
+package org.subethamail.smtp.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Looks up the host names of clients (reverse DNS) for the Received header
+ * without blocking the session. The lookup is started when the client
+ * connects and runs on a few background threads; when the message arrives the
+ * session takes the name if the lookup has finished by then, otherwise the
+ * header contains only the address.
+ * <p>
+ * Results are cached, names for the positive TTL and failed lookups for the
+ * negative TTL, and the cache holds at most a fixed number of addresses.
+ * <p>
+ * A slow DNS server cannot make the resolver pile up work: at most 100
+ * lookups per thread wait to run, further addresses are not looked up until a
+ * later connection, and a lookup which has not finished within the lookup
+ * timeout counts as failed. The thread of a lookup which timed out may stay
+ * busy until the system resolver gives up, but lookups which timed out while
+ * waiting are not started.
+ * <p>
+ * The counters ({@link #getHits()}, {@link #getMisses()},
+ * {@link #getNotReady()}, {@link #getTimeouts()}, {@link #getRejected()})
+ * show how well the cache and the resolver perform.
+ */
+public final class HostNameResolver {
+
+    private static final Logger log = LoggerFactory.getLogger(HostNameResolver.class);
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static final int MAX_QUEUED_LOOKUPS_PER_THREAD = 100;
+
+    private final int maxEntries;
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+    private final long lookupTimeoutNanos;
+    private final ExecutorService executor;
+    private final Function<InetAddress, Optional<String>> lookup;
+
+    private final Map<InetAddress, Entry> cache = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder notReady = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Returns a resolver with two lookup threads caching up to 10000
+     * addresses, names for one hour and failures for five minutes, and
+     * giving up on lookups after ten seconds.
+     */
+    public static HostNameResolver create() {
+        return create(2, 10000, 1, TimeUnit.HOURS, 5, TimeUnit.MINUTES, 10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns a resolver with the specified settings.
+     *
+     * @param threads
+     *            the maximum number of concurrent lookups
+     * @param maxEntries
+     *            the maximum number of cached addresses
+     * @param positiveTtl
+     *            how long a host name is cached
+     * @param positiveTtlUnit
+     *            the unit of positiveTtl
+     * @param negativeTtl
+     *            how long an address without a name is cached
+     * @param negativeTtlUnit
+     *            the unit of negativeTtl
+     * @return the resolver
+     */
+    public static HostNameResolver create(int threads, int maxEntries, long positiveTtl, TimeUnit positiveTtlUnit,
+            long negativeTtl, TimeUnit negativeTtlUnit) {
+        return create(threads, maxEntries, positiveTtl, positiveTtlUnit, negativeTtl, negativeTtlUnit, 10,
+                TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns a resolver with the specified settings.
+     *
+     * @param threads
+     *            the maximum number of concurrent lookups
+     * @param maxEntries
+     *            the maximum number of cached addresses
+     * @param positiveTtl
+     *            how long a host name is cached
+     * @param positiveTtlUnit
+     *            the unit of positiveTtl
+     * @param negativeTtl
+     *            how long an address without a name is cached
+     * @param negativeTtlUnit
+     *            the unit of negativeTtl
+     * @param lookupTimeout
+     *            how long after it was requested a lookup counts as failed
+     * @param lookupTimeoutUnit
+     *            the unit of lookupTimeout
+     * @return the resolver
+     */
+    public static HostNameResolver create(int threads, int maxEntries, long positiveTtl, TimeUnit positiveTtlUnit,
+            long negativeTtl, TimeUnit negativeTtlUnit, long lookupTimeout, TimeUnit lookupTimeoutUnit) {
+        return new HostNameResolver(threads, maxEntries, positiveTtlUnit.toNanos(positiveTtl),
+                negativeTtlUnit.toNanos(negativeTtl), lookupTimeoutUnit.toNanos(lookupTimeout),
+                HostNameResolver::lookup);
+    }
+
+    HostNameResolver(int threads, int maxEntries, long positiveTtlNanos, long negativeTtlNanos,
+            long lookupTimeoutNanos, Function<InetAddress, Optional<String>> lookup) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        Preconditions.checkArgument(maxEntries > 0, "maxEntries must be positive");
+        Preconditions.checkArgument(positiveTtlNanos >= 0 && negativeTtlNanos >= 0, "ttl cannot be negative");
+        Preconditions.checkArgument(lookupTimeoutNanos > 0, "lookupTimeout must be positive");
+        this.maxEntries = maxEntries;
+        this.positiveTtlNanos = positiveTtlNanos;
+        this.negativeTtlNanos = negativeTtlNanos;
+        this.lookupTimeoutNanos = lookupTimeoutNanos;
+        this.lookup = lookup;
+        // idle threads time out, so a resolver needs no shutdown
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * MAX_QUEUED_LOOKUPS_PER_THREAD), runnable -> {
+                    Thread thread = new Thread(runnable,
+                            HostNameResolver.class.getSimpleName() + "-" + THREAD_COUNT.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * Starts looking up the host name of the address unless it is cached
+     * already.
+     *
+     * @param address
+     *            the address of a client
+     */
+    public void prefetch(InetAddress address) {
+        Entry entry = cache.get(address);
+        long now = System.nanoTime();
+        checkTimeout(entry, now);
+        if (entry != null && !entry.isExpired(now)) {
+            hits.increment();
+            return;
+        }
+        misses.increment();
+        startLookup(address);
+    }
+
+    /**
+     * Returns the host name of the address if it is known now, without
+     * waiting for a lookup in progress.
+     *
+     * @param address
+     *            the address of a client
+     * @return the host name, or empty if it is not known (yet)
+     */
+    public Optional<String> getIfReady(InetAddress address) {
+        Entry entry = cache.get(address);
+        long now = System.nanoTime();
+        checkTimeout(entry, now);
+        if (entry == null || entry.isExpired(now)) {
+            // evicted or never prefetched, the next message will have it
+            startLookup(address);
+            notReady.increment();
+            return Optional.empty();
+        }
+        Optional<String> name = entry.future.getNow(null);
+        if (name == null) {
+            notReady.increment();
+            return Optional.empty();
+        }
+        return name;
+    }
+
+    /**
+     * Fails the lookup of the entry if it is still running after the lookup
+     * timeout, caching the failure for the negative TTL.
+     */
+    private void checkTimeout(Entry entry, long now) {
+        if (entry != null && now - entry.startedAt > lookupTimeoutNanos
+                && entry.complete(Optional.empty(), now + negativeTtlNanos)) {
+            timeouts.increment();
+        }
+    }
+
+    /**
+     * @return the number of prefetched addresses which were found in the
+     *         cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of prefetched addresses which had to be looked up
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of times the host name was needed before the lookup
+     *         finished, so the Received header contains only the address
+     */
+    public long getNotReady() {
+        return notReady.sum();
+    }
+
+    /**
+     * @return the number of lookups which did not finish within the lookup
+     *         timeout
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return the number of lookups which were not started because too many
+     *         were waiting already
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of cached addresses, including lookups in progress
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    private void startLookup(InetAddress address) {
+        Entry entry = new Entry(System.nanoTime());
+        Entry existing = cache.putIfAbsent(address, entry);
+        if (existing != null) {
+            if (!existing.isExpired(System.nanoTime()) || !cache.replace(address, existing, entry)) {
+                // another thread started a lookup
+                return;
+            }
+        }
+        if (cache.size() > maxEntries) {
+            evict();
+        }
+        try {
+            executor.execute(() -> {
+                checkTimeout(entry, System.nanoTime());
+                if (entry.future.isDone()) {
+                    // timed out while waiting
+                    return;
+                }
+                Optional<String> result;
+                try {
+                    result = lookup.apply(address);
+                } catch (RuntimeException e) {
+                    log.debug("Cannot look up " + address, e);
+                    result = Optional.empty();
+                }
+                entry.complete(result,
+                        System.nanoTime() + (result.isPresent() ? positiveTtlNanos : negativeTtlNanos));
+            });
+        } catch (RejectedExecutionException e) {
+            // too many lookups waiting, leave it to a later connection
+            rejected.increment();
+            cache.remove(address, entry);
+            entry.complete(Optional.empty(), System.nanoTime());
+        }
+    }
+
+    /**
+     * Removes the expired entries and, if the cache is still too big, some
+     * others.
+     */
+    private void evict() {
+        long now = System.nanoTime();
+        cache.values().removeIf(entry -> entry.isExpired(now));
+        Iterator<Entry> it = cache.values().iterator();
+        while (cache.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static Optional<String> lookup(InetAddress address) {
+        try {
+            // a copy without the name the address may already carry
+            InetAddress copy = InetAddress.getByAddress(address.getAddress());
+            String name = copy.getCanonicalHostName();
+            // if it is not successful it just returns the address
+            return name.equals(copy.getHostAddress()) ? Optional.empty() : Optional.of(name);
+        } catch (UnknownHostException e) {
+            log.debug("Cannot look up " + address, e);
+            return Optional.empty();
+        }
+    }
+
+    private static final class Entry {
+
+        final CompletableFuture<Optional<String>> future = new CompletableFuture<>();
+
+        final long startedAt;
+
+        /**
+         * Valid once the future is complete.
+         */
+        volatile long expiresAt;
+
+        Entry(long startedAt) {
+            this.startedAt = startedAt;
+        }
+
+        boolean isExpired(long now) {
+            return future.isDone() && now - expiresAt > 0;
+        }
+
+        /**
+         * Completes the lookup unless it is complete already, e.g. a lookup
+         * which timed out and then finished.
+         *
+         * @return true if this call completed it
+         */
+        synchronized boolean complete(Optional<String> name, long expiresAt) {
+            if (future.isDone()) {
+                return false;
+            }
+            this.expiresAt = expiresAt;
+            return future.complete(name);
+        }
+
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.subethamail.smtp.server;
+
+/**
+ * The way an {@link SMTPServer} waits for input from its clients.
+ */
+public enum IoMode {
+
+    /**
+     * Every session owns a thread of the executor for its whole lifetime and
+     * blocks in socket reads while waiting for the client.
+     */
+    BLOCKING,
+
+    /**
+     * Sessions waiting for the next command are parked on a few selector
+     * threads. A session only occupies a thread of the executor while a
+     * command is being processed (including the DATA transfer that follows
+     * it). Sessions which start TLS continue in blocking mode after the
+     * handshake.
+     */
+    NIO;
+
+}
@@ -0,0 +1,109 @@
+package org.subethamail.smtp.server;
+
+import java.net.InetAddress;
+import java.util.Optional;
+
+import javax.net.ssl.SSLContext;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * An additional address on which an {@link SMTPServer} accepts connections,
+ * for example the submission port 587 or the implicit TLS port 465 next to
+ * port 25. All listeners of a server share its executor, connection limit,
+ * handlers and settings.
+ * <p>
+ * Instances are immutable, the methods which change a setting return a
+ * modified copy.
+ */
+public final class Listener {
+
+    private final Optional<InetAddress> bindAddress;
+    private final int port;
+    private final int acceptThreads;
+    private final Optional<ServerSocketCreator> serverSocketCreator;
+
+    private Listener(Optional<InetAddress> bindAddress, int port, int acceptThreads,
+            Optional<ServerSocketCreator> serverSocketCreator) {
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.acceptThreads = acceptThreads;
+        this.serverSocketCreator = serverSocketCreator;
+    }
+
+    /**
+     * Returns a listener on the specified port of all interfaces, with one
+     * accept thread and the server socket factory of the server.
+     */
+    public static Listener port(int port) {
+        return new Listener(Optional.empty(), port, 1, Optional.empty());
+    }
+
+    public Listener bindAddress(InetAddress bindAddress) {
+        Preconditions.checkNotNull(bindAddress, "bindAddress cannot be null");
+        return new Listener(Optional.of(bindAddress), port, acceptThreads, serverSocketCreator);
+    }
+
+    /**
+     * Sets the number of threads accepting connections on this listener. If
+     * the operating system supports {@code SO_REUSEPORT} (Linux, BSD) each
+     * thread gets its own server socket bound to the same port and the kernel
+     * spreads the incoming connections over them, otherwise the threads share
+     * one server socket. Sockets from a custom server socket factory are
+     * always shared. Default is 1.
+     *
+     * @param acceptThreads
+     *            the number of accept threads, must be positive
+     * @return a copy of this listener with the new setting
+     */
+    public Listener acceptThreads(int acceptThreads) {
+        Preconditions.checkArgument(acceptThreads > 0, "acceptThreads must be positive");
+        return new Listener(bindAddress, port, acceptThreads, serverSocketCreator);
+    }
+
+    /**
+     * Sets the factory of the server socket of this listener, overriding the
+     * one of the server. Use this for example to accept implicit TLS
+     * connections on port 465 with an {@code SSLServerSocketFactory}.
+     */
+    public Listener serverSocketFactory(ServerSocketCreator serverSocketCreator) {
+        Preconditions.checkNotNull(serverSocketCreator, "serverSocketCreator cannot be null");
+        return new Listener(bindAddress, port, acceptThreads, Optional.of(serverSocketCreator));
+    }
+
+    /**
+     * Accepts implicit TLS connections using the server socket factory of the
+     * context.
+     */
+    public Listener serverSocketFactory(SSLContext context) {
+        return serverSocketFactory(context.getServerSocketFactory()::createServerSocket);
+    }
+
+    /** empty means all interfaces */
+    public Optional<InetAddress> getBindAddress() {
+        return bindAddress;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getAcceptThreads() {
+        return acceptThreads;
+    }
+
+    /** empty means the server socket factory of the server */
+    public Optional<ServerSocketCreator> getServerSocketCreator() {
+        return serverSocketCreator;
+    }
+
+    public String getDisplayableLocalSocketAddress() {
+        return bindAddress.map(InetAddress::toString).orElse("*") + ":" + port;
+    }
+
+    @Override
+    public String toString() {
+        return "Listener[" + getDisplayableLocalSocketAddress() + ", acceptThreads=" + acceptThreads + "]";
+    }
+
+}
@@ -6,7 +6,11 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -32,7 +36,11 @@ import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
 import org.subethamail.smtp.internal.command.MailCommand;
 import org.subethamail.smtp.internal.server.AcceptAllSessionHandler;
 import org.subethamail.smtp.internal.server.CommandHandler;
+import org.subethamail.smtp.internal.server.SelectorLoop;
 import org.subethamail.smtp.internal.server.ServerThread;
+import org.subethamail.smtp.internal.server.SessionRegistry;
+import org.subethamail.smtp.internal.util.ReusePort;
+import org.subethamail.smtp.internal.util.VirtualThreads;
 
 import com.github.davidmoten.guavamini.Preconditions;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
@@ -139,13 +147,36 @@ public final class SMTPServer implements SSLSocketCreator {
 
     private final SessionHandler sessionHandler;
 
+    private final ConnectionFilter connectionFilter;
+
+    private final HostNameResolver hostNameResolver;
+
     private final ProxyHandler proxyHandler;
 
+    private final IoMode ioMode;
+
+    private final int selectorThreads;
+
+    private final int acceptThreads;
+
+    private final List<Listener> listeners;
+
     // mutable state
 
-    /** The thread listening on the server socket. */
+    /**
+     * The threads accepting connections on the server sockets, empty if the
+     * server is not running.
+     */
+    @GuardedBy("this")
+    private List<ServerThread> serverThreads = Collections.emptyList();
+
+    /** The open connections of all listeners. */
     @GuardedBy("this")
-    private ServerThread serverThread;
+    private SessionRegistry sessions;
+
+    /** The selector threads shared by all listeners. */
+    @GuardedBy("this")
+    private List<SelectorLoop> selectorLoops = Collections.emptyList();
 
     private final Function<SMTPServer, String> serverThreadName;
 
@@ -239,6 +270,10 @@ public final class SMTPServer implements SSLSocketCreator {
 
         private SessionHandler sessionHandler = AcceptAllSessionHandler.INSTANCE;
 
+        private ConnectionFilter connectionFilter = ConnectionFilter.acceptAll();
+
+        private Optional<HostNameResolver> hostNameResolver = Optional.empty();
+
         private CommandHandler commandHandler = new CommandHandler();
 
         /* No proxy handling attempt by default */
@@ -251,6 +286,14 @@ public final class SMTPServer implements SSLSocketCreator {
         private Function<SMTPServer, String> serverThreadNameProvider = server ->
                 ServerThread.class.getName() + " " + server.getDisplayableLocalSocketAddress();
 
+        private IoMode ioMode = IoMode.BLOCKING;
+
+        private int selectorThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        private int acceptThreads = 1;
+
+        private final List<Listener> listeners = new ArrayList<>();
+
         public Builder bindAddress(InetAddress bindAddress) {
             Preconditions.checkNotNull(bindAddress, "bindAddress cannot be null");
             this.bindAddress = Optional.of(bindAddress);
@@ -350,6 +393,23 @@ public final class SMTPServer implements SSLSocketCreator {
             return this;
         }
 
+        /**
+         * Runs each client connection on its own virtual thread instead of a
+         * pooled platform thread, so that the number of concurrent connections
+         * (see {@link #maxConnections(int)}) can be raised far beyond what
+         * platform threads allow without changing handler code. Message
+         * handlers should avoid blocking while holding a monitor, which pins
+         * the carrier thread.
+         * 
+         * @return this
+         * @throws UnsupportedOperationException
+         *             if the JVM does not support virtual threads (Java 21 or
+         *             later is required)
+         */
+        public Builder virtualThreads() {
+            return executorService(VirtualThreads.newVirtualThreadPerTaskExecutor());
+        }
+
         public Builder enableTLS(boolean value) {
             this.enableTLS = value;
             return this;
@@ -535,6 +595,27 @@ public final class SMTPServer implements SSLSocketCreator {
             return this;
         }
 
+        /**
+         * Sets the {@link ConnectionFilter} which decides by the client address
+         * whether a connection is served, before a session is created.
+         */
+        public Builder connectionFilter(ConnectionFilter connectionFilter) {
+            Preconditions.checkNotNull(connectionFilter, "connectionFilter cannot be null");
+            this.connectionFilter = connectionFilter;
+            return this;
+        }
+
+        /**
+         * Sets the {@link HostNameResolver} which looks up the host names of
+         * clients for the Received header. By default each server has its own
+         * resolver created by {@link HostNameResolver#create()}.
+         */
+        public Builder hostNameResolver(HostNameResolver hostNameResolver) {
+            Preconditions.checkNotNull(hostNameResolver, "hostNameResolver cannot be null");
+            this.hostNameResolver = Optional.of(hostNameResolver);
+            return this;
+        }
+
         /**
          * Sets the {@link ProxyHandler} which will handle proxy packets before SMTP protocol.
          */
@@ -606,16 +687,91 @@ public final class SMTPServer implements SSLSocketCreator {
             return this;
         }
 
+        /**
+         * Sets how the server waits for input from clients. Default is
+         * {@link IoMode#BLOCKING}.
+         * <p>
+         * In {@link IoMode#NIO} mode idle sessions are parked on a few selector
+         * threads instead of each holding a thread of the executor, so many
+         * idle or slow clients don't need many threads. The server socket is
+         * then opened from a {@link ServerSocketChannel} unless a custom
+         * server socket factory is set; sockets which are not backed by a
+         * channel (for example SSL server sockets) are served in blocking mode
+         * anyway.
+         * 
+         * @param ioMode
+         *            the I/O mode
+         * @return this
+         */
+        public Builder ioMode(IoMode ioMode) {
+            Preconditions.checkNotNull(ioMode, "ioMode cannot be null");
+            this.ioMode = ioMode;
+            return this;
+        }
+
+        /**
+         * Sets the number of selector threads used in {@link IoMode#NIO} mode.
+         * Default is half the number of available processors, at least one.
+         * 
+         * @param selectorThreads
+         *            number of selector threads, must be positive
+         * @return this
+         */
+        public Builder selectorThreads(int selectorThreads) {
+            Preconditions.checkArgument(selectorThreads > 0, "selectorThreads must be positive");
+            this.selectorThreads = selectorThreads;
+            return this;
+        }
+
+        /**
+         * Sets the number of threads accepting connections on the port of the
+         * server. If the operating system supports {@code SO_REUSEPORT}
+         * (Linux, BSD) and no custom server socket factory is set, each thread
+         * gets its own server socket bound to the same port and the kernel
+         * spreads the incoming connections over them, otherwise the threads
+         * share one server socket. Default is 1.
+         * 
+         * @param acceptThreads
+         *            number of accept threads, must be positive
+         * @return this
+         */
+        public Builder acceptThreads(int acceptThreads) {
+            Preconditions.checkArgument(acceptThreads > 0, "acceptThreads must be positive");
+            this.acceptThreads = acceptThreads;
+            return this;
+        }
+
+        /**
+         * Adds a port on which the server accepts connections in addition to
+         * its own port, for example the submission port 587 next to port 25.
+         * All ports share the executor, the connection limit and the handlers
+         * of the server.
+         * 
+         * @param listener
+         *            the additional port
+         * @return this
+         */
+        public Builder listener(Listener listener) {
+            Preconditions.checkNotNull(listener, "listener cannot be null");
+            this.listeners.add(listener);
+            return this;
+        }
+
         public SMTPServer build() {
             if (listener.isPresent()) {
                 messageHandlerFactory(new BasicMessageHandlerFactory(listener.get(), maxMessageSize));
             }
+            if (ioMode == IoMode.NIO && serverSocketCreator == SERVER_SOCKET_CREATOR_DEFAULT) {
+                serverSocketCreator = SERVER_SOCKET_CREATOR_NIO;
+            }
 
             return new SMTPServer(hostName, bindAddress, port, backlog, softwareName, messageHandlerFactory,
                     authenticationHandlerFactory, executorService, enableTLS, hideTLS, requireTLS, requireAuth,
                     showAuthCapabilitiesBeforeSTARTTLS, disableReceivedHeaders, maxConnections, connectionTimeoutMs,
-                    maxRecipients, maxMessageSize, sessionIdFactory, sessionHandler, proxyHandler, startTlsSocketCreator,
-                    serverSocketCreator, serverThreadNameProvider, commandHandler);
+                    maxRecipients, maxMessageSize, sessionIdFactory, sessionHandler, connectionFilter,
+                    hostNameResolver.orElseGet(HostNameResolver::create), proxyHandler, startTlsSocketCreator,
+                    serverSocketCreator, serverThreadNameProvider, commandHandler, ioMode,
+                    selectorThreads, acceptThreads, listeners);
         }
 
     }
@@ -626,9 +782,11 @@ public final class SMTPServer implements SSLSocketCreator {
             Optional<ExecutorService> executorService, boolean enableTLS, boolean hideTLS, boolean requireTLS,
             boolean requireAuth, boolean showAuthCapabilitiesBeforeSTARTTLS, boolean disableReceivedHeaders,
             int maxConnections, int connectionTimeoutMs, int maxRecipients, int maxMessageSize,
-            SessionIdFactory sessionIdFactory, SessionHandler sessionHandler, ProxyHandler proxyHandler,
+            SessionIdFactory sessionIdFactory, SessionHandler sessionHandler, ConnectionFilter connectionFilter,
+            HostNameResolver hostNameResolver, ProxyHandler proxyHandler,
             SSLSocketCreator startTlsSocketFactory, ServerSocketCreator serverSocketCreator,
-            Function<SMTPServer, String> serverThreadNameProvider, CommandHandler commandHandler) {
+            Function<SMTPServer, String> serverThreadNameProvider, CommandHandler commandHandler, IoMode ioMode,
+            int selectorThreads, int acceptThreads, List<Listener> listeners) {
         Preconditions.checkNotNull(messageHandlerFactory);
         Preconditions.checkNotNull(bindAddress);
         Preconditions.checkNotNull(executorService);
@@ -658,10 +816,16 @@ public final class SMTPServer implements SSLSocketCreator {
         this.maxMessageSize = maxMessageSize;
         this.sessionIdFactory = sessionIdFactory;
         this.sessionHandler = sessionHandler;
+        this.connectionFilter = connectionFilter;
+        this.hostNameResolver = hostNameResolver;
         this.proxyHandler = proxyHandler;
         this.commandHandler = commandHandler;
         this.serverSocketCreator = serverSocketCreator;
         this.startTlsSocketCreator = startTlsSocketFactory;
+        this.ioMode = ioMode;
+        this.selectorThreads = selectorThreads;
+        this.acceptThreads = acceptThreads;
+        this.listeners = Collections.unmodifiableList(new ArrayList<>(listeners));
 
         if (executorService.isPresent()) {
             this.executorService = executorService.get();
@@ -699,6 +863,8 @@ public final class SMTPServer implements SSLSocketCreator {
 
     private static final ServerSocketCreator SERVER_SOCKET_CREATOR_DEFAULT = ServerSocket::new;
 
+    private static final ServerSocketCreator SERVER_SOCKET_CREATOR_NIO = () -> ServerSocketChannel.open().socket();
+
     private static final MessageHandlerFactory MESSAGE_HANDLER_FACTORY_DEFAULT = new BasicMessageHandlerFactory(
             (context, from, to, data) -> log.info("From: " + from + ", To: " + to + "\n"
                     + new String(data, StandardCharsets.UTF_8) + "\n--------END OF MESSAGE ------------"),
@@ -741,7 +907,7 @@ public final class SMTPServer implements SSLSocketCreator {
      * Is the server running after start() has been called?
      */
     public synchronized boolean isRunning() {
-        return this.serverThread != null;
+        return !this.serverThreads.isEmpty();
     }
 
     /**
@@ -771,16 +937,45 @@ public final class SMTPServer implements SSLSocketCreator {
             throw new IllegalStateException("SMTPServer can only be started once. "
                     + "Restarting is not allowed even after a proper shutdown.");
 
-        // Create our server socket here.
-        ServerSocket serverSocket;
+        // Create our server sockets here, before any thread is started.
+        List<ServerSocket> primarySockets = new ArrayList<>();
+        List<List<ServerSocket>> listenerSockets = new ArrayList<>();
         try {
-            serverSocket = this.createServerSocket();
+            primarySockets.addAll(createServerSockets(bindAddress, port, acceptThreads, serverSocketCreator));
+            if (this.port == 0) {
+                this.allocatedPort = primarySockets.get(0).getLocalPort();
+            }
+            for (Listener listener : listeners) {
+                listenerSockets.add(createServerSockets(listener.getBindAddress(), listener.getPort(),
+                        listener.getAcceptThreads(), listener.getServerSocketCreator().orElse(serverSocketCreator)));
+            }
         } catch (Exception e) {
+            closeQuietly(primarySockets);
+            listenerSockets.forEach(SMTPServer::closeQuietly);
             throw new RuntimeException(e);
         }
 
-        this.serverThread = new ServerThread(this, serverSocket, proxyHandler);
-        this.serverThread.start();
+        this.sessions = new SessionRegistry(maxConnections);
+        this.selectorLoops = ServerThread.startSelectorLoops(this, getServerThreadName());
+        List<ServerThread> threads = new ArrayList<>();
+        String primaryName = getServerThreadName();
+        for (int i = 0; i < primarySockets.size(); i++) {
+            threads.add(new ServerThread(this, primarySockets.get(i), proxyHandler, sessions, selectorLoops,
+                    i == 0 ? primaryName : primaryName + " #" + i, getDisplayableLocalSocketAddress()));
+        }
+        for (int j = 0; j < listeners.size(); j++) {
+            String address = listeners.get(j).getDisplayableLocalSocketAddress();
+            List<ServerSocket> sockets = listenerSockets.get(j);
+            for (int i = 0; i < sockets.size(); i++) {
+                String name = ServerThread.class.getName() + " " + address + (i == 0 ? "" : " #" + i);
+                threads.add(new ServerThread(this, sockets.get(i), proxyHandler, sessions, selectorLoops, name,
+                        address));
+            }
+        }
+        for (ServerThread thread : threads) {
+            thread.start();
+        }
+        this.serverThreads = threads;
         this.started = true;
     }
 
@@ -789,33 +984,96 @@ public final class SMTPServer implements SSLSocketCreator {
      */
     public synchronized void stop() {
         log.info("SMTP server {} stopping...", getDisplayableLocalSocketAddress());
-        if (this.serverThread == null)
+        if (this.serverThreads.isEmpty())
             return;
 
-        this.serverThread.shutdown();
-        this.serverThread = null;
+        // First make sure we aren't accepting any new connections
+        for (ServerThread thread : this.serverThreads) {
+            thread.stopAccepting();
+        }
+        // Shut down any open connections.
+        ServerThread.shutdownSessions(executorService, sessions);
+        for (SelectorLoop loop : this.selectorLoops) {
+            loop.shutdown();
+        }
+        this.serverThreads = Collections.emptyList();
+        this.selectorLoops = Collections.emptyList();
 
         log.info("SMTP server {} stopped", getDisplayableLocalSocketAddress());
     }
 
-    private ServerSocket createServerSocket() throws IOException {
+    /**
+     * Returns one server socket for each accept thread. These are separate
+     * sockets bound to the same port if {@code SO_REUSEPORT} is available and
+     * the socket factory is one of ours, otherwise the same socket repeated.
+     */
+    private List<ServerSocket> createServerSockets(Optional<InetAddress> bindAddress, int port, int acceptThreads,
+            ServerSocketCreator creator) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>(acceptThreads);
+        boolean ownCreator = creator == SERVER_SOCKET_CREATOR_DEFAULT || creator == SERVER_SOCKET_CREATOR_NIO;
+        if (acceptThreads > 1 && ownCreator) {
+            try {
+                int boundPort = port;
+                for (int i = 0; i < acceptThreads; i++) {
+                    ServerSocketChannel channel = ReusePort.openServerSocketChannel();
+                    if (channel == null) {
+                        break;
+                    }
+                    ServerSocket serverSocket = channel.socket();
+                    sockets.add(serverSocket);
+                    serverSocket.bind(new InetSocketAddress(bindAddress.orElse(null), boundPort), backlog);
+                    // the others must join the port allocated to the first
+                    boundPort = serverSocket.getLocalPort();
+                }
+            } catch (IOException e) {
+                closeQuietly(sockets);
+                throw e;
+            }
+            if (sockets.size() == acceptThreads) {
+                return sockets;
+            }
+            closeQuietly(sockets);
+            sockets.clear();
+            log.debug("SO_REUSEPORT is not supported, {} accept threads share one server socket", acceptThreads);
+        }
+        ServerSocket serverSocket = createServerSocket(bindAddress, port, creator);
+        for (int i = 0; i < acceptThreads; i++) {
+            sockets.add(serverSocket);
+        }
+        return sockets;
+    }
+
+    private ServerSocket createServerSocket(Optional<InetAddress> bindAddress, int port, ServerSocketCreator creator)
+            throws IOException {
         InetSocketAddress isa;
 
-        if (!this.bindAddress.isPresent()) {
-            isa = new InetSocketAddress(this.port);
+        if (!bindAddress.isPresent()) {
+            isa = new InetSocketAddress(port);
         } else {
-            isa = new InetSocketAddress(this.bindAddress.orElse(null), this.port);
+            isa = new InetSocketAddress(bindAddress.orElse(null), port);
         }
 
-        ServerSocket serverSocket = serverSocketCreator.createServerSocket();
-        serverSocket.bind(isa, backlog);
-        if (this.port == 0) {
-            this.allocatedPort = serverSocket.getLocalPort();
+        ServerSocket serverSocket = creator.createServerSocket();
+        try {
+            serverSocket.bind(isa, backlog);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
         }
 
         return serverSocket;
     }
 
+    private static void closeQuietly(List<ServerSocket> sockets) {
+        for (ServerSocket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Cannot close server socket", e);
+            }
+        }
+    }
+
     /**
      * Create an SSL socket that wraps the existing socket. This method is called
      * after the client issued the STARTTLS command.
@@ -824,7 +1082,7 @@ public final class SMTPServer implements SSLSocketCreator {
      * protocols/ cipher suites, enforce client authentication, etc.
      *
      * @param socket
-     *            the existing socket as created by {@link #createServerSocket()}
+     *            the existing socket accepted on one of the server sockets
      *            (not null)
      * @return an SSLSocket
      * @throws IOException
@@ -910,10 +1168,38 @@ public final class SMTPServer implements SSLSocketCreator {
         return sessionHandler;
     }
 
+    public ConnectionFilter getConnectionFilter() {
+        return connectionFilter;
+    }
+
+    public HostNameResolver getHostNameResolver() {
+        return hostNameResolver;
+    }
+
     public static Builder port(int port) {
         return new Builder().port(port);
     }
 
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    public int getAcceptThreads() {
+        return acceptThreads;
+    }
+
+    /**
+     * @return the ports on which the server accepts connections in addition to
+     *         its own
+     */
+    public List<Listener> getListeners() {
+        return listeners;
+    }
+
     public String getServerThreadName() {
         return this.serverThreadName.apply(this);
     }
@@ -3,15 +3,17 @@ package org.subethamail.smtp.server;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.security.cert.Certificate;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.net.ssl.SSLSocket;
 
@@ -23,9 +25,16 @@ import org.subethamail.smtp.DropConnectionException;
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.internal.io.CRLFTerminatedReader;
+import org.subethamail.smtp.internal.io.ChannelInputStream;
+import org.subethamail.smtp.internal.io.ChannelOutputStream;
+import org.subethamail.smtp.internal.io.FlushingInputStream;
+import org.subethamail.smtp.internal.io.ReceivedHeader;
+import org.subethamail.smtp.internal.io.ResponseWriter;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
 import org.subethamail.smtp.internal.proxy.ProxyHandler.ProxyResult;
+import org.subethamail.smtp.internal.server.SelectorLoop;
 import org.subethamail.smtp.internal.server.ServerThread;
+import org.subethamail.smtp.internal.server.SessionAccess;
 import org.subethamail.smtp.server.SessionHandler.SessionAcceptance;
 
 /**
@@ -38,6 +47,20 @@ import org.subethamail.smtp.server.SessionHandler.SessionAcceptance;
 public final class Session implements Runnable, MessageContext {
     private final static Logger log = LoggerFactory.getLogger(Session.class);
 
+    static {
+        SessionAccess.set(new SessionAccess() {
+            @Override
+            public void attach(Session session, SelectorLoop loop) throws IOException {
+                session.attach(loop);
+            }
+
+            @Override
+            public void detachFromSelector(Session session) throws IOException {
+                session.detachFromSelector();
+            }
+        });
+    }
+
     /** A link to our parent server */
     private final SMTPServer server;
 
@@ -68,9 +91,29 @@ public final class Session implements Runnable, MessageContext {
     private InputStream input;
     private CRLFTerminatedReader reader;
     private OutputStream output;
-    private PrintWriter writer;
+    private ResponseWriter writer;
     private final ProxyHandler proxyHandler;
 
+    /**
+     * The selector thread which reads from the client while this session
+     * waits for the next command, or null if the session runs in blocking
+     * mode.
+     */
+    private volatile SelectorLoop selectorLoop;
+    private ChannelInputStream channelInput;
+
+    /**
+     * True while this session is queued in or running on the executor. Only
+     * used in event driven mode.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** The greeting phase has been run (event driven mode only) */
+    private boolean opened;
+
+    /** The session handler accepted this session */
+    private boolean accepted;
+
     /* Advertised remote address, defaults to socket remote address */
     private InetSocketAddress remoteAddress;
 
@@ -95,6 +138,12 @@ public final class Session implements Runnable, MessageContext {
      */
     private Optional<String> singleRecipient;
 
+    /**
+     * The constant part of the Received header of the messages in this
+     * session, built for the first message.
+     */
+    private ReceivedHeader receivedHeader;
+
     /**
      * If the client told us the size of the message, this is the value. If they
      * didn't, the value will be 0.
@@ -132,68 +181,141 @@ public final class Session implements Runnable, MessageContext {
 
     /**
      * The thread for each session runs on this and shuts down when the quitting
-     * member goes true.
+     * member goes true. In event driven mode this is called again each time
+     * a new command arrives and returns when the session has to wait for the
+     * client.
      */
     @Override
     public void run() {
+        if (selectorLoop != null) {
+            resume();
+            return;
+        }
+        final String originalName = enterThread();
+        try {
+            if (openSession()) {
+                processCommands();
+            }
+        } catch (IOException e1) {
+            handleIOException(e1);
+        } catch (Throwable e) {
+            handleUnexpected(e);
+        } finally {
+            this.closeSession();
+            leaveThread(originalName);
+        }
+    }
+
+    /**
+     * Processes the commands which have arrived in event driven mode. Returns
+     * without finishing the session if the client has not sent a complete
+     * command line yet.
+     */
+    private void resume() {
+        final String originalName = enterThread();
+        boolean finished = true;
+        try {
+            if (!opened) {
+                opened = true;
+                if (!openSession()) {
+                    return;
+                }
+            }
+            finished = processCommands();
+        } catch (IOException e1) {
+            handleIOException(e1);
+        } catch (Throwable e) {
+            handleUnexpected(e);
+        } finally {
+            if (finished) {
+                this.closeSession();
+            }
+            leaveThread(originalName);
+            if (!finished) {
+                scheduled.set(false);
+                // input may have arrived after the last check
+                onInput();
+            }
+            // else scheduled stays true so that the session never runs again
+        }
+    }
+
+    /**
+     * Called by the selector thread whenever new input may be available.
+     * Schedules this session on the executor unless it is already running.
+     */
+    private void onInput() {
+        ChannelInputStream in = this.channelInput;
+        if (selectorLoop == null || in == null) {
+            return;
+        }
+        if ((quitting || in.isReadyForLine() || in.isExpired()) && scheduled.compareAndSet(false, true)) {
+            try {
+                server.getExecutorService().execute(this);
+            } catch (RejectedExecutionException e) {
+                log.debug("Executor rejected session, closing it");
+                this.quitting = true;
+                this.closeSession();
+            }
+        }
+    }
+
+    private String enterThread() {
         // be defensive about setting with null because issue #13
         // https://jira.qos.ch/browse/SLF4J-414
         if (parentLoggingMdcContext != null) {
             MDC.setContextMap(parentLoggingMdcContext);
         }
-        sessionId = server.getSessionIdFactory().create();
+        if (sessionId == null) {
+            sessionId = server.getSessionIdFactory().create();
+        }
         MDC.put("SessionId", sessionId);
         final String originalName = Thread.currentThread().getName();
         Thread.currentThread().setName(
                 Session.class.getName() + "-" + socket.getInetAddress() + ":" + socket.getPort());
+        return originalName;
+    }
 
-        try {
-            /* Handle opening proxy packets now before accessing remote address */
-            ProxyResult proxy = proxyHandler.handle(input, output, this);
-            if (!proxy.isSuccess()) {
-                 sendResponse(proxy.errorCode() + " " + proxy.errorMessage());
-                 return;
-            }
-            if (!proxy.isNOP()) {
-                remoteAddress = proxy.getProxiedAddress();
-            }
-
-            if (log.isDebugEnabled()) {
-                InetAddress remoteInetAddress = this.getRemoteAddress().getAddress();
-                remoteInetAddress.getHostName(); // Causes future toString() to
-                                                 // print the name too
+    private static void leaveThread(String originalName) {
+        Thread.currentThread().setName(originalName);
+        MDC.clear();
+    }
 
-                log.debug("SMTP connection from {}, new connection count: {}", remoteInetAddress,
-                        this.serverThread.getNumberOfConnections());
+    private void handleIOException(IOException e1) {
+        if (!this.quitting) {
+            try {
+                // Send a temporary failure back so that the server will try
+                // to resend
+                // the message later.
+                this.sendResponse(
+                        "421 4.4.0 Problem attempting to execute commands. Please try again later.");
+            } catch (IOException e) {
             }
+            log.warn("Exception during SMTP transaction", e1);
+        }
+    }
 
-            runCommandLoop();
+    private void handleUnexpected(Throwable e) {
+        log.error("Unexpected error in the SMTP handler thread", e);
+        try {
+            this.sendResponse("421 4.3.0 Mail system failure, closing transmission channel");
         } catch (IOException e1) {
-            if (!this.quitting) {
-                try {
-                    // Send a temporary failure back so that the server will try
-                    // to resend
-                    // the message later.
-                    this.sendResponse(
-                            "421 4.4.0 Problem attempting to execute commands. Please try again later.");
-                } catch (IOException e) {
-                }
-                log.warn("Exception during SMTP transaction", e1);
-            }
-        } catch (Throwable e) {
-            log.error("Unexpected error in the SMTP handler thread", e);
-            try {
-                this.sendResponse("421 4.3.0 Mail system failure, closing transmission channel");
-            } catch (IOException e1) {
-                // just swallow this, the outer exception is the real problem.
-            }
-            rethrow(e);
+            // just swallow this, the outer exception is the real problem.
+        }
+        rethrow(e);
+    }
+
+    /**
+     * Ends the session: notifies the session handler, closes the connection
+     * and releases the connection slot.
+     */
+    private void closeSession() {
+        try {
+            notifySessionEnd();
         } finally {
             this.closeConnection();
             this.endMessageHandler();
             serverThread.sessionEnded(this);
-            Thread.currentThread().setName(originalName);
-            MDC.clear();
         }
     }
 
@@ -208,85 +330,141 @@ public final class Session implements Runnable, MessageContext {
     }
 
     /**
-     * Sends the welcome message and starts receiving and processing client
-     * commands. It quits when {@link #quitting} becomes true or when it can be
-     * noticed or at least assumed that the client no longer sends valid
-     * commands, for example on timeout.
-     * 
+     * Handles the proxy header, checks whether the session can be accepted and
+     * sends the welcome message.
+     *
+     * @return false if the session was rejected and should be closed
      * @throws IOException
      *             if sending to or receiving from the client fails.
      */
-    private void runCommandLoop() throws IOException {
+    private boolean openSession() throws IOException {
+        /* Handle opening proxy packets now before accessing remote address */
+        ProxyResult proxy = proxyHandler.handle(input, output, this);
+        if (!proxy.isSuccess()) {
+             sendResponse(proxy.errorCode() + " " + proxy.errorMessage());
+             return false;
+        }
+        if (!proxy.isNOP()) {
+            remoteAddress = proxy.getProxiedAddress();
+        }
+
+        if (log.isDebugEnabled()) {
+            InetAddress remoteInetAddress = this.getRemoteAddress().getAddress();
+            remoteInetAddress.getHostName(); // Causes future toString() to
+                                             // print the name too
+
+            log.debug("SMTP connection from {}, new connection count: {}", remoteInetAddress,
+                    this.serverThread.getNumberOfConnections());
+        }
+
         if (this.serverThread.hasTooManyConnections()) {
             log.debug("SMTP Too many connections!");
 
             this.sendResponse("421 Too many connections, try again later");
-            return;
+            return false;
+        }
+
+        if (this.proxyHandler != ProxyHandler.NOP || this.tlsStarted) {
+            // the connection could not be filtered on the accept thread
+            SessionAcceptance fresult = this.server.getConnectionFilter().accept(this.getRemoteAddress());
+            if (!fresult.accepted()) {
+                log.debug("SMTP connection rejected: " + fresult.errorMessage());
+                this.sendResponse(fresult.errorCode() + " " + fresult.errorMessage());
+                return false;
+            }
         }
 
         final SessionAcceptance sresult = this.server.getSessionHandler().accept(this);
         if (!sresult.accepted()) {
             log.debug("SMTP " + sresult.errorMessage());
             this.sendResponse(sresult.errorCode() + " " + sresult.errorMessage());
-            return;
+            return false;
         }
+        this.accepted = true;
 
-        try {
-            this.sendResponse(
-                    "220 " + this.server.getHostName() + " ESMTP " + this.server.getSoftwareName());
-
-            while (!this.quitting) {
-                try {
-                    String line = null;
-                    try {
-                        line = this.reader.readLine();
-                    } catch (SocketException ex) {
-                        // Lots of clients just "hang up" rather than issuing QUIT,
-                        // which would
-                        // fill our logs with the warning in the outer catch.
-                        if (log.isDebugEnabled()) {
-                            log.debug("Error reading client command: " + ex.getMessage(), ex);
-                        }
-
-                        return;
-                    }
-
-                    if (line == null) {
-                        log.debug("no more lines from client");
-                        return;
-                    }
+        if (!this.server.getDisableReceivedHeaders()) {
+            // ready by the time the Received header is written
+            this.server.getHostNameResolver().prefetch(this.getRemoteAddress().getAddress());
+        }
 
-                    log.debug("Client: {}", line);
+        this.sendResponse(
+                "220 " + this.server.getHostName() + " ESMTP " + this.server.getSoftwareName());
+        return true;
+    }
 
-                    this.server.getCommandHandler().handleCommand(this, line);
-                } catch (DropConnectionException ex) {
-                    this.sendResponse(ex.getErrorResponse());
-                    return;
-                } catch (SocketTimeoutException ex) {
+    /**
+     * Receives and processes client commands. It quits when {@link #quitting}
+     * becomes true or when it can be noticed or at least assumed that the
+     * client no longer sends valid commands, for example on timeout.
+     * 
+     * @return true if the session is finished, false if in event driven mode
+     *         the session must wait for the client to send more input
+     * @throws IOException
+     *             if sending to or receiving from the client fails.
+     */
+    private boolean processCommands() throws IOException {
+        while (!this.quitting) {
+            ChannelInputStream in = this.channelInput;
+            if (this.selectorLoop != null && !this.reader.isLineBuffered() && !in.isReadyForLine()) {
+                if (in.isExpired()) {
                     this.sendResponse("421 Timeout waiting for data from client.");
-                    return;
-                } catch (CRLFTerminatedReader.TerminationException te) {
-                    String msg = "501 Syntax error at character position " + te.position()
-                            + ". CR and LF must be CRLF paired.  See RFC 2821 #2.7.1.";
+                    return true;
+                }
+                this.flush();
+                return false;
+            }
+            try {
+                String line = null;
+                try {
+                    line = this.reader.readLine();
+                } catch (SocketException ex) {
+                    // Lots of clients just "hang up" rather than issuing QUIT,
+                    // which would
+                    // fill our logs with the warning in the outer catch.
+                    if (log.isDebugEnabled()) {
+                        log.debug("Error reading client command: " + ex.getMessage(), ex);
+                    }
 
-                    log.debug(msg);
-                    this.sendResponse(msg);
+                    return true;
+                }
 
-                    // if people are screwing with things, close connection
-                    return;
-                } catch (CRLFTerminatedReader.MaxLineLengthException mlle) {
-                    String msg = "501 " + mlle.getMessage();
+                if (line == null) {
+                    log.debug("no more lines from client");
+                    return true;
+                }
 
-                    log.debug(msg);
-                    this.sendResponse(msg);
+                log.debug("Client: {}", line);
 
-                    // if people are screwing with things, close connection
-                    return;
+                this.server.getCommandHandler().handleCommand(this, line);
+                if (in != null) {
+                    in.touch();
                 }
+            } catch (DropConnectionException ex) {
+                this.sendResponse(ex.getErrorResponse());
+                return true;
+            } catch (SocketTimeoutException ex) {
+                this.sendResponse("421 Timeout waiting for data from client.");
+                return true;
+            } catch (CRLFTerminatedReader.TerminationException te) {
+                String msg = "501 Syntax error at character position " + te.position()
+                        + ". CR and LF must be CRLF paired.  See RFC 2821 #2.7.1.";
+
+                log.debug(msg);
+                this.sendResponse(msg);
+
+                // if people are screwing with things, close connection
+                return true;
+            } catch (CRLFTerminatedReader.MaxLineLengthException mlle) {
+                String msg = "501 " + mlle.getMessage();
+
+                log.debug(msg);
+                this.sendResponse(msg);
+
+                // if people are screwing with things, close connection
+                return true;
             }
-        } finally {
-            this.server.getSessionHandler().onSessionEnd(this);
         }
+        return true;
     }
 
     /**
@@ -296,8 +474,11 @@ public final class Session implements Runnable, MessageContext {
     private void closeConnection() {
         try {
             try {
-                this.writer.close();
-                this.input.close();
+                try {
+                    this.writer.close();
+                } finally {
+                    this.input.close();
+                }
             } finally {
                 this.closeSocket();
             }
@@ -313,14 +494,57 @@ public final class Session implements Runnable, MessageContext {
      */
     public void setSocket(Socket socket) throws IOException {
         this.socket = socket;
-        this.input = this.socket.getInputStream();
-        this.reader = new CRLFTerminatedReader(this.input);
         this.output = this.socket.getOutputStream();
-        this.writer = new PrintWriter(this.output);
+        this.writer = new ResponseWriter(this.output);
+        this.reader = new CRLFTerminatedReader(new FlushingInputStream(this.socket.getInputStream(), this.writer));
+        this.input = this.reader.getInputStream();
 
         this.socket.setSoTimeout(this.server.getConnectionTimeout());
     }
 
+    /**
+     * Switches this session to event driven mode: from now on the selector
+     * thread reads from the client and the session only runs on the executor
+     * while there are commands to process. The socket must have been
+     * accepted from a {@link java.nio.channels.ServerSocketChannel}.
+     */
+    void attach(SelectorLoop loop) throws IOException {
+        SocketChannel channel = this.socket.getChannel();
+        channel.configureBlocking(false);
+        this.channelInput = new ChannelInputStream(this.server.getConnectionTimeout(), this::onInput);
+        this.output = new ChannelOutputStream(channel, this.server.getConnectionTimeout());
+        this.writer = new ResponseWriter(this.output);
+        this.reader = new CRLFTerminatedReader(new FlushingInputStream(this.channelInput, this.writer));
+        this.input = this.reader.getInputStream();
+        // the caller submits the first run to the executor
+        this.scheduled.set(true);
+        this.selectorLoop = loop;
+        loop.register(channel, this.channelInput);
+    }
+
+    /**
+     * Takes the connection away from the selector thread and puts it back into
+     * blocking mode, so that the session continues on the current thread like
+     * in {@link IoMode#BLOCKING} mode. Does nothing if the session is not
+     * event driven. Input which has already been read but not consumed is
+     * discarded; this is used before a TLS handshake, which the client must
+     * not pipeline.
+     */
+    void detachFromSelector() throws IOException {
+        SelectorLoop loop = this.selectorLoop;
+        if (loop == null) {
+            return;
+        }
+        SocketChannel channel = this.socket.getChannel();
+        loop.deregister(channel);
+        this.writer.flush();
+        this.output.close();
+        channel.configureBlocking(true);
+        this.selectorLoop = null;
+        this.channelInput = null;
+        this.setSocket(this.socket);
+    }
+
     /**
      * This method is only used by the start tls command
      * 
@@ -337,7 +561,9 @@ public final class Session implements Runnable, MessageContext {
     }
 
     /**
-     * @return the raw input stream from the client
+     * @return the input stream from the client, positioned after the last
+     *         line read by {@link #getReader()}. It shares its buffer with the
+     *         reader, so the two can be used alternately.
      */
     public InputStream getRawInput() {
         return this.input;
@@ -350,18 +576,21 @@ public final class Session implements Runnable, MessageContext {
         return this.reader;
     }
 
-    /** Sends the response to the client */
+    /**
+     * Sends the response to the client. The response is buffered, and only
+     * flushed to the network when the session is about to wait for more input
+     * from the client (see {@link FlushingInputStream}), so that the replies
+     * to a group of pipelined commands go out together. Code which uses the
+     * socket directly must call {@link #flush()} first.
+     */
     public void sendResponse(String response) throws IOException {
         log.debug("Server: {}", response);
 
-        this.writer.print(response + "\r\n");
+        this.writer.write(response);
+    }
 
-        /*
-         * Flush the response to the nework. We must flush every written data because:
-         * 1) depending from underlying implementations partial or no data could be received on the remote side
-         * 2) underlying OutPutStream can be used in a independent way without flush partial mixed data could be written
-         * on it.
-         */
+    /** Writes the buffered responses to the network */
+    public void flush() throws IOException {
         this.writer.flush();
     }
 
@@ -428,6 +657,22 @@ public final class Session implements Runnable, MessageContext {
         return singleRecipient;
     }
 
+    /**
+     * Returns the Received header for the messages of this session. It is
+     * built again only if the HELO name or the host name of the client
+     * changed since the previous message.
+     * 
+     * @param hostName
+     *            the host name of the client, or empty if it is not known
+     */
+    public ReceivedHeader getReceivedHeader(Optional<String> hostName) {
+        if (this.receivedHeader == null || !this.receivedHeader.isFor(this.helo, hostName)) {
+            this.receivedHeader = new ReceivedHeader(this.helo, this.getRemoteAddress().getAddress(), hostName,
+                    this.server.getHostName(), Optional.of(this.server.getSoftwareName()));
+        }
+        return this.receivedHeader;
+    }
+
     public boolean isAuthenticated() {
         return this.authenticationHandler.isPresent();
     }
@@ -520,12 +765,27 @@ public final class Session implements Runnable, MessageContext {
         this.helo = Optional.empty();
     }
 
+    /**
+     * Notifies the session handler that the session ended, unless it was
+     * already notified. QUIT calls this before its reply, so a client which
+     * reconnects as soon as it reads the reply is not counted twice by a
+     * session handler limiting concurrent sessions.
+     */
+    public void notifySessionEnd() {
+        if (this.accepted) {
+            this.accepted = false;
+            this.server.getSessionHandler().onSessionEnd(this);
+        }
+    }
+
     /**
      * Triggers the shutdown of the thread and the closing of the connection.
      */
     public void quit() {
         this.quitting = true;
         this.closeConnection();
+        // a parked event driven session has to run once more to end itself
+        this.onInput();
     }
 
     /**
@@ -0,0 +1,152 @@
+package org.subethamail.wiser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The content of a {@link WiserMessage}: a byte array on the heap, or the
+ * extents of segments of a {@link MessageStore} it was streamed into.
+ */
+abstract class MessageContent {
+
+    /**
+     * A contiguous part of the content in a segment.
+     */
+    interface Extent {
+
+        int length();
+
+        /**
+         * Reads len bytes starting at offset of this extent.
+         */
+        void read(int offset, byte[] b, int off, int len) throws IOException;
+
+    }
+
+    static MessageContent of(byte[] data) {
+        return new ArrayContent(data);
+    }
+
+    /**
+     * @param extents
+     *            the parts of the content in order, which do not change any
+     *            more
+     */
+    static MessageContent of(List<? extends Extent> extents) {
+        return new ExtentContent(new ArrayList<>(extents));
+    }
+
+    abstract int size();
+
+    /**
+     * Returns the content, the array itself if it is kept on the heap.
+     *
+     * @throws UncheckedIOException
+     *             if the segment file cannot be read, for example because the
+     *             message was evicted
+     */
+    abstract byte[] toByteArray();
+
+    abstract InputStream newInputStream();
+
+    private static final class ArrayContent extends MessageContent {
+
+        private final byte[] data;
+
+        ArrayContent(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        int size() {
+            return data.length;
+        }
+
+        @Override
+        byte[] toByteArray() {
+            return data;
+        }
+
+        @Override
+        InputStream newInputStream() {
+            return new ByteArrayInputStream(data);
+        }
+
+    }
+
+    private static final class ExtentContent extends MessageContent {
+
+        private final List<Extent> extents;
+        private final int size;
+
+        ExtentContent(List<Extent> extents) {
+            this.extents = extents;
+            int size = 0;
+            for (Extent extent : extents) {
+                size += extent.length();
+            }
+            this.size = size;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        byte[] toByteArray() {
+            byte[] data = new byte[size];
+            int position = 0;
+            try {
+                for (Extent extent : extents) {
+                    extent.read(0, data, position, extent.length());
+                    position += extent.length();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot read the content, the message may have been evicted", e);
+            }
+            return data;
+        }
+
+        @Override
+        InputStream newInputStream() {
+            return new InputStream() {
+
+                private final byte[] single = new byte[1];
+                private int index;
+                private int offset;
+
+                @Override
+                public int read() throws IOException {
+                    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    while (index < extents.size() && offset == extents.get(index).length()) {
+                        index++;
+                        offset = 0;
+                    }
+                    if (index == extents.size()) {
+                        return -1;
+                    }
+                    Extent extent = extents.get(index);
+                    int n = Math.min(len, extent.length() - offset);
+                    extent.read(offset, b, off, n);
+                    offset += n;
+                    return n;
+                }
+
+            };
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+package org.subethamail.wiser;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Hash indexes of the stored messages by envelope sender, envelope recipient
+ * and the values of the indexed headers. Each key maps to its messages in
+ * order of arrival, so evicting the oldest message removes the head of its
+ * lists. Not thread safe, the {@link MessageStore} guards it.
+ */
+final class MessageIndex {
+
+    private final Map<String, Deque<WiserMessage>> bySender = new HashMap<>();
+    private final Map<String, Deque<WiserMessage>> byRecipient = new HashMap<>();
+    /** lower case header name to header value to messages */
+    private final Map<String, Map<String, Deque<WiserMessage>>> byHeader = new HashMap<>();
+
+    /**
+     * @param indexedHeaders
+     *            lower case names
+     */
+    MessageIndex(List<String> indexedHeaders) {
+        for (String name : indexedHeaders) {
+            byHeader.put(name, new HashMap<>());
+        }
+    }
+
+    void add(WiserMessage message) {
+        add(bySender, addressKey(message.getEnvelopeSender()), message);
+        add(byRecipient, addressKey(message.getEnvelopeReceiver()), message);
+        for (Map.Entry<String, Map<String, Deque<WiserMessage>>> index : byHeader.entrySet()) {
+            Optional<String> value = message.getHeader(index.getKey());
+            if (value.isPresent()) {
+                add(index.getValue(), value.get(), message);
+            }
+        }
+    }
+
+    void clear() {
+        bySender.clear();
+        byRecipient.clear();
+        for (Map<String, Deque<WiserMessage>> index : byHeader.values()) {
+            index.clear();
+        }
+    }
+
+    /**
+     * Removes the message, which must be the oldest one in the index.
+     */
+    void removeOldest(WiserMessage message) {
+        removeOldest(bySender, addressKey(message.getEnvelopeSender()), message);
+        removeOldest(byRecipient, addressKey(message.getEnvelopeReceiver()), message);
+        for (Map.Entry<String, Map<String, Deque<WiserMessage>>> index : byHeader.entrySet()) {
+            Optional<String> value = message.getHeader(index.getKey());
+            if (value.isPresent()) {
+                removeOldest(index.getValue(), value.get(), message);
+            }
+        }
+    }
+
+    /**
+     * Returns the messages of the smallest index list matching a condition of
+     * the query, in order of arrival, or empty if the query has no condition
+     * on an indexed field. The messages still have to be tested against the
+     * query.
+     */
+    Optional<Collection<WiserMessage>> candidates(WiserQuery query) {
+        Collection<WiserMessage> smallest = null;
+        if (query.getSender().isPresent()) {
+            smallest = smaller(smallest, bySender.get(addressKey(query.getSender().get())));
+        }
+        if (query.getRecipient().isPresent()) {
+            smallest = smaller(smallest, byRecipient.get(addressKey(query.getRecipient().get())));
+        }
+        for (Map.Entry<String, String> header : query.getHeaders().entrySet()) {
+            Map<String, Deque<WiserMessage>> index = byHeader.get(header.getKey());
+            if (index != null) {
+                smallest = smaller(smallest, index.get(header.getValue()));
+            }
+        }
+        return Optional.ofNullable(smallest);
+    }
+
+    private static Collection<WiserMessage> smaller(Collection<WiserMessage> smallest,
+            Collection<WiserMessage> messages) {
+        if (messages == null) {
+            return Collections.emptyList();
+        } else if (smallest == null || messages.size() < smallest.size()) {
+            return messages;
+        } else {
+            return smallest;
+        }
+    }
+
+    private static void add(Map<String, Deque<WiserMessage>> index, String key, WiserMessage message) {
+        index.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(message);
+    }
+
+    private static void removeOldest(Map<String, Deque<WiserMessage>> index, String key, WiserMessage message) {
+        Deque<WiserMessage> messages = index.get(key);
+        if (messages != null && messages.peekFirst() == message) {
+            messages.removeFirst();
+            if (messages.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static String addressKey(String address) {
+        return address == null ? "" : address.toLowerCase(Locale.ENGLISH);
+    }
+
+}
@@ -0,0 +1,569 @@
+package org.subethamail.wiser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import jakarta.mail.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.wiser.WiserStorage.Kind;
+
+/**
+ * The messages received by a {@link Wiser}, in order of arrival. Every
+ * message gets a sequence number and the index is a list of fixed size chunks
+ * addressed by it, so an append never copies the messages stored so far and
+ * eviction drops whole chunks from the front. Depending on the
+ * {@link WiserStorage} the content is kept on the heap or streamed into
+ * off-heap or file segments in chunks, so a message never has to fit on the
+ * heap. Concurrent deliveries reserve their chunks under the lock and write
+ * them outside of it; a segment is released once no stored message or
+ * delivery in progress uses it.
+ * <p>
+ * The headers to index are parsed once on arrival, and threads waiting for a
+ * message are notified of each arrival.
+ */
+final class MessageStore {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageStore.class);
+
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /** The size of the reads from the content stream of a delivery. */
+    private static final int APPEND_CHUNK_SIZE = 8192;
+
+    private final WiserStorage storage;
+    private final Session session;
+    private final LongSupplier clock;
+
+    @GuardedBy("this")
+    private final List<Entry[]> chunks = new ArrayList<>();
+
+    /** The sequence number of the first entry of the first chunk. */
+    @GuardedBy("this")
+    private long chunksStart;
+
+    /** The sequence number of the oldest stored message. */
+    @GuardedBy("this")
+    private long first;
+
+    /** The sequence number of the next message. */
+    @GuardedBy("this")
+    private long next;
+
+    @GuardedBy("this")
+    private long bytes;
+
+    @GuardedBy("this")
+    private Segment current;
+
+    @GuardedBy("this")
+    private final MessageIndex index;
+
+    private final List<WiserMessage> messages = new Messages();
+
+    MessageStore(WiserStorage storage, Session session) {
+        this(storage, session, System::currentTimeMillis);
+    }
+
+    MessageStore(WiserStorage storage, Session session, LongSupplier clock) {
+        this.storage = storage;
+        this.session = session;
+        this.clock = clock;
+        this.index = new MessageIndex(storage.getIndexedHeaders());
+    }
+
+    /**
+     * Stores the message and evicts the oldest messages if a bound of the
+     * storage is exceeded.
+     *
+     * @throws IOException
+     *             if a segment cannot be created or written
+     */
+    WiserMessage add(String from, String recipient, byte[] data) throws IOException {
+        if (storage.getKind() != Kind.HEAP) {
+            return add(from, recipient, new ByteArrayInputStream(data));
+        }
+        Map<String, String> headers = WiserMessage.parseHeaders(new ByteArrayInputStream(data),
+                storage.getIndexedHeaders());
+        return store(new WiserMessage(session, from, recipient, MessageContent.of(data), headers),
+                Collections.emptyList());
+    }
+
+    /**
+     * Reads the content to its end and stores the message, see
+     * {@link #add(String, String, byte[])}. Unless the storage is on the heap
+     * the content is written to the segments in chunks as it is read.
+     */
+    WiserMessage add(String from, String recipient, InputStream data) throws IOException {
+        if (storage.getKind() == Kind.HEAP) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[APPEND_CHUNK_SIZE];
+            int n;
+            while ((n = data.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return add(from, recipient, out.toByteArray());
+        }
+        List<Extent> extents = new ArrayList<>();
+        boolean stored = false;
+        try {
+            byte[] chunk = new byte[APPEND_CHUNK_SIZE];
+            int n;
+            while ((n = readChunk(data, chunk)) > 0) {
+                long position = reserve(extents, n);
+                extents.get(extents.size() - 1).segment.write(position, chunk, n);
+            }
+            MessageContent content = MessageContent.of(extents);
+            Map<String, String> headers = WiserMessage.parseHeaders(content.newInputStream(),
+                    storage.getIndexedHeaders());
+            WiserMessage message = store(new WiserMessage(session, from, recipient, content, headers), extents);
+            stored = true;
+            return message;
+        } finally {
+            if (!stored) {
+                synchronized (this) {
+                    unreference(extents);
+                }
+            }
+        }
+    }
+
+    private synchronized WiserMessage store(WiserMessage message, List<Extent> extents) {
+        long now = clock.getAsLong();
+        int offset = (int) (next - chunksStart);
+        if ((offset & (CHUNK_SIZE - 1)) == 0) {
+            chunks.add(new Entry[CHUNK_SIZE]);
+        }
+        chunks.get(offset >>> CHUNK_BITS)[offset & (CHUNK_SIZE - 1)] = new Entry(message, extents, now);
+        next++;
+        bytes += message.getSize();
+        index.add(message);
+        evict(now);
+        notifyAll();
+        return message;
+    }
+
+    /**
+     * Reserves room for length bytes in the current segment, extending the
+     * last extent if the room follows it.
+     *
+     * @return the position in the segment of the last extent to write to
+     */
+    private synchronized long reserve(List<Extent> extents, int length) throws IOException {
+        if (current == null || current.capacity - current.end < length) {
+            Segment old = current;
+            current = Segment.create(storage, Math.max(storage.getSegmentSize(), length));
+            if (old != null && old.references == 0) {
+                old.release();
+            }
+        }
+        long position = current.end;
+        current.end += length;
+        Extent last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+        if (last != null && last.segment == current && last.position + last.length == position) {
+            last.length += length;
+        } else {
+            extents.add(new Extent(current, position, length));
+            current.references++;
+        }
+        return position;
+    }
+
+    /**
+     * Fills the chunk unless the stream ends first.
+     *
+     * @return the number of bytes read, 0 at the end of the stream
+     */
+    private static int readChunk(InputStream data, byte[] chunk) throws IOException {
+        int length = 0;
+        while (length < chunk.length) {
+            int n = data.read(chunk, length, chunk.length - length);
+            if (n == -1) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the stored messages matching the predicate, in order of
+     * arrival. A {@link WiserQuery} is answered from the indexes. The
+     * predicate is tested outside the lock, so a slow one does not hold up
+     * arriving messages.
+     */
+    List<WiserMessage> find(Predicate<? super WiserMessage> predicate) {
+        List<WiserMessage> list = new ArrayList<>();
+        for (WiserMessage message : candidates(predicate)) {
+            if (predicate.test(message)) {
+                list.add(message);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the first stored message matching the predicate, waiting for it
+     * to arrive up to the timeout. Only arriving messages are tested while
+     * waiting. The lock is only held to take the messages to test and to
+     * wait, never while testing them.
+     *
+     * @return the message or empty if the timeout elapsed
+     */
+    Optional<WiserMessage> await(Predicate<? super WiserMessage> predicate, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Collection<WiserMessage> batch;
+        long tested;
+        synchronized (this) {
+            batch = candidates(predicate);
+            tested = next;
+        }
+        while (true) {
+            for (WiserMessage message : batch) {
+                if (predicate.test(message)) {
+                    return Optional.of(message);
+                }
+            }
+            synchronized (this) {
+                while (next == tested) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return Optional.empty();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                List<WiserMessage> arrived = new ArrayList<>();
+                for (long sequence = Math.max(tested, first); sequence < next; sequence++) {
+                    arrived.add(entry(sequence).message);
+                }
+                batch = arrived;
+                tested = next;
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the messages which may match the predicate, in order
+     * of arrival.
+     */
+    private synchronized Collection<WiserMessage> candidates(Predicate<? super WiserMessage> predicate) {
+        evict(clock.getAsLong());
+        if (predicate instanceof WiserQuery) {
+            Optional<Collection<WiserMessage>> candidates = index.candidates((WiserQuery) predicate);
+            if (candidates.isPresent()) {
+                return new ArrayList<>(candidates.get());
+            }
+        }
+        return snapshot();
+    }
+
+    /**
+     * Removes all messages, resets the indexes and releases the segments.
+     * Sequence numbers keep counting, so waiting threads only test messages
+     * arriving afterwards.
+     */
+    synchronized void clear() {
+        for (long sequence = first; sequence < next; sequence++) {
+            unreference(entry(sequence).extents);
+        }
+        if (current != null) {
+            Segment segment = current;
+            current = null;
+            // else released when the deliveries in progress are done with it
+            if (segment.references == 0) {
+                segment.release();
+            }
+        }
+        chunks.clear();
+        first = next;
+        chunksStart = next;
+        bytes = 0;
+        index.clear();
+    }
+
+    /**
+     * Returns a live view of the stored messages, which is read-only except
+     * for {@link List#clear()}. Iterators see the messages stored when they
+     * were created.
+     */
+    List<WiserMessage> messages() {
+        return messages;
+    }
+
+    @GuardedBy("this")
+    private Entry entry(long sequence) {
+        int offset = (int) (sequence - chunksStart);
+        return chunks.get(offset >>> CHUNK_BITS)[offset & (CHUNK_SIZE - 1)];
+    }
+
+    @GuardedBy("this")
+    private void evict(long now) {
+        while (first < next) {
+            long size = next - first;
+            Entry oldest = entry(first);
+            if (size > storage.getMaxMessages() //
+                    || size > 1 && bytes > storage.getMaxBytes() //
+                    || now - oldest.receivedAt > storage.getMaxAgeMillis()) {
+                removeFirst(oldest);
+            } else {
+                return;
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void removeFirst(Entry oldest) {
+        int offset = (int) (first - chunksStart);
+        chunks.get(offset >>> CHUNK_BITS)[offset & (CHUNK_SIZE - 1)] = null;
+        first++;
+        bytes -= oldest.message.getSize();
+        index.removeOldest(oldest.message);
+        if (first - chunksStart == CHUNK_SIZE) {
+            chunks.remove(0);
+            chunksStart += CHUNK_SIZE;
+        }
+        unreference(oldest.extents);
+    }
+
+    @GuardedBy("this")
+    private void unreference(List<Extent> extents) {
+        for (Extent extent : extents) {
+            Segment segment = extent.segment;
+            if (--segment.references == 0 && segment != current) {
+                segment.release();
+            }
+        }
+    }
+
+    private synchronized int size() {
+        evict(clock.getAsLong());
+        return (int) (next - first);
+    }
+
+    private synchronized WiserMessage get(int index) {
+        evict(clock.getAsLong());
+        if (index < 0 || index >= next - first) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + (next - first));
+        }
+        return entry(first + index).message;
+    }
+
+    private synchronized List<WiserMessage> snapshot() {
+        evict(clock.getAsLong());
+        List<WiserMessage> list = new ArrayList<>((int) (next - first));
+        for (long sequence = first; sequence < next; sequence++) {
+            list.add(entry(sequence).message);
+        }
+        return list;
+    }
+
+    private final class Messages extends AbstractList<WiserMessage> {
+
+        @Override
+        public WiserMessage get(int index) {
+            return MessageStore.this.get(index);
+        }
+
+        @Override
+        public int size() {
+            return MessageStore.this.size();
+        }
+
+        @Override
+        public Iterator<WiserMessage> iterator() {
+            return Collections.unmodifiableList(snapshot()).iterator();
+        }
+
+        @Override
+        public void clear() {
+            MessageStore.this.clear();
+        }
+
+    }
+
+    private static final class Entry {
+
+        final WiserMessage message;
+        final List<Extent> extents;
+        final long receivedAt;
+
+        Entry(WiserMessage message, List<Extent> extents, long receivedAt) {
+            this.message = message;
+            this.extents = extents;
+            this.receivedAt = receivedAt;
+        }
+
+    }
+
+    /**
+     * A part of the content of a message in a segment. The length only grows
+     * while the delivery is in progress, under the lock of the store.
+     */
+    private static final class Extent implements MessageContent.Extent {
+
+        final Segment segment;
+        final long position;
+        int length;
+
+        Extent(Segment segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public void read(int offset, byte[] b, int off, int len) throws IOException {
+            segment.read(position + offset, b, off, len);
+        }
+
+    }
+
+    /**
+     * A buffer or file the content of messages is written to. The space is
+     * handed out in order under the lock of the store, the bytes are written
+     * and read with positional operations without it.
+     */
+    private abstract static class Segment {
+
+        final long capacity;
+
+        /** Where the next extent starts, guarded by the store. */
+        long end;
+
+        /**
+         * The extents of stored messages and deliveries in progress in this
+         * segment, guarded by the store.
+         */
+        int references;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+        }
+
+        static Segment create(WiserStorage storage, int size) throws IOException {
+            if (storage.getKind() == Kind.OFF_HEAP) {
+                return new BufferSegment(ByteBuffer.allocateDirect(size));
+            }
+            Path file = Files.createTempFile(storage.getDirectory().get(), "wiser-", ".seg");
+            try {
+                return new FileSegment(file, FileChannel.open(file, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE), size);
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+        }
+
+        abstract void write(long position, byte[] b, int len) throws IOException;
+
+        abstract void read(long position, byte[] b, int off, int len) throws IOException;
+
+        abstract void release();
+
+    }
+
+    private static final class BufferSegment extends Segment {
+
+        private final ByteBuffer buffer;
+
+        BufferSegment(ByteBuffer buffer) {
+            super(buffer.capacity());
+            this.buffer = buffer;
+        }
+
+        @Override
+        void write(long position, byte[] b, int len) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) position);
+            view.put(b, 0, len);
+        }
+
+        @Override
+        void read(long position, byte[] b, int off, int len) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) position);
+            view.get(b, off, len);
+        }
+
+        @Override
+        void release() {
+            // freed by the garbage collector once no message refers to it
+        }
+
+    }
+
+    private static final class FileSegment extends Segment {
+
+        private final Path file;
+        private final FileChannel channel;
+
+        FileSegment(Path file, FileChannel channel, long capacity) {
+            super(capacity);
+            this.file = file;
+            this.channel = channel;
+        }
+
+        @Override
+        void write(long position, byte[] b, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, 0, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+
+        @Override
+        void read(long position, byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position() - off) == -1) {
+                    throw new EOFException("segment " + file + " ends before " + (position + len));
+                }
+            }
+        }
+
+        /**
+         * Closes and deletes the file, reading the messages in it fails
+         * afterwards.
+         */
+        @Override
+        void release() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Could not delete " + file, e);
+            }
+        }
+
+    }
+
+}
@@ -5,14 +5,14 @@
 
 package org.subethamail.wiser;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.List;
+import java.util.Optional;
 import java.util.Properties;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
@@ -24,13 +24,16 @@ import org.subethamail.smtp.helper.SimpleMessageListener;
 import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.smtp.server.SMTPServer.Builder;
 
+import com.github.davidmoten.guavamini.Preconditions;
+
 /**
  * Wiser is a tool for unit testing applications that send mail. Your unit tests
  * can start Wiser, run tests which generate emails, then examine the emails
  * that Wiser received and verify their integrity.
  *
  * Wiser is not intended to be a "real" mail server and is not adequate for that
- * purpose; it simply stores all mail in memory. Use the MessageHandlerFactory
+ * purpose; it simply stores all mail in memory, or off-heap or in files if
+ * configured with a {@link WiserStorage}. Use the MessageHandlerFactory
  * interface (optionally with the SimpleMessageListenerAdapter) of SubEthaSMTP
  * instead.
  *
@@ -43,7 +46,7 @@ public final class Wiser implements SimpleMessageListener {
 
     private final SMTPServer server;
 
-    private final List<WiserMessage> messages = new CopyOnWriteArrayList<>();
+    private final MessageStore store;
 
     private final Accepter accepter;
 
@@ -52,17 +55,21 @@ public final class Wiser implements SimpleMessageListener {
     }
 
     public static Wiser create(Builder builder) {
-        return new Wiser(builder, ACCEPTER_DEFAULT);
+        return new Wiser(builder, ACCEPTER_DEFAULT, WiserStorage.heap());
     }
 
     public static Wiser create() {
-        return new Wiser(SMTPServer.port(25).build(), ACCEPTER_DEFAULT);
+        return new Wiser(SMTPServer.port(25).build(), ACCEPTER_DEFAULT, WiserStorage.heap());
     }
 
     public static WiserBuilder accepter(Accepter accepter) {
         return new WiserBuilder().accepter(accepter);
     }
 
+    public static WiserBuilder storage(WiserStorage storage) {
+        return new WiserBuilder().storage(storage);
+    }
+
     private static final Accepter ACCEPTER_DEFAULT = (from, recipient) -> {
         log.debug("Accepting mail from {} to {}", from, recipient);
         return true;
@@ -70,6 +77,7 @@ public final class Wiser implements SimpleMessageListener {
 
     public static final class WiserBuilder {
         private Accepter accepter = ACCEPTER_DEFAULT;
+        private WiserStorage storage = WiserStorage.heap();
         private Builder server;
 
         private WiserBuilder() {
@@ -81,14 +89,24 @@ public final class Wiser implements SimpleMessageListener {
             return this;
         }
 
+        /**
+         * Sets where the messages are kept and how many of them, default is
+         * {@link WiserStorage#heap()}.
+         */
+        public WiserBuilder storage(WiserStorage storage) {
+            Preconditions.checkNotNull(storage, "storage cannot be null");
+            this.storage = storage;
+            return this;
+        }
+
         public Wiser server(SMTPServer.Builder server) {
             this.server = server;
-            return new Wiser(server, accepter);
+            return new Wiser(server, accepter, storage);
         }
 
         public Wiser port(int port) {
             this.server = SMTPServer.port(port);
-            return new Wiser(server, accepter);
+            return new Wiser(server, accepter, storage);
         }
 
     }
@@ -97,12 +115,13 @@ public final class Wiser implements SimpleMessageListener {
         boolean accept(String from, String recipient);
     }
 
-    private Wiser(SMTPServer server, Accepter accepter) {
+    private Wiser(SMTPServer server, Accepter accepter, WiserStorage storage) {
         this.server = server;
         this.accepter = accepter;
+        this.store = new MessageStore(storage, Session.getInstance(new Properties()));
     }
 
-    private Wiser(Builder builder, Accepter accepter) {
+    private Wiser(Builder builder, Accepter accepter, WiserStorage storage) {
         SimpleMessageListener s = new SimpleMessageListener() {
 
             @Override
@@ -118,6 +137,7 @@ public final class Wiser implements SimpleMessageListener {
         };
         this.server = builder.simpleMessageListener(s).build();
         this.accepter = accepter;
+        this.store = new MessageStore(storage, Session.getInstance(new Properties()));
     }
 
     /** Starts the SMTP Server */
@@ -136,28 +156,16 @@ public final class Wiser implements SimpleMessageListener {
         return accepter.accept(from, recipient);
     }
 
-    /** Cache the messages in memory */
+    /** Cache the messages in the store */
     @Override
     public void deliver(String from, String recipient, InputStream data)
             throws TooMuchDataException, IOException {
         log.debug("Delivering mail from {} to {}", from, recipient);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        data = new BufferedInputStream(data);
+        // streamed into the store, only heap storage holds it in an array
+        WiserMessage message = this.store.add(from, recipient, data);
 
-        // read the data from the stream
-        int current;
-        while ((current = data.read()) >= 0) {
-            out.write(current);
-        }
-
-        byte[] bytes = out.toByteArray();
-
-        log.debug("Creating message from data with {} bytes", bytes.length);
-
-        Session session = Session.getDefaultInstance(new Properties());
-        // create a new WiserMessage.
-        this.messages.add(new WiserMessage(session, from, recipient, bytes));
+        log.debug("Stored message with {} bytes", message.getSize());
     }
 
     /**
@@ -167,9 +175,43 @@ public final class Wiser implements SimpleMessageListener {
      * If a message is received with multiple recipients in a single mail
      * transaction, then the list will contain more WiserMessage instances, one
      * for each recipient.
+     * <p>
+     * The list is a read-only view which reflects the messages arriving and
+     * being evicted, its iterators see the messages stored when they were
+     * created. Only {@link List#clear()} is supported, like {@link #clear()}.
      */
     public List<WiserMessage> getMessages() {
-        return this.messages;
+        return this.store.messages();
+    }
+
+    /**
+     * Removes all stored messages, e.g. between test cases.
+     */
+    public void clear() {
+        this.store.clear();
+    }
+
+    /**
+     * Returns the stored messages matching the predicate, in order of arrival.
+     * A {@link WiserQuery} on the envelope or indexed headers is answered from
+     * the indexes, other predicates scan all messages.
+     */
+    public List<WiserMessage> find(Predicate<? super WiserMessage> predicate) {
+        return this.store.find(predicate);
+    }
+
+    /**
+     * Returns the first stored message matching the predicate or waits for
+     * one to arrive. Waiting threads are woken by each arriving message, which
+     * is the only one they test.
+     *
+     * @return the message, or empty if none arrived within the timeout
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public Optional<WiserMessage> await(Predicate<? super WiserMessage> predicate, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return this.store.await(predicate, timeout, unit);
     }
 
     /**
@@ -1,11 +1,20 @@
 package org.subethamail.wiser;
 
-import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 
 import jakarta.mail.MessagingException;
 import jakarta.mail.Session;
+import jakarta.mail.internet.InternetHeaders;
 import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeUtility;
 
 import org.subethamail.smtp.internal.Constants;
 
@@ -16,32 +25,73 @@ import org.subethamail.smtp.internal.Constants;
  * @author Jon Stevens
  */
 public final class WiserMessage {
-    private final byte[] messageData;
+    private final MessageContent messageData;
     private final Session session;
     private final String envelopeSender;
     private final String envelopeReceiver;
 
-    WiserMessage(Session session, String envelopeSender, String envelopeReceiver, byte[] messageData) {
+    /** lower case name to decoded value, null if the message has no such header */
+    private final Map<String, String> indexedHeaders;
+
+    /**
+     * @param messageData
+     *            an array or the content in the segments of the store
+     * @param indexedHeaders
+     *            the values of the indexed headers, see
+     *            {@link #parseHeaders(InputStream, Collection)}
+     */
+    WiserMessage(Session session, String envelopeSender, String envelopeReceiver, MessageContent messageData,
+            Map<String, String> indexedHeaders) {
         this.session = session;
         this.envelopeSender = envelopeSender;
         this.envelopeReceiver = envelopeReceiver;
         this.messageData = messageData;
+        this.indexedHeaders = indexedHeaders;
     }
 
     /**
-     * Generate a JavaMail MimeMessage.
+     * Generate a JavaMail MimeMessage. The message is parsed on each call, not
+     * when it arrives.
      * 
      * @throws MessagingException
      */
     public MimeMessage getMimeMessage() throws MessagingException {
-        return new MimeMessage(session, new ByteArrayInputStream(this.messageData));
+        return new MimeMessage(session, this.messageData.newInputStream());
     }
 
     /**
-     * Get's the raw message DATA.
+     * Get's the raw message DATA. Messages stored off-heap or in files are
+     * copied to a new array on each call.
+     *
+     * @throws java.io.UncheckedIOException
+     *             if the message was stored in a file which was deleted
+     *             because the message was evicted or cleared
      */
     public byte[] getData() {
-        return this.messageData;
+        return this.messageData.toByteArray();
+    }
+
+    /**
+     * Get's the size of the raw message DATA.
+     */
+    public int getSize() {
+        return this.messageData.size();
+    }
+
+    /**
+     * Returns the decoded value of the first header with the name, without
+     * parsing the message if the header is indexed.
+     *
+     * @param name
+     *            the header name, in any case
+     */
+    public Optional<String> getHeader(String name) {
+        String lowerCase = name.toLowerCase(Locale.ENGLISH);
+        if (this.indexedHeaders.containsKey(lowerCase)) {
+            return Optional.ofNullable(this.indexedHeaders.get(lowerCase));
+        }
+        return Optional.ofNullable(parseHeaders(this.messageData.newInputStream(), Collections.singleton(lowerCase))
+                .get(lowerCase));
     }
 
     /**
@@ -86,4 +136,34 @@ public final class WiserMessage {
 
         return new String(this.getData(), Constants.SMTP_CHARSET);
     }
+
+    /**
+     * Parses the headers of the message and returns the decoded values of the
+     * named ones, mapping the names of missing headers to null.
+     *
+     * @param names
+     *            lower case header names
+     */
+    static Map<String, String> parseHeaders(InputStream data, Collection<String> names) {
+        Map<String, String> values = new HashMap<>();
+        InternetHeaders headers;
+        try {
+            headers = new InternetHeaders(data);
+        } catch (MessagingException e) {
+            headers = new InternetHeaders();
+        }
+        for (String name : names) {
+            String value = headers.getHeader(name, null);
+            if (value != null) {
+                value = MimeUtility.unfold(value).trim();
+                try {
+                    value = MimeUtility.decodeText(value);
+                } catch (UnsupportedEncodingException e) {
+                    // keep the encoded value
+                }
+            }
+            values.put(name, value);
+        }
+        return values;
+    }
 }
@@ -0,0 +1,129 @@
+package org.subethamail.wiser;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A predicate on {@link WiserMessage}s which {@link Wiser#find(Predicate)} and
+ * {@link Wiser#await(Predicate, long, java.util.concurrent.TimeUnit)} answer
+ * from the indexes of the store instead of scanning all messages. Envelope
+ * addresses are compared ignoring case, header values exactly.
+ * <p>
+ * Instances are immutable, the methods which add a condition return a
+ * modified copy.
+ */
+public final class WiserQuery implements Predicate<WiserMessage> {
+
+    private final Optional<String> sender;
+    private final Optional<String> recipient;
+    /** lower case name to value */
+    private final Map<String, String> headers;
+    private final Optional<Predicate<? super WiserMessage>> predicate;
+
+    private WiserQuery(Optional<String> sender, Optional<String> recipient, Map<String, String> headers,
+            Optional<Predicate<? super WiserMessage>> predicate) {
+        this.sender = sender;
+        this.recipient = recipient;
+        this.headers = headers;
+        this.predicate = predicate;
+    }
+
+    /**
+     * Returns a query which matches all messages.
+     */
+    public static WiserQuery create() {
+        return new WiserQuery(Optional.empty(), Optional.empty(), Collections.emptyMap(), Optional.empty());
+    }
+
+    /**
+     * Matches the messages with the envelope sender (MAIL FROM).
+     */
+    public WiserQuery from(String sender) {
+        Preconditions.checkNotNull(sender, "sender cannot be null");
+        return new WiserQuery(Optional.of(sender), recipient, headers, predicate);
+    }
+
+    /**
+     * Matches the messages with the envelope recipient (RCPT TO).
+     */
+    public WiserQuery to(String recipient) {
+        Preconditions.checkNotNull(recipient, "recipient cannot be null");
+        return new WiserQuery(sender, Optional.of(recipient), headers, predicate);
+    }
+
+    /**
+     * Matches the messages with the Message-ID, including the angle brackets.
+     */
+    public WiserQuery messageId(String messageId) {
+        return header("Message-ID", messageId);
+    }
+
+    /**
+     * Matches the messages whose first header with the name has the decoded
+     * value. Headers which are not indexed, see
+     * {@link WiserStorage#indexedHeaders(String...)}, are parsed from each
+     * candidate message.
+     */
+    public WiserQuery header(String name, String value) {
+        Preconditions.checkNotNull(name, "name cannot be null");
+        Preconditions.checkNotNull(value, "value cannot be null");
+        Map<String, String> map = new LinkedHashMap<>(headers);
+        map.put(name.toLowerCase(Locale.ENGLISH), value);
+        return new WiserQuery(sender, recipient, Collections.unmodifiableMap(map), predicate);
+    }
+
+    /**
+     * Matches the messages which also satisfy the predicate. It is only
+     * applied to the candidates found with the indexes.
+     */
+    public WiserQuery matching(Predicate<? super WiserMessage> predicate) {
+        Preconditions.checkNotNull(predicate, "predicate cannot be null");
+        if (!this.predicate.isPresent()) {
+            return new WiserQuery(sender, recipient, headers, Optional.of(predicate));
+        }
+        Predicate<? super WiserMessage> previous = this.predicate.get();
+        Predicate<WiserMessage> combined = message -> previous.test(message) && predicate.test(message);
+        return new WiserQuery(sender, recipient, headers, Optional.of(combined));
+    }
+
+    @Override
+    public boolean test(WiserMessage message) {
+        if (sender.isPresent() && !sender.get().equalsIgnoreCase(message.getEnvelopeSender())) {
+            return false;
+        }
+        if (recipient.isPresent() && !recipient.get().equalsIgnoreCase(message.getEnvelopeReceiver())) {
+            return false;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (!message.getHeader(header.getKey()).map(header.getValue()::equals).orElse(false)) {
+                return false;
+            }
+        }
+        return !predicate.isPresent() || predicate.get().test(message);
+    }
+
+    Optional<String> getSender() {
+        return sender;
+    }
+
+    Optional<String> getRecipient() {
+        return recipient;
+    }
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return "WiserQuery[sender=" + sender.orElse("") + ", recipient=" + recipient.orElse("") + ", headers="
+                + headers + ", predicate=" + predicate.isPresent() + "]";
+    }
+
+}
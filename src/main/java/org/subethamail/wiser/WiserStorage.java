@@ -0,0 +1,184 @@
+package org.subethamail.wiser;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Where {@link Wiser} keeps the received messages and how many of them. By
+ * default every message is a byte array on the heap and nothing is evicted,
+ * which is fine for unit tests. Rigs which push many messages through Wiser
+ * should store them off-heap or in files and bound the store; the oldest
+ * messages are evicted once a bound is exceeded.
+ * <p>
+ * The envelope addresses, the Message-ID and the selected headers of each
+ * message are parsed once when it arrives and indexed, see
+ * {@link Wiser#find(java.util.function.Predicate)}.
+ * <p>
+ * Instances are immutable, the methods which change a setting return a
+ * modified copy.
+ */
+public final class WiserStorage {
+
+    /** 1 MB */
+    private static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final List<String> DEFAULT_INDEXED_HEADERS = Collections.unmodifiableList(
+            Arrays.asList("message-id", "subject"));
+
+    enum Kind {
+        HEAP, OFF_HEAP, FILE
+    }
+
+    private final Kind kind;
+    private final Optional<Path> directory;
+    private final int segmentSize;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final List<String> indexedHeaders;
+
+    private WiserStorage(Kind kind, Optional<Path> directory, int segmentSize, int maxMessages, long maxBytes,
+            long maxAgeMillis, List<String> indexedHeaders) {
+        this.kind = kind;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.indexedHeaders = indexedHeaders;
+    }
+
+    /**
+     * Keeps each message in its own byte array on the heap, the default.
+     */
+    public static WiserStorage heap() {
+        return new WiserStorage(Kind.HEAP, Optional.empty(), DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE,
+                Long.MAX_VALUE, Long.MAX_VALUE, DEFAULT_INDEXED_HEADERS);
+    }
+
+    /**
+     * Appends the messages to direct buffers outside of the heap. A buffer is
+     * freed by the garbage collector once all of its messages are evicted and
+     * no longer referenced.
+     */
+    public static WiserStorage offHeap() {
+        return new WiserStorage(Kind.OFF_HEAP, Optional.empty(), DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE,
+                Long.MAX_VALUE, Long.MAX_VALUE, DEFAULT_INDEXED_HEADERS);
+    }
+
+    /**
+     * Streams the messages into files created in the directory, which are
+     * written and read with positional file operations, so only the page
+     * cache of the operating system holds them in memory. A file is deleted
+     * once all of its messages are evicted or cleared; reading the content of
+     * such a message fails afterwards. Files of a store which is never
+     * cleared stay behind when the JVM exits, so use a directory the test
+     * rig removes.
+     */
+    public static WiserStorage directory(Path directory) {
+        Preconditions.checkNotNull(directory, "directory cannot be null");
+        return new WiserStorage(Kind.FILE, Optional.of(directory), DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE,
+                Long.MAX_VALUE, Long.MAX_VALUE, DEFAULT_INDEXED_HEADERS);
+    }
+
+    /**
+     * Sets the size of the buffers or files the messages are appended to.
+     * Larger messages get a segment of their own. Default is 1 MB. Ignored by
+     * heap storage.
+     */
+    public WiserStorage segmentSize(int segmentSize) {
+        Preconditions.checkArgument(segmentSize > 0, "segmentSize must be positive");
+        return new WiserStorage(kind, directory, segmentSize, maxMessages, maxBytes, maxAgeMillis,
+                indexedHeaders);
+    }
+
+    /**
+     * Evicts the oldest messages when there are more than maxMessages.
+     */
+    public WiserStorage maxMessages(int maxMessages) {
+        Preconditions.checkArgument(maxMessages > 0, "maxMessages must be positive");
+        return new WiserStorage(kind, directory, segmentSize, maxMessages, maxBytes, maxAgeMillis,
+                indexedHeaders);
+    }
+
+    /**
+     * Evicts the oldest messages when the stored messages are larger than
+     * maxBytes together. The newest message is kept even if it is larger.
+     */
+    public WiserStorage maxBytes(long maxBytes) {
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        return new WiserStorage(kind, directory, segmentSize, maxMessages, maxBytes, maxAgeMillis,
+                indexedHeaders);
+    }
+
+    /**
+     * Evicts the messages received longer than maxAge ago.
+     */
+    public WiserStorage maxAge(long maxAge, TimeUnit unit) {
+        Preconditions.checkArgument(maxAge > 0, "maxAge must be positive");
+        return new WiserStorage(kind, directory, segmentSize, maxMessages, maxBytes, unit.toMillis(maxAge),
+                indexedHeaders);
+    }
+
+    /**
+     * Sets the headers which are indexed besides the Message-ID, default is
+     * Subject. Queries on other headers parse the messages.
+     */
+    public WiserStorage indexedHeaders(String... names) {
+        List<String> list = new ArrayList<>();
+        list.add("message-id");
+        for (String name : names) {
+            String lowerCase = name.toLowerCase(Locale.ENGLISH);
+            if (!list.contains(lowerCase)) {
+                list.add(lowerCase);
+            }
+        }
+        return new WiserStorage(kind, directory, segmentSize, maxMessages, maxBytes, maxAgeMillis,
+                Collections.unmodifiableList(list));
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    Optional<Path> getDirectory() {
+        return directory;
+    }
+
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    int getMaxMessages() {
+        return maxMessages;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /** lower case names */
+    List<String> getIndexedHeaders() {
+        return indexedHeaders;
+    }
+
+    @Override
+    public String toString() {
+        return "WiserStorage[kind=" + kind + ", directory=" + directory.map(Path::toString).orElse("") + ", segmentSize="
+                + segmentSize + ", maxMessages=" + maxMessages + ", maxBytes=" + maxBytes + ", maxAgeMillis="
+                + maxAgeMillis + ", indexedHeaders=" + indexedHeaders + "]";
+    }
+
+}
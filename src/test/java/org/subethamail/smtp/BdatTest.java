@@ -3,11 +3,14 @@ package org.subethamail.smtp;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 
-import org.junit.Ignore;
 import org.junit.Test;
 import org.subethamail.smtp.client.SMTPException;
 import org.subethamail.smtp.client.SmartClient;
@@ -99,7 +102,6 @@ public class BdatTest {
     }
 
     @Test
-    @Ignore
     public void testTwoMailsWithBdatInSameSession()
             throws UnknownHostException, SMTPException, IOException, InterruptedException {
         MyListener listener = new MyListener();
@@ -116,11 +118,6 @@ public class BdatTest {
             assertEquals("me@oz.com", listener.from);
             assertEquals("dave@oz.com", listener.to);
 
-            // Note that a second mail message doesn't work because BdatCommand and
-            // DataCommand both suck up the whole session input stream
-            // i.e. subethasmtp doesn't expect more than one message in the one session
-            // TODO support multiple mail messages in the same session?
-
             client.from("me2@oz.com");
             client.to("dave2@oz.com");
             client.bdat("hello2");
@@ -134,6 +131,52 @@ public class BdatTest {
         }
     }
 
+    @Test
+    public void testBdatContentCanBeReadAsChannel() throws Exception {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        MessageHandler handler = new MessageHandler() {
+
+            @Override
+            public void from(String from) {
+            }
+
+            @Override
+            public void recipient(String recipient) {
+            }
+
+            @Override
+            public String data(InputStream data) throws IOException {
+                assertTrue(data instanceof ReadableByteChannel);
+                ReadableByteChannel channel = (ReadableByteChannel) data;
+                ByteBuffer bb = ByteBuffer.allocateDirect(3);
+                while (channel.read(bb) != -1) {
+                    bb.flip();
+                    while (bb.hasRemaining()) {
+                        received.write(bb.get());
+                    }
+                    bb.clear();
+                }
+                return null;
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+        SMTPServer server = SMTPServer.port(25000).messageHandlerFactory(ctx -> handler).build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.bdat("hello");
+            client.bdatLast("there");
+            assertEquals("hellothere", new String(received.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            server.stop();
+        }
+    }
+
     static final class MyListener implements BasicMessageListener {
 
         String from;
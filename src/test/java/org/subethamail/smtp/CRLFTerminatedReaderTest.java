@@ -0,0 +1,167 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.CRLFTerminatedReader;
+import org.subethamail.smtp.internal.io.CRLFTerminatedReader.MaxLineLengthException;
+import org.subethamail.smtp.internal.io.CRLFTerminatedReader.TerminationException;
+
+public class CRLFTerminatedReaderTest {
+
+    @Test
+    public void testReadLines() throws IOException {
+        CRLFTerminatedReader reader = reader("HELO a\r\nMAIL FROM:<b>\r\n");
+        assertEquals("HELO a", reader.readLine());
+        assertEquals("MAIL FROM:<b>", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testUnterminatedLastLineIsDiscarded() throws IOException {
+        assertNull(reader("QUIT").readLine());
+    }
+
+    @Test
+    public void testBareLf() throws IOException {
+        CRLFTerminatedReader reader = reader("ab\ncd\r\nNOOP\r\n");
+        try {
+            reader.readLine();
+            fail();
+        } catch (TerminationException e) {
+            assertEquals(2, e.position());
+        }
+        assertEquals("NOOP", reader.readLine());
+    }
+
+    @Test
+    public void testBareCr() throws IOException {
+        try {
+            reader("abc\rd\r\n").readLine();
+            fail();
+        } catch (TerminationException e) {
+            assertEquals(3, e.position());
+        }
+    }
+
+    @Test(expected = MaxLineLengthException.class)
+    public void testLineTooLong() throws IOException {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            s.append('a');
+        }
+        reader(s + "\r\n").readLine();
+    }
+
+    @Test
+    public void testNonAsciiBytesMapToChars() throws IOException {
+        InputStream in = new ByteArrayInputStream(new byte[] { 'a', (byte) 0xe9, '\r', '\n' });
+        assertEquals("aé", new CRLFTerminatedReader(in).readLine());
+    }
+
+    @Test
+    public void testBufferedBytesAreHandedToInputStream() throws IOException {
+        CRLFTerminatedReader reader = reader("DATA\r\nSubject: x\r\n\r\nbody\r\n.\r\nQUIT\r\n");
+        assertEquals("DATA", reader.readLine());
+        assertTrue(reader.isLineBuffered());
+        InputStream in = reader.getInputStream();
+        byte[] b = new byte[27];
+        int n = 0;
+        while (n < b.length) {
+            n += in.read(b, n, b.length - n);
+        }
+        assertEquals("Subject: x\r\n\r\nbody\r\n.\r\nQUIT", new String(b, StandardCharsets.US_ASCII));
+        assertEquals('\r', in.read());
+        assertEquals('\n', in.read());
+        assertFalse(reader.isLineBuffered());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testReadsUnderlyingStreamInBlocks() throws IOException {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            s.append("RCPT TO:<a").append(i).append("@b.com>\r\n");
+        }
+        int[] reads = new int[1];
+        InputStream in = new FilterInputStream(
+                new ByteArrayInputStream(s.toString().getBytes(StandardCharsets.US_ASCII))) {
+            @Override
+            public int read() throws IOException {
+                reads[0]++;
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                reads[0]++;
+                return super.read(b, off, len);
+            }
+        };
+        CRLFTerminatedReader reader = new CRLFTerminatedReader(in);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("RCPT TO:<a" + i + "@b.com>", reader.readLine());
+        }
+        assertNull(reader.readLine());
+        assertEquals(2, reads[0]);
+    }
+
+    @Test
+    public void testLinesSplitAcrossReads() throws IOException {
+        StringBuilder longest = new StringBuilder();
+        for (int i = 0; i < 997; i++) {
+            longest.append('a');
+        }
+        byte[] bytes = ("HELO a\r\n" + longest + "\r\nab\rc\r\nQUIT\r\n").getBytes(StandardCharsets.US_ASCII);
+        // one byte per read, so every line and even its CR LF is split
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        CRLFTerminatedReader reader = new CRLFTerminatedReader(in);
+        assertEquals("HELO a", reader.readLine());
+        assertEquals(longest.toString(), reader.readLine());
+        try {
+            reader.readLine();
+            fail();
+        } catch (TerminationException e) {
+            assertEquals(2, e.position());
+        }
+        assertEquals("QUIT", reader.readLine());
+        assertNull(reader.readLine());
+    }
+
+    @Test
+    public void testLineTooLongConsumesUpToTheLimit() throws IOException {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 998; i++) {
+            s.append('a');
+        }
+        CRLFTerminatedReader reader = reader(s + "bc\r\nNOOP\r\n");
+        try {
+            reader.readLine();
+            fail();
+        } catch (MaxLineLengthException e) {
+            // too long
+        }
+        assertEquals("bc", reader.readLine());
+        assertEquals("NOOP", reader.readLine());
+    }
+
+    private static CRLFTerminatedReader reader(String s) {
+        return new CRLFTerminatedReader(new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+}
@@ -0,0 +1,57 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.ChannelInputStream;
+
+public class ChannelInputStreamTest {
+
+    @Test
+    public void testReadingIsSuspendedAboveHighWaterMarkAndResumedWhenDrained() throws IOException {
+        AtomicInteger drained = new AtomicInteger();
+        ChannelInputStream in = new ChannelInputStream(1000, () -> {
+        });
+        in.onDrained(drained::incrementAndGet);
+        byte[] chunk = new byte[16 * 1024];
+        for (int i = 0; i < 3; i++) {
+            assertTrue(in.feed(ByteBuffer.wrap(chunk)));
+        }
+        // 64K buffered
+        assertFalse(in.feed(ByteBuffer.wrap(chunk)));
+        byte[] b = new byte[16 * 1024];
+        assertEquals(b.length, in.read(b));
+        assertEquals(0, drained.get());
+        // down to half of the high water mark
+        assertEquals(b.length, in.read(b));
+        assertEquals(1, drained.get());
+        assertEquals(b.length, in.read(b));
+        assertEquals(1, drained.get());
+        assertTrue(in.feed(ByteBuffer.wrap(chunk)));
+    }
+
+    @Test
+    public void testBytesArriveInOrderAcrossSuspension() throws IOException {
+        ChannelInputStream in = new ChannelInputStream(1000, () -> {
+        });
+        byte[] content = new byte[100 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        assertFalse(in.feed(ByteBuffer.wrap(content)));
+        byte[] b = new byte[content.length];
+        int n = 0;
+        while (n < b.length) {
+            n += in.read(b, n, Math.min(1000, b.length - n));
+        }
+        assertArrayEquals(content, b);
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.DeferredFileOutputStream;
+
+public class DeferredFileOutputStreamTest {
+
+    @Test
+    public void testSmallContentStaysInMemory() throws IOException {
+        assertReadersSeeContent(100, 1000);
+    }
+
+    @Test
+    public void testContentSpanningSeveralChunks() throws IOException {
+        assertReadersSeeContent(50000, 100000);
+    }
+
+    @Test
+    public void testLargeContentIsReadFromFile() throws IOException {
+        assertReadersSeeContent(100000, 20000);
+    }
+
+    @Test
+    public void testFileIsDeletedAndReadersFailAfterClose() throws IOException {
+        byte[] content = content(50000);
+        Set<Path> before = tempFiles();
+        DeferredFileOutputStream out = new DeferredFileOutputStream(1000);
+        out.write(content);
+        InputStream in = out.getInputStream();
+        assertEquals(content[0] & 0xff, in.read());
+        Set<Path> created = tempFiles();
+        created.removeAll(before);
+        assertEquals(1, created.size());
+        out.close();
+        assertFalse(Files.exists(created.iterator().next()));
+        try {
+            readAll(in);
+            fail();
+        } catch (IOException e) {
+            // the file is gone
+        }
+    }
+
+    @Test
+    public void testReaderOfReleasedMemoryFailsInsteadOfSeeingOtherContent() throws IOException {
+        DeferredFileOutputStream first = new DeferredFileOutputStream(100000);
+        first.write(content(20000));
+        InputStream late = first.getInputStream();
+        first.close();
+        // likely gets the chunks just released
+        byte[] other = new byte[20000];
+        Arrays.fill(other, (byte) 'x');
+        try (DeferredFileOutputStream second = new DeferredFileOutputStream(100000)) {
+            second.write(other);
+            try {
+                late.read(new byte[100]);
+                fail();
+            } catch (IOException e) {
+                // released
+            }
+            try {
+                late.read();
+                fail();
+            } catch (IOException e) {
+                // released
+            }
+            try {
+                late.skip(100);
+                fail();
+            } catch (IOException e) {
+                // released
+            }
+            try {
+                late.available();
+                fail();
+            } catch (IOException e) {
+                // released
+            }
+            assertArrayEquals(other, readAll(second.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testSingleByteWritesAndReads() throws IOException {
+        byte[] content = content(20000);
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(10000)) {
+            for (byte b : content) {
+                out.write(b);
+            }
+            InputStream in = out.getInputStream();
+            for (byte b : content) {
+                assertEquals(b & 0xff, in.read());
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private static void assertReadersSeeContent(int size, int threshold) throws IOException {
+        byte[] content = content(size);
+        try (DeferredFileOutputStream out = new DeferredFileOutputStream(threshold)) {
+            // odd sized writes cross the chunk boundaries
+            for (int i = 0; i < content.length; i += 999) {
+                out.write(content, i, Math.min(999, content.length - i));
+            }
+            // every reader gets its own view
+            InputStream first = out.getInputStream();
+            InputStream second = out.getInputStream();
+            assertArrayEquals(content, readAll(first));
+            assertArrayEquals(content, readAll(second));
+            assertArrayEquals(content, readAll(out.getInputStream()));
+        }
+    }
+
+    private static Set<Path> tempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+            return files.filter(p -> p.getFileName().toString().startsWith(DeferredFileOutputStream.TMPFILE_PREFIX))
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    private static byte[] content(int size) {
+        byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        return b;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[3000];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.DotStuffingEncoder;
+import org.subethamail.smtp.internal.io.DotTerminatedOutputStream;
+import org.subethamail.smtp.internal.io.ExtraDotOutputStream;
+
+public class DotStuffingEncoderTest {
+
+    @Test
+    public void testEmpty() {
+        assertEncoded(".\r\n", "");
+    }
+
+    @Test
+    public void testMissingCrLf() {
+        assertEncoded("a\r\n.\r\n", "a");
+    }
+
+    @Test
+    public void testDotsAtLineStartAreDoubled() {
+        assertEncoded("..a\r\nb.\r\n..\r\n.\r\n", ".a\r\nb.\r\n.\r\n");
+    }
+
+    @Test
+    public void testNakedLineBreaksAreFixed() {
+        assertEncoded("a\r\nb\r\n\r\n..c\r\n.\r\n", "a\nb\r\r.c");
+    }
+
+    @Test
+    public void testSameAsStreams() throws IOException {
+        Random random = new Random(1);
+        byte[] alphabet = { 'a', '.', '\r', '\n' };
+        for (int i = 0; i < 1000; i++) {
+            byte[] data = new byte[random.nextInt(50)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DotTerminatedOutputStream terminated = new DotTerminatedOutputStream(out);
+            try (ExtraDotOutputStream stuffed = new ExtraDotOutputStream(terminated)) {
+                stuffed.write(data);
+                terminated.writeTerminatingSequence();
+            }
+            assertArrayEquals(Arrays.toString(data), out.toByteArray(), bytes(DotStuffingEncoder.encode(data, 0, data.length)));
+        }
+    }
+
+    private static void assertEncoded(String expected, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        assertArrayEquals(expected.getBytes(StandardCharsets.US_ASCII),
+                bytes(DotStuffingEncoder.encode(bytes, 0, bytes.length)));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.DotStuffingOutputStream;
+import org.subethamail.smtp.internal.io.DotTerminatedOutputStream;
+import org.subethamail.smtp.internal.io.ExtraDotOutputStream;
+
+public class DotStuffingOutputStreamTest {
+
+    @Test
+    public void testSameAsStreams() throws IOException {
+        Random random = new Random(1);
+        byte[] alphabet = { 'a', '.', '\r', '\n' };
+        for (int i = 0; i < 1000; i++) {
+            byte[] data = new byte[random.nextInt(100)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DotTerminatedOutputStream terminated = new DotTerminatedOutputStream(out);
+            try (ExtraDotOutputStream stuffed = new ExtraDotOutputStream(terminated)) {
+                stuffed.write(data);
+                terminated.writeTerminatingSequence();
+            }
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            DotStuffingOutputStream stream = new DotStuffingOutputStream(actual, 1 + random.nextInt(16));
+            // in random pieces, single bytes included
+            int offset = 0;
+            while (offset < data.length) {
+                int length = Math.min(data.length - offset, random.nextInt(10));
+                if (length == 1) {
+                    stream.write(data[offset]);
+                } else {
+                    stream.write(data, offset, length);
+                }
+                offset += length;
+            }
+            stream.writeTerminatingSequence();
+            assertArrayEquals(Arrays.toString(data), out.toByteArray(), actual.toByteArray());
+        }
+    }
+
+    @Test
+    public void testCanonicalLineEndingsOnlyStuffDots() throws IOException {
+        assertEquals("a\r\n..b\nc\r\n.\r\n", write(true, ".b", "\nc\r\n"));
+        assertEquals("a\r\n..b\r\nc\r\n.\r\n", write(false, ".b", "\nc\r\n"));
+    }
+
+    @Test
+    public void testMissingCrLfIsAdded() throws IOException {
+        assertEquals("a\r\nb\r\n.\r\n", write(true, "b"));
+        assertEquals("a\r\nb\r\n.\r\n", write(false, "b"));
+    }
+
+    @Test
+    public void testNextMessageStartsAtBeginningOfLine() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DotStuffingOutputStream stream = new DotStuffingOutputStream(out, 64);
+        stream.write("no line break".getBytes(StandardCharsets.US_ASCII));
+        stream.writeTerminatingSequence();
+        out.reset();
+        stream.write(".dot".getBytes(StandardCharsets.US_ASCII));
+        stream.writeTerminatingSequence();
+        assertEquals("..dot\r\n.\r\n", new String(out.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testWritesInLargeSegments() throws IOException {
+        int[] writes = new int[1];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes[0]++;
+                super.write(b, off, len);
+            }
+
+            @Override
+            public synchronized void write(int b) {
+                writes[0]++;
+                super.write(b);
+            }
+        };
+        DotStuffingOutputStream stream = new DotStuffingOutputStream(out, 32 * 1024);
+        for (int i = 0; i < 10_000; i++) {
+            bytes.write(("line " + i + "\n.dot\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        stream.write(bytes.toByteArray());
+        stream.writeTerminatingSequence();
+        assertTrue(out.size() > 32 * 1024 * 5);
+        assertTrue("writes=" + writes[0], writes[0] <= out.size() / (32 * 1024) + 1);
+    }
+
+    private static String write(boolean canonical, String... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DotStuffingOutputStream stream = new DotStuffingOutputStream(out, 4);
+        stream.setCanonicalLineEndings(canonical);
+        stream.write("a\r\n".getBytes(StandardCharsets.US_ASCII));
+        for (String part : parts) {
+            stream.write(part.getBytes(StandardCharsets.US_ASCII));
+        }
+        stream.writeTerminatingSequence();
+        return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,149 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.CRLFTerminatedReader;
+import org.subethamail.smtp.internal.io.DotTerminatedInputStream;
+import org.subethamail.smtp.internal.io.DotTerminatedUnstuffingInputStream;
+import org.subethamail.smtp.internal.io.DotUnstuffingInputStream;
+
+public class DotTerminatedUnstuffingInputStreamTest {
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertEquals("", readFull(stream(".\r\n")));
+    }
+
+    @Test
+    public void testPreserveLastCrLf() throws IOException {
+        assertEquals("a\r\n", readFull(stream("a\r\n.\r\n")));
+    }
+
+    @Test
+    public void testUnstuffing() throws IOException {
+        assertEquals("a\r\n.\r\n..b\r\n", readFull(stream("a\r\n..\r\n...b\r\n.\r\n")));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testMissingDotLine() throws IOException {
+        readFull(stream("a\r\n"));
+    }
+
+    @Test
+    public void testFollowingInputIsLeftInReader() throws IOException {
+        CRLFTerminatedReader reader = reader("a\r\n.\r\nQUIT\r\n");
+        assertEquals("a\r\n", readFull(new DotTerminatedUnstuffingInputStream(reader)));
+        assertEquals("QUIT", reader.readLine());
+    }
+
+    @Test
+    public void testSameBytesAsStreamChain() throws IOException {
+        Random random = new Random(12345);
+        byte[] alphabet = { '.', '\r', '\n', 'a' };
+        for (int i = 0; i < 20000; i++) {
+            // long inputs, mostly plain text, cross the boundaries of the
+            // reader buffer
+            boolean longInput = i % 10 == 0;
+            byte[] input = new byte[random.nextInt(longInput ? 20000 : 40)];
+            for (int j = 0; j < input.length; j++) {
+                input[j] = longInput && random.nextInt(50) != 0 ? (byte) 'a'
+                        : alphabet[random.nextInt(alphabet.length)];
+            }
+            Result expected = readChain(input);
+            Result actual = readFused(input, random);
+            assertArrayEquals(expected.content, actual.content);
+            assertEquals(expected.eof, actual.eof);
+            assertArrayEquals(expected.rest, actual.rest);
+        }
+    }
+
+    private static final class Result {
+        final byte[] content;
+        final boolean eof;
+        final byte[] rest;
+
+        Result(byte[] content, boolean eof, byte[] rest) {
+            this.content = content;
+            this.eof = eof;
+            this.rest = rest;
+        }
+    }
+
+    private static Result readChain(byte[] input) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        InputStream stream = new DotUnstuffingInputStream(new DotTerminatedInputStream(in));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean eof = false;
+        try {
+            int ch;
+            while ((ch = stream.read()) != -1) {
+                out.write(ch);
+            }
+        } catch (EOFException e) {
+            eof = true;
+        }
+        return new Result(out.toByteArray(), eof, eof ? new byte[0] : readAll(in));
+    }
+
+    private static Result readFused(byte[] input, Random random) throws IOException {
+        CRLFTerminatedReader reader = new CRLFTerminatedReader(new ByteArrayInputStream(input));
+        InputStream stream = new DotTerminatedUnstuffingInputStream(reader);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean eof = false;
+        byte[] buffer = new byte[100];
+        try {
+            while (true) {
+                if (random.nextBoolean()) {
+                    int ch = stream.read();
+                    if (ch == -1) {
+                        break;
+                    }
+                    out.write(ch);
+                } else {
+                    int off = random.nextInt(10);
+                    int n = stream.read(buffer, off, 1 + random.nextInt(buffer.length - off - 1));
+                    if (n == -1) {
+                        break;
+                    }
+                    out.write(buffer, off, n);
+                }
+            }
+        } catch (EOFException e) {
+            eof = true;
+        }
+        return new Result(out.toByteArray(), eof, eof ? new byte[0] : readAll(reader.getInputStream()));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static String readFull(InputStream in) throws IOException {
+        return new String(readAll(in), StandardCharsets.US_ASCII);
+    }
+
+    private static CRLFTerminatedReader reader(String s) {
+        return new CRLFTerminatedReader(new ByteArrayInputStream(s.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static DotTerminatedUnstuffingInputStream stream(String s) {
+        return new DotTerminatedUnstuffingInputStream(reader(s));
+    }
+
+}
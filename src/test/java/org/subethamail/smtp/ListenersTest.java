@@ -0,0 +1,75 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.subethamail.smtp.TestUtil.PORT;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.IoMode;
+import org.subethamail.smtp.server.Listener;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.wiser.Wiser;
+
+public class ListenersTest {
+
+    private static final int SECOND_PORT = PORT + 1;
+
+    @Test
+    public void testMessagesOnAllListenersReachTheSameServer() throws Exception {
+        Wiser wiser = Wiser.create(SMTPServer.port(PORT) //
+                .listener(Listener.port(SECOND_PORT).acceptThreads(2)));
+        wiser.start();
+        try {
+            send(PORT, "first");
+            send(SECOND_PORT, "second");
+            assertEquals(2, wiser.getMessages().size());
+        } finally {
+            wiser.stop();
+        }
+    }
+
+    @Test
+    public void testSeveralAcceptThreadsOnOnePort() throws Exception {
+        for (IoMode ioMode : IoMode.values()) {
+            Wiser wiser = Wiser.create(SMTPServer.port(PORT).ioMode(ioMode).acceptThreads(3));
+            wiser.start();
+            try {
+                for (int i = 0; i < 10; i++) {
+                    send(PORT, "message " + i);
+                }
+                assertEquals(10, wiser.getMessages().size());
+            } finally {
+                wiser.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testAcceptThreadsOnAllocatedPort() throws Exception {
+        Wiser wiser = Wiser.create(SMTPServer.port(0).acceptThreads(2));
+        wiser.start();
+        try {
+            int port = wiser.getServer().getPortAllocated();
+            assertTrue(port > 0);
+            send(port, "allocated");
+            send(port, "allocated again");
+            assertEquals(2, wiser.getMessages().size());
+        } finally {
+            wiser.stop();
+        }
+    }
+
+    private static void send(int port, String body) throws Exception {
+        SmartClient client = SmartClient.createAndConnect("localhost", port, "clientHeloHost");
+        client.from("me@oz.com");
+        client.to("dave@oz.com");
+        client.dataStart();
+        client.dataWrite(("Subject: test\r\n\r\n" + body + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        client.dataEnd();
+        client.quit();
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.subethamail.smtp.TestUtil.PORT;
+import static org.subethamail.smtp.TestUtil.createTlsSslContext;
+import static org.subethamail.smtp.TestUtil.getKeyManagers;
+import static org.subethamail.smtp.TestUtil.getTrustManagers;
+import static org.subethamail.smtp.TestUtil.send;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.junit.Test;
+import org.subethamail.smtp.TestUtil.ConnectionType;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.IoMode;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.wiser.Wiser;
+
+public class NioIoModeTest {
+
+    @Test
+    public void testDataAndBdatTransactions() throws Exception {
+        Wiser wiser = Wiser.create(SMTPServer.port(PORT).ioMode(IoMode.NIO).selectorThreads(1));
+        wiser.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+            for (int i = 0; i < 3; i++) {
+                client.from("me@oz.com");
+                client.to("dave@oz.com");
+                client.dataStart();
+                client.dataWrite(("Subject: " + i + "\r\n\r\nbody " + i + "\r\n.dotted\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                client.dataEnd();
+            }
+            client.quit();
+            assertEquals(3, wiser.getMessages().size());
+            String last = new String(wiser.getMessages().get(2).getData(), StandardCharsets.US_ASCII);
+            assertTrue(last.endsWith("body 2\r\n.dotted\r\n"));
+        } finally {
+            wiser.stop();
+        }
+    }
+
+    @Test
+    public void testIdleSessionsDoNotHoldWorkerThreads() throws Exception {
+        Wiser wiser = Wiser.create(SMTPServer.port(PORT) //
+                .ioMode(IoMode.NIO) //
+                .executorService(Executors.newFixedThreadPool(2)));
+        wiser.start();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            List<BufferedReader> readers = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Socket socket = new Socket("localhost", PORT);
+                sockets.add(socket);
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                readers.add(reader);
+                assertTrue(reader.readLine().startsWith("220"));
+            }
+            // with blocking io the third session would never get a thread
+            for (int i = 0; i < sockets.size(); i++) {
+                OutputStream out = sockets.get(i).getOutputStream();
+                out.write(("HELO client" + i + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                assertTrue(readers.get(i).readLine().startsWith("250"));
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            wiser.stop();
+        }
+    }
+
+    @Test
+    public void testPipelinedInputBeyondHighWaterMarkWithSlowReader() throws Exception {
+        // the client does not read the replies at first, so the session
+        // blocks writing them, the input piles up on the selector thread
+        // until reading is suspended, and resumes once the client catches up
+        int commands = 50_000;
+        Wiser wiser = Wiser.create(SMTPServer.port(PORT).ioMode(IoMode.NIO).selectorThreads(1));
+        wiser.start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", PORT));
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue(reader.readLine().startsWith("220"));
+            Future<?> writing = executor.submit(() -> {
+                OutputStream out = socket.getOutputStream();
+                out.write("EHLO client\r\n".getBytes(StandardCharsets.US_ASCII));
+                byte[] noop = "NOOP\r\n".getBytes(StandardCharsets.US_ASCII);
+                for (int i = 0; i < commands; i++) {
+                    out.write(noop);
+                }
+                out.write("QUIT\r\n".getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return null;
+            });
+            Thread.sleep(500);
+            String line;
+            while ((line = reader.readLine()).startsWith("250-")) {
+                // EHLO reply
+            }
+            assertTrue(line.startsWith("250 "));
+            for (int i = 0; i < commands; i++) {
+                if (i % 10_000 == 0) {
+                    Thread.sleep(100);
+                }
+                assertEquals("250 Ok", reader.readLine());
+            }
+            assertTrue(reader.readLine().startsWith("221"));
+            writing.get();
+        } finally {
+            executor.shutdownNow();
+            wiser.stop();
+        }
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        Wiser wiser = Wiser.create(SMTPServer.port(PORT).ioMode(IoMode.NIO).connectionTimeoutMs(1000));
+        wiser.start();
+        try (Socket socket = new Socket("localhost", PORT)) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue(reader.readLine().startsWith("220"));
+            assertEquals("421 Timeout waiting for data from client.", reader.readLine());
+        } finally {
+            wiser.stop();
+        }
+    }
+
+    @Test
+    public void testStartTLS() throws Exception {
+        KeyManager[] keyManagers = getKeyManagers();
+        TrustManager[] trustManagers = getTrustManagers();
+        SSLContext sslContext = createTlsSslContext(keyManagers, trustManagers);
+        Wiser wiser = Wiser.create(SMTPServer //
+                .port(PORT) //
+                .hostName("email-server.me.com") //
+                .requireTLS() //
+                .ioMode(IoMode.NIO) //
+                .startTlsSocketFactory(sslContext));
+        wiser.start();
+        try {
+            send(trustManagers, ConnectionType.START_TLS);
+            assertEquals(1, wiser.getMessages().size());
+        } finally {
+            wiser.stop();
+        }
+    }
+
+}
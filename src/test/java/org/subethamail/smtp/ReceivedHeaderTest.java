@@ -0,0 +1,60 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Optional;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.ReceivedHeader;
+
+public class ReceivedHeaderTest {
+
+    private static final String TIMESTAMP_PATTERN = "EEE, dd MMM yyyy HH:mm:ss Z (z)";
+
+    @Test
+    public void testHeaderWithRecipient() throws Exception {
+        InetAddress host = InetAddress.getByAddress(new byte[] { (byte) 209, (byte) 237, (byte) 247, 14 });
+        ReceivedHeader header = new ReceivedHeader(Optional.of("iamhelo"), host,
+                Optional.of("wasabi.infohazard.org"), "mx.example.com", Optional.of("SubEthaSMTP"));
+        String s = new String(header.toBytes("abc123", Optional.of("dave@oz.com")), StandardCharsets.US_ASCII);
+        String expectedStart = "Received: from iamhelo (wasabi.infohazard.org [209.237.247.14])\r\n"
+                + "        by mx.example.com\r\n" //
+                + "        with SMTP (SubEthaSMTP) id abc123\r\n" //
+                + "        for dave@oz.com;\r\n" //
+                + "        ";
+        assertTrue(s, s.startsWith(expectedStart));
+        assertTrue(s.endsWith("\r\n"));
+        String timestamp = s.substring(expectedStart.length(), s.length() - 2);
+        // the same format as the SimpleDateFormat used before
+        Date date = new SimpleDateFormat(TIMESTAMP_PATTERN, Locale.US).parse(timestamp);
+        assertTrue(Math.abs(date.getTime() - System.currentTimeMillis()) < 5000);
+    }
+
+    @Test
+    public void testHeaderWithoutHostNameSoftwareOrRecipient() throws Exception {
+        InetAddress host = InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 });
+        ReceivedHeader header = new ReceivedHeader(Optional.of("iamhelo"), host, Optional.empty(), "mx",
+                Optional.empty());
+        String s = new String(header.toBytes("id", Optional.empty()), StandardCharsets.US_ASCII);
+        assertTrue(s, s.startsWith("Received: from iamhelo ([10.0.0.1])\r\n" //
+                + "        by mx\r\n" //
+                + "        with SMTP id id;\r\n" //
+                + "        "));
+    }
+
+    @Test
+    public void testIsFor() throws Exception {
+        ReceivedHeader header = new ReceivedHeader(Optional.of("helo"), InetAddress.getLoopbackAddress(),
+                Optional.empty(), "mx", Optional.empty());
+        assertTrue(header.isFor(Optional.of("helo"), Optional.empty()));
+        assertFalse(header.isFor(Optional.of("other"), Optional.empty()));
+        assertFalse(header.isFor(Optional.of("helo"), Optional.of("localhost")));
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.subethamail.smtp.internal.io.ResponseWriter;
+
+public class ResponseWriterTest {
+
+    @Test
+    public void testRepliesAreWrittenTogetherOnFlush() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        ResponseWriter writer = new ResponseWriter(out);
+        writer.write("250 Ok");
+        writer.write("250 Ok");
+        writer.write("354 End data with <CR><LF>.<CR><LF>");
+        assertEquals(0, out.writes);
+        writer.flush();
+        assertEquals(1, out.writes);
+        assertEquals("250 Ok\r\n250 Ok\r\n354 End data with <CR><LF>.<CR><LF>\r\n", out.text());
+    }
+
+    @Test
+    public void testNonAsciiIsEncodedAsUtf8() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        ResponseWriter writer = new ResponseWriter(out);
+        writer.write("250 a");
+        writer.write("250 été");
+        writer.flush();
+        assertEquals("250 a\r\n250 été\r\n", out.text());
+    }
+
+    @Test
+    public void testLongReplies() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        ResponseWriter writer = new ResponseWriter(out);
+        StringBuilder s = new StringBuilder("250 ");
+        for (int i = 0; i < 10000; i++) {
+            s.append('x');
+        }
+        writer.write("250 Ok");
+        writer.write(s.toString());
+        writer.write("221 Bye");
+        writer.close();
+        assertEquals("250 Ok\r\n" + s + "\r\n221 Bye\r\n", out.text());
+    }
+
+    private static final class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        String text() {
+            return new String(toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.subethamail.smtp;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.internal.util.VirtualThreads;
+import org.subethamail.smtp.server.SMTPServer;
+
+public class VirtualThreadsTest {
+
+    private static final int PORT = 25000;
+
+    @Test
+    public void testSessionsRunOnVirtualThreads() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        AtomicReference<Thread> handlerThread = new AtomicReference<>();
+        SMTPServer server = SMTPServer.port(PORT) //
+                .virtualThreads() //
+                .messageHandlerFactory(ctx -> {
+                    handlerThread.set(Thread.currentThread());
+                    return new MessageHandler() {
+                        @Override
+                        public void from(String from) {
+                        }
+
+                        @Override
+                        public void recipient(String recipient) {
+                        }
+
+                        @Override
+                        public String data(InputStream data) throws IOException {
+                            while (data.read() != -1) {
+                                // discard
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public void done() {
+                        }
+                    };
+                }) //
+                .build();
+        server.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.dataStart();
+            client.dataWrite("hello".getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+            client.quit();
+        } finally {
+            server.stop();
+        }
+        Method isVirtual = Thread.class.getMethod("isVirtual");
+        assertNotNull(handlerThread.get());
+        assertTrue((Boolean) isVirtual.invoke(handlerThread.get()));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnsupportedBeforeJava21() {
+        assumeFalse(VirtualThreads.isSupported());
+        SMTPServer.port(PORT).virtualThreads();
+    }
+
+}
@@ -0,0 +1,499 @@
+package org.subethamail.smtp.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.client.SMTPClient;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.IoMode;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.util.ExtendedTrustManager;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Sends messages over concurrent {@link SmartClient} connections to an
+ * in-process {@link SMTPServer} which discards them, and reports the
+ * throughput, the latency percentiles of a whole transaction (MAIL FROM to the
+ * reply to the message content) and how much the JVM allocated per message.
+ * <p>
+ * Every connection first sends its warm-up messages, the measurement starts
+ * once all connections are warm and ends when all connections sent their
+ * messages, before the connections are closed.
+ *
+ * <pre>
+ * mvn -Pbenchmark test -Dbenchmark.connections=64 -Dbenchmark.size=65536 -Dbenchmark.mode=BDAT
+ * </pre>
+ *
+ * See {@link #fromSystemProperties()} for the properties.
+ */
+public final class LoadGenerator {
+
+    /**
+     * How a message is sent.
+     */
+    public enum Mode {
+        /** MAIL FROM, each RCPT TO and DATA wait for their reply */
+        DATA,
+        /** The envelope and DATA are pipelined */
+        PIPELINING,
+        /** The envelope is pipelined, the content is sent in BDAT chunks */
+        BDAT
+    }
+
+    private static final String KEYSTORE_PASSWORD = "password";
+
+    private final int port;
+    private final int connections;
+    private final int warmupMessages;
+    private final int messages;
+    private final int messageSize;
+    private final int recipients;
+    private final Mode mode;
+    private final boolean tls;
+    private final IoMode ioMode;
+
+    private LoadGenerator(Builder b) {
+        this.port = b.port;
+        this.connections = b.connections;
+        this.warmupMessages = b.warmupMessages;
+        this.messages = b.messages;
+        this.messageSize = b.messageSize;
+        this.recipients = b.recipients;
+        this.mode = b.mode;
+        this.tls = b.tls;
+        this.ioMode = b.ioMode;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns a generator configured by the system properties
+     * benchmark.port, benchmark.connections, benchmark.warmup (messages per
+     * connection), benchmark.messages (per connection), benchmark.size (bytes),
+     * benchmark.recipients, benchmark.mode (DATA, PIPELINING or BDAT),
+     * benchmark.tls (true or false) and benchmark.ioMode (BLOCKING or NIO).
+     */
+    public static LoadGenerator fromSystemProperties() {
+        Builder b = builder();
+        b.port(Integer.getInteger("benchmark.port", b.port));
+        b.connections(Integer.getInteger("benchmark.connections", b.connections));
+        b.warmupMessages(Integer.getInteger("benchmark.warmup", b.warmupMessages));
+        b.messages(Integer.getInteger("benchmark.messages", b.messages));
+        b.messageSize(Integer.getInteger("benchmark.size", b.messageSize));
+        b.recipients(Integer.getInteger("benchmark.recipients", b.recipients));
+        b.mode(Mode.valueOf(System.getProperty("benchmark.mode", b.mode.name()).toUpperCase(Locale.ENGLISH)));
+        b.tls(Boolean.parseBoolean(System.getProperty("benchmark.tls", String.valueOf(b.tls))));
+        b.ioMode(IoMode.valueOf(System.getProperty("benchmark.ioMode", b.ioMode.name()).toUpperCase(Locale.ENGLISH)));
+        return b.build();
+    }
+
+    public static final class Builder {
+
+        private int port = 25000;
+        private int connections = 16;
+        private int warmupMessages = 200;
+        private int messages = 2000;
+        private int messageSize = 4096;
+        private int recipients = 1;
+        private Mode mode = Mode.PIPELINING;
+        private boolean tls;
+        private IoMode ioMode = IoMode.BLOCKING;
+
+        private Builder() {
+        }
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        public Builder connections(int connections) {
+            Preconditions.checkArgument(connections > 0, "connections must be positive");
+            this.connections = connections;
+            return this;
+        }
+
+        /**
+         * Sets the number of messages each connection sends before the
+         * measurement starts.
+         */
+        public Builder warmupMessages(int warmupMessages) {
+            Preconditions.checkArgument(warmupMessages >= 0, "warmupMessages cannot be negative");
+            this.warmupMessages = warmupMessages;
+            return this;
+        }
+
+        /**
+         * Sets the number of measured messages each connection sends.
+         */
+        public Builder messages(int messages) {
+            Preconditions.checkArgument(messages > 0, "messages must be positive");
+            this.messages = messages;
+            return this;
+        }
+
+        /**
+         * Sets the size of a message in bytes, headers included.
+         */
+        public Builder messageSize(int messageSize) {
+            Preconditions.checkArgument(messageSize > 0, "messageSize must be positive");
+            this.messageSize = messageSize;
+            return this;
+        }
+
+        public Builder recipients(int recipients) {
+            Preconditions.checkArgument(recipients > 0, "recipients must be positive");
+            this.recipients = recipients;
+            return this;
+        }
+
+        public Builder mode(Mode mode) {
+            Preconditions.checkNotNull(mode, "mode cannot be null");
+            this.mode = mode;
+            return this;
+        }
+
+        /**
+         * Sets whether connections are encrypted. The client cannot issue
+         * STARTTLS, so the server listens with TLS from the start (SMTPS).
+         */
+        public Builder tls(boolean tls) {
+            this.tls = tls;
+            return this;
+        }
+
+        public Builder ioMode(IoMode ioMode) {
+            Preconditions.checkNotNull(ioMode, "ioMode cannot be null");
+            this.ioMode = ioMode;
+            return this;
+        }
+
+        public LoadGenerator build() {
+            return new LoadGenerator(this);
+        }
+
+    }
+
+    public Report run() throws Exception {
+        Optional<SSLContext> sslContext = tls ? Optional.of(sslContext()) : Optional.empty();
+        SMTPServer.Builder builder = SMTPServer.port(port) //
+                .ioMode(ioMode) //
+                .maxConnections(Math.max(1000, connections)) //
+                .maxRecipients(Math.max(1000, recipients)) //
+                .messageHandlerFactory(ctx -> new DiscardingMessageHandler());
+        if (sslContext.isPresent()) {
+            builder.serverSocketFactory(sslContext.get());
+        }
+        SMTPServer server = builder.build();
+        server.start();
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try {
+            byte[] content = content(messageSize);
+            List<String> to = new ArrayList<>();
+            for (int i = 0; i < recipients; i++) {
+                to.add("rcpt" + i + "@example.com");
+            }
+            Measurement measurement = new Measurement();
+            CyclicBarrier warm = new CyclicBarrier(connections, measurement::start);
+            CyclicBarrier done = new CyclicBarrier(connections, measurement::end);
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                futures.add(executor.submit(() -> {
+                    SmartClient client = connect(sslContext);
+                    try {
+                        for (int j = 0; j < warmupMessages; j++) {
+                            send(client, to, content);
+                        }
+                        warm.await();
+                        long[] latencies = new long[messages];
+                        for (int j = 0; j < messages; j++) {
+                            long start = System.nanoTime();
+                            send(client, to, content);
+                            latencies[j] = System.nanoTime() - start;
+                        }
+                        done.await();
+                        return latencies;
+                    } finally {
+                        client.quit();
+                    }
+                }));
+            }
+            long[] latencies = new long[connections * messages];
+            for (int i = 0; i < connections; i++) {
+                System.arraycopy(futures.get(i).get(), 0, latencies, i * messages, messages);
+            }
+            Arrays.sort(latencies);
+            return new Report(this, latencies, measurement.elapsedNanos(), measurement.allocatedBytes());
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    private SmartClient connect(Optional<SSLContext> sslContext) throws IOException {
+        if (!sslContext.isPresent()) {
+            return SmartClient.createAndConnect("localhost", port, "benchmark.example.com");
+        }
+        SMTPClient smtpClient = new SMTPClient() {
+            @Override
+            protected Socket createSocket() {
+                try {
+                    return sslContext.get().getSocketFactory().createSocket();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        SmartClient client = new SmartClient(smtpClient, "benchmark.example.com", Optional.empty()) {
+        };
+        client.connect("localhost", port);
+        return client;
+    }
+
+    private void send(SmartClient client, List<String> to, byte[] content) throws IOException {
+        switch (mode) {
+        case DATA:
+            client.from("sender@example.com");
+            for (String recipient : to) {
+                client.to(recipient);
+            }
+            client.dataStart();
+            client.dataWrite(content);
+            client.dataEnd();
+            break;
+        case PIPELINING:
+            client.sendEnvelope("sender@example.com", to);
+            client.dataWrite(content);
+            client.dataEnd();
+            break;
+        case BDAT:
+            client.sendEnvelope("sender@example.com", to, false);
+            client.sendData(new ByteArrayInputStream(content));
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Returns a message of the size, with header lines and body lines of 78
+     * characters.
+     */
+    static byte[] content(int size) {
+        StringBuilder b = new StringBuilder(size + 80);
+        b.append("From: sender@example.com\r\nTo: rcpt0@example.com\r\nSubject: benchmark\r\n\r\n");
+        String line = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempo";
+        while (b.length() < size) {
+            b.append(line).append("\r\n");
+        }
+        b.setLength(size);
+        return b.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static SSLContext sslContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = LoadGenerator.class.getResourceAsStream("/keyStore.jks")) {
+            keyStore.load(in, KEYSTORE_PASSWORD.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, KEYSTORE_PASSWORD.toCharArray());
+        TrustManager trustManager;
+        try (InputStream in = LoadGenerator.class.getResourceAsStream("/trustStore.jks")) {
+            trustManager = new ExtendedTrustManager(in, KEYSTORE_PASSWORD.toCharArray(), false);
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), new TrustManager[] { trustManager }, null);
+        return context;
+    }
+
+    private static final class DiscardingMessageHandler implements MessageHandler {
+
+        private final byte[] buffer = new byte[8192];
+
+        @Override
+        public void from(String from) {
+        }
+
+        @Override
+        public void recipient(String recipient) {
+        }
+
+        @Override
+        public String data(InputStream data) throws IOException {
+            while (data.read(buffer) != -1) {
+                // discard
+            }
+            return null;
+        }
+
+        @Override
+        public void done() {
+        }
+
+    }
+
+    /**
+     * The time and the bytes allocated by all threads, client and server,
+     * between the end of the warm-up and the end of the run. Both points are
+     * taken while all connections are open, so no thread which allocated
+     * ends in between.
+     */
+    private static final class Measurement {
+
+        private long startNanos;
+        private long endNanos;
+        private Map<Long, Long> startAllocated;
+        private long allocated = -1;
+
+        synchronized void start() {
+            startAllocated = allocatedBytesByThread();
+            startNanos = System.nanoTime();
+        }
+
+        synchronized void end() {
+            endNanos = System.nanoTime();
+            Map<Long, Long> endAllocated = allocatedBytesByThread();
+            if (!endAllocated.isEmpty()) {
+                allocated = 0;
+                for (Map.Entry<Long, Long> entry : endAllocated.entrySet()) {
+                    allocated += entry.getValue() - startAllocated.getOrDefault(entry.getKey(), 0L);
+                }
+            }
+        }
+
+        synchronized long elapsedNanos() {
+            return endNanos - startNanos;
+        }
+
+        synchronized long allocatedBytes() {
+            return allocated;
+        }
+
+        /**
+         * Returns the bytes allocated so far by each live thread, or an empty
+         * map if the JVM does not measure them.
+         */
+        private static Map<Long, Long> allocatedBytesByThread() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            Map<Long, Long> map = new HashMap<>();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                    long[] ids = threads.getAllThreadIds();
+                    long[] bytes = threads.getThreadAllocatedBytes(ids);
+                    for (int i = 0; i < ids.length; i++) {
+                        if (bytes[i] >= 0) {
+                            map.put(ids[i], bytes[i]);
+                        }
+                    }
+                }
+            }
+            return map;
+        }
+
+    }
+
+    /**
+     * The result of a run.
+     */
+    public static final class Report {
+
+        private final String configuration;
+        private final long[] sortedLatencies;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+        private final long bytesSent;
+
+        Report(LoadGenerator g, long[] sortedLatencies, long elapsedNanos, long allocatedBytes) {
+            this.configuration = String.format(Locale.ENGLISH,
+                    "mode=%s, tls=%s, ioMode=%s, connections=%d, messages=%d, size=%d, recipients=%d", g.mode,
+                    g.tls, g.ioMode, g.connections, sortedLatencies.length, g.messageSize, g.recipients);
+            this.sortedLatencies = sortedLatencies;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.bytesSent = (long) sortedLatencies.length * g.messageSize;
+        }
+
+        public int getMessages() {
+            return sortedLatencies.length;
+        }
+
+        public double getMessagesPerSecond() {
+            return sortedLatencies.length / seconds();
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytesSent / seconds() / (1024 * 1024);
+        }
+
+        /**
+         * Returns the latency of a transaction at the percentile, e.g. 0.99,
+         * in the unit.
+         */
+        public double getLatency(double percentile, TimeUnit unit) {
+            int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+            long nanos = sortedLatencies[Math.max(0, Math.min(sortedLatencies.length - 1, index))];
+            return (double) nanos / unit.toNanos(1);
+        }
+
+        /**
+         * Returns the bytes allocated per second by all threads, or a negative
+         * number if the JVM does not measure allocations.
+         */
+        public double getAllocatedBytesPerSecond() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes / seconds();
+        }
+
+        /**
+         * Returns the bytes allocated per message by all threads, or a
+         * negative number if the JVM does not measure allocations.
+         */
+        public double getAllocatedBytesPerMessage() {
+            return allocatedBytes < 0 ? -1 : (double) allocatedBytes / sortedLatencies.length;
+        }
+
+        private double seconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                    "%s%n" //
+                            + "  throughput  %.0f msg/s, %.1f MB/s%n" //
+                            + "  latency     p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n" //
+                            + "  allocation  %.1f MB/s, %.0f bytes/msg",
+                    configuration, getMessagesPerSecond(), getMegabytesPerSecond(),
+                    getLatency(0.5, TimeUnit.MILLISECONDS), getLatency(0.99, TimeUnit.MILLISECONDS),
+                    getLatency(0.999, TimeUnit.MILLISECONDS), getLatency(1, TimeUnit.MILLISECONDS),
+                    getAllocatedBytesPerSecond() / (1024 * 1024), getAllocatedBytesPerMessage());
+        }
+
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.subethamail.smtp.benchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.subethamail.smtp.benchmark.LoadGenerator.Mode;
+import org.subethamail.smtp.benchmark.LoadGenerator.Report;
+import org.subethamail.smtp.server.IoMode;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void testEveryModeRuns() throws Exception {
+        for (Mode mode : Mode.values()) {
+            Report report = LoadGenerator.builder() //
+                    .mode(mode) //
+                    .connections(3) //
+                    .warmupMessages(2) //
+                    .messages(10) //
+                    .recipients(2) //
+                    .messageSize(100_000) //
+                    .build() //
+                    .run();
+            assertEquals(30, report.getMessages());
+            assertTrue(report.getMessagesPerSecond() > 0);
+            assertTrue(report.getLatency(0.5, TimeUnit.MILLISECONDS) <= report.getLatency(0.999,
+                    TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testTlsAndNio() throws Exception {
+        Report report = LoadGenerator.builder() //
+                .tls(true) //
+                .ioMode(IoMode.NIO) //
+                .connections(2) //
+                .warmupMessages(1) //
+                .messages(5) //
+                .build() //
+                .run();
+        assertEquals(10, report.getMessages());
+    }
+
+    @Test
+    public void testContentHasTheSize() {
+        assertEquals(12345, LoadGenerator.content(12345).length);
+    }
+
+}
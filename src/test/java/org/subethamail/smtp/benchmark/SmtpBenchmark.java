@@ -0,0 +1,20 @@
+package org.subethamail.smtp.benchmark;
+
+import org.junit.Test;
+
+/**
+ * Runs the {@link LoadGenerator} configured by system properties and prints
+ * its report. It is not part of the normal build, run it with
+ * 
+ * <pre>
+ * mvn -Pbenchmark test -Dbenchmark.connections=64 -Dbenchmark.mode=DATA
+ * </pre>
+ */
+public class SmtpBenchmark {
+
+    @Test
+    public void benchmark() throws Exception {
+        System.out.println(LoadGenerator.fromSystemProperties().run());
+    }
+
+}
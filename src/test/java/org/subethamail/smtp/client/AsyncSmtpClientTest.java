@@ -0,0 +1,137 @@
+package org.subethamail.smtp.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.client.SMTPClient.Response;
+import org.subethamail.wiser.Wiser;
+import org.subethamail.wiser.WiserMessage;
+
+public class AsyncSmtpClientTest {
+
+    private static final int PORT = 25000;
+
+    private Wiser wiser;
+
+    private AsyncSmtpClient client;
+
+    @Before
+    public void before() throws IOException {
+        wiser = Wiser.accepter((from, recipient) -> !recipient.startsWith("bad")).port(PORT);
+        wiser.start();
+        client = AsyncSmtpClient.heloHost("clientHeloHost").eventLoops(2).build();
+    }
+
+    @After
+    public void after() {
+        client.close();
+        wiser.stop();
+    }
+
+    @Test
+    public void testManyConnectionsAndMessages() throws Exception {
+        List<CompletableFuture<AsyncSmtpConnection>> connections = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            connections.add(client.connect("localhost", PORT));
+        }
+        List<CompletableFuture<Response>> replies = new ArrayList<>();
+        for (CompletableFuture<AsyncSmtpConnection> connection : connections) {
+            assertTrue(connection.get(10, TimeUnit.SECONDS).getExtensions().containsKey("PIPELINING"));
+            for (int i = 0; i < 5; i++) {
+                replies.add(connection.get().sendMail("me@oz.com", Arrays.asList("dave@oz.com", "anne@oz.com"),
+                        content(".leading dot\r\n.\r\nlast line")));
+            }
+        }
+        for (CompletableFuture<Response> reply : replies) {
+            assertEquals(250, reply.get(10, TimeUnit.SECONDS).getCode());
+        }
+        for (CompletableFuture<AsyncSmtpConnection> connection : connections) {
+            connection.get().quit().get(10, TimeUnit.SECONDS);
+            assertFalse(connection.get().isOpen());
+        }
+        assertEquals(200, wiser.getMessages().size());
+        WiserMessage message = wiser.getMessages().get(0);
+        String data = new String(message.getData(), StandardCharsets.US_ASCII);
+        assertTrue(data, data.endsWith("\r\n\r\n.leading dot\r\n.\r\nlast line\r\n"));
+    }
+
+    @Test
+    public void testRejectedRecipients() throws Exception {
+        AsyncSmtpConnection connection = client.connect("localhost", PORT).get(10, TimeUnit.SECONDS);
+        Response reply = connection
+                .sendMail("me@oz.com", Arrays.asList("bad@oz.com", "dave@oz.com"), content("hello"))
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(250, reply.getCode());
+        assertEquals(1, wiser.getMessages().size());
+        assertEquals("dave@oz.com", wiser.getMessages().get(0).getEnvelopeReceiver());
+        assertAllRecipientsRejected(connection);
+    }
+
+    @Test
+    public void testWithoutPipelining() throws Exception {
+        AsyncSmtpConnection connection = client.connect("localhost", PORT).get(10, TimeUnit.SECONDS);
+        connection.extensions().remove("PIPELINING");
+        Response reply = connection
+                .sendMail("me@oz.com", Arrays.asList("bad@oz.com", "dave@oz.com"), content("hello"))
+                .get(10, TimeUnit.SECONDS);
+        assertEquals(250, reply.getCode());
+        assertAllRecipientsRejected(connection);
+    }
+
+    private void assertAllRecipientsRejected(AsyncSmtpConnection connection) throws Exception {
+        try {
+            connection.sendMail("me@oz.com", Collections.singletonList("bad@oz.com"), content("hello")).get(10,
+                    TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(553, ((SMTPException) e.getCause()).getResponse().getCode());
+        }
+        // the transaction was reset, the connection is still usable
+        assertEquals(250, connection.command("NOOP").get(10, TimeUnit.SECONDS).getCode());
+        assertEquals(1, wiser.getMessages().size());
+        connection.quit().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testConnectionRefused() throws Exception {
+        try {
+            client.connect("localhost", PORT + 1).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof ConnectException);
+        }
+    }
+
+    @Test
+    public void testPendingCommandsFailWhenClosed() throws Exception {
+        AsyncSmtpConnection connection = client.connect("localhost", PORT).get(10, TimeUnit.SECONDS);
+        client.close();
+        try {
+            connection.command("NOOP").get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    private static byte[] content(String body) {
+        return ("Subject: async\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
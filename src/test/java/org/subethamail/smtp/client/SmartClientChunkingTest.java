@@ -0,0 +1,202 @@
+package org.subethamail.smtp.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.server.SMTPServer;
+
+public class SmartClientChunkingTest {
+
+    private static final int PORT = 25000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<byte[]> received = new CopyOnWriteArrayList<>();
+
+    private SMTPServer server;
+
+    @Before
+    public void before() {
+        server = SMTPServer.port(PORT).messageHandlerFactory(ctx -> new MessageHandler() {
+
+            @Override
+            public void from(String from) {
+            }
+
+            @Override
+            public void recipient(String recipient) {
+            }
+
+            @Override
+            public String data(InputStream data) throws RejectException, IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = data.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, n);
+                }
+                if (new String(bytes.toByteArray(), StandardCharsets.UTF_8).contains("reject me")) {
+                    throw new RejectException(554, "rejected");
+                }
+                received.add(bytes.toByteArray());
+                return null;
+            }
+
+            @Override
+            public void done() {
+            }
+        }).build();
+        server.start();
+    }
+
+    @After
+    public void after() {
+        server.stop();
+    }
+
+    @Test
+    public void testNonAsciiBdatIsCountedInBytes() throws IOException {
+        SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+        client.from("me@oz.com");
+        client.to("dave@oz.com");
+        client.bdat("grüße ");
+        client.bdatLast("aus Köln");
+        client.quit();
+        assertEquals("grüße aus Köln", new String(received.get(0), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testStreamIsSentInChunks() throws IOException {
+        SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+        byte[] content = content(100_000);
+        for (int chunkSize : new int[] { 1000, 100_000, 1 << 20 }) {
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.sendData(new ByteArrayInputStream(content), chunkSize);
+            assertFalse(client.isTransactionInProgress());
+        }
+        client.quit();
+        assertEquals(3, received.size());
+        for (byte[] bytes : received) {
+            // sent raw, lines starting with a dot are not stuffed
+            assertArrayEquals(content, bytes);
+        }
+    }
+
+    @Test
+    public void testEmptyStream() throws IOException {
+        SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+        client.from("me@oz.com");
+        client.to("dave@oz.com");
+        client.sendData(new ByteArrayInputStream(new byte[0]));
+        client.quit();
+        assertEquals(0, received.get(0).length);
+    }
+
+    @Test
+    public void testFileIsTransferredToSocketChannel() throws IOException {
+        Path file = folder.newFile().toPath();
+        byte[] content = content(100_000);
+        Files.write(file, content);
+        SmartClient client = connectWithSocketChannel();
+        try (FileChannel channel = FileChannel.open(file)) {
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.sendData(channel, 30_000);
+            assertEquals(content.length, channel.position());
+        }
+        client.quit();
+        assertArrayEquals(content, received.get(0));
+    }
+
+    @Test
+    public void testArrayChunksAreWrittenToSocketChannel() throws IOException {
+        byte[] content = content(100_000);
+        SmartClient client = connectWithSocketChannel();
+        client.from("me@oz.com");
+        client.to("dave@oz.com");
+        client.bdat(content, 0, 40_000, false);
+        client.bdat(content, 40_000, 60_000, true);
+        client.quit();
+        assertArrayEquals(content, received.get(0));
+    }
+
+    private static SmartClient connectWithSocketChannel() throws IOException {
+        SMTPClient smtpClient = new SMTPClient() {
+            @Override
+            protected Socket createSocket() {
+                try {
+                    return SocketChannel.open().socket();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        SmartClient client = new SmartClient(smtpClient, "clientHeloHost", Optional.empty());
+        client.connect("localhost", PORT);
+        return client;
+    }
+
+    @Test
+    public void testFallsBackToDataWithoutChunking() throws IOException {
+        SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+        client.getExtensions().remove("CHUNKING");
+        client.from("me@oz.com");
+        client.to("dave@oz.com");
+        client.sendData(new ByteArrayInputStream(content(10_000)), 1000);
+        client.quit();
+        // the server adds a Received header in front of the DATA content
+        byte[] bytes = received.get(0);
+        assertArrayEquals(content(10_000), Arrays.copyOfRange(bytes, bytes.length - 10_000, bytes.length));
+    }
+
+    @Test
+    public void testRejectedMessageLeavesConnectionInStep() throws IOException {
+        SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+        client.from("me@oz.com");
+        client.to("dave@oz.com");
+        try {
+            client.sendData(new ByteArrayInputStream("please reject me\r\n".getBytes(StandardCharsets.US_ASCII)), 4);
+            fail();
+        } catch (SMTPException e) {
+            assertEquals(554, e.getResponse().getCode());
+        }
+        client.rset();
+        client.noop();
+        client.quit();
+    }
+
+    private static byte[] content(int size) {
+        StringBuilder b = new StringBuilder("Subject: chunks\r\n\r\n");
+        for (int i = 0; b.length() < size; i++) {
+            b.append(i % 10 == 0 ? ".dotted line " : "line ").append(i).append("\r\n");
+        }
+        return (b.substring(0, size - 2) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
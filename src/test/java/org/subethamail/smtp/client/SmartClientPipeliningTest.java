@@ -0,0 +1,234 @@
+package org.subethamail.smtp.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.server.SMTPServer;
+
+public class SmartClientPipeliningTest {
+
+    private static final int PORT = 25000;
+
+    private static final byte[] CONTENT = "Subject: pipelined\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /** The accepted recipients of each delivered message */
+    private final List<List<String>> delivered = new CopyOnWriteArrayList<>();
+
+    private SMTPServer server;
+
+    private SmartClient client;
+
+    @Before
+    public void before() throws IOException {
+        server = SMTPServer.port(PORT).messageHandlerFactory(ctx -> new MessageHandler() {
+
+            final List<String> recipients = new ArrayList<>();
+
+            @Override
+            public void from(String from) throws RejectException {
+                if (from.startsWith("bad")) {
+                    throw new RejectException(553, "sender rejected");
+                }
+            }
+
+            @Override
+            public void recipient(String recipient) throws RejectException {
+                if (recipient.startsWith("bad")) {
+                    throw new RejectException(550, "unknown user");
+                }
+                recipients.add(recipient);
+            }
+
+            @Override
+            public String data(InputStream data) throws IOException {
+                while (data.read() != -1) {
+                    // discard
+                }
+                delivered.add(new ArrayList<>(recipients));
+                return null;
+            }
+
+            @Override
+            public void done() {
+            }
+        }).build();
+        server.start();
+        client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+    }
+
+    @After
+    public void after() {
+        client.quit();
+        server.stop();
+    }
+
+    @Test
+    public void testRecipientsAreReportedIndividually() throws IOException {
+        assertTrue(client.getExtensions().containsKey("PIPELINING"));
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            recipients.add((i % 5 == 0 ? "bad" : "good") + i + "@oz.com");
+        }
+        EnvelopeResult result = client.sendEnvelope("me@oz.com", recipients);
+        assertEquals(40, result.getAcceptedRecipients().size());
+        assertEquals(10, result.getRejectedRecipients().size());
+        assertEquals("bad0@oz.com", result.getRejectedRecipients().get(0));
+        assertEquals(550, result.getRecipientResponses().get("bad5@oz.com").getCode());
+        assertTrue(result.isDataStarted());
+        client.dataWrite(CONTENT);
+        client.dataEnd();
+        assertEquals(1, delivered.size());
+        assertEquals(result.getAcceptedRecipients(), delivered.get(0));
+        assertEquals(40, client.getRecipientCount());
+    }
+
+    @Test
+    public void testAllRecipientsRejected() throws IOException {
+        EnvelopeResult result = client.sendEnvelope("me@oz.com", Arrays.asList("bad1@oz.com", "bad2@oz.com"));
+        assertTrue(result.getAcceptedRecipients().isEmpty());
+        assertFalse(result.isDataStarted());
+        client.rset();
+        // the replies are still in step with the commands
+        result = client.sendEnvelope("me@oz.com", Arrays.asList("good@oz.com"));
+        assertTrue(result.isDataStarted());
+        client.dataWrite(CONTENT);
+        client.dataEnd();
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void testRejectedSenderThrowsAfterAllReplies() throws IOException {
+        try {
+            client.sendEnvelope("bad@oz.com", Arrays.asList("good@oz.com"));
+            fail();
+        } catch (SMTPException e) {
+            assertEquals(553, e.getResponse().getCode());
+        }
+        EnvelopeResult result = client.sendEnvelope("me@oz.com", Arrays.asList("good@oz.com"));
+        assertTrue(result.isDataStarted());
+        client.dataWrite(CONTENT);
+        client.dataEnd();
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void testWithoutPipelining() throws IOException {
+        client.getExtensions().remove("PIPELINING");
+        EnvelopeResult result = client.sendEnvelope("me@oz.com", Arrays.asList("good@oz.com", "bad@oz.com"));
+        assertEquals(Arrays.asList("good@oz.com"), result.getAcceptedRecipients());
+        assertTrue(result.isDataStarted());
+        client.dataWrite(CONTENT);
+        client.dataEnd();
+        result = client.sendEnvelope("me@oz.com", Arrays.asList("bad@oz.com"));
+        assertFalse(result.getDataResponse().isPresent());
+        assertEquals(1, delivered.size());
+    }
+
+    @Test
+    public void testRejectionOfEmptyMessageAfterAcceptedDataEndsTransaction() throws Exception {
+        try (ServerSocket ss = startScriptedServer("554 no valid recipients")) {
+            SmartClient c = SmartClient.createAndConnect("localhost", ss.getLocalPort(), "clientHeloHost");
+            EnvelopeResult result = c.sendEnvelope("me@oz.com", Arrays.asList("bad@oz.com"));
+            assertFalse(result.isDataStarted());
+            assertFalse(c.isTransactionInProgress());
+            assertTrue(c.isConnected());
+            c.quit();
+        }
+    }
+
+    @Test
+    public void testServiceClosingAfterEmptyMessageClosesConnection() throws Exception {
+        try (ServerSocket ss = startScriptedServer("421 shutting down")) {
+            SmartClient c = SmartClient.createAndConnect("localhost", ss.getLocalPort(), "clientHeloHost");
+            try {
+                c.sendEnvelope("me@oz.com", Arrays.asList("bad@oz.com"));
+                fail();
+            } catch (SMTPException e) {
+                assertEquals(421, e.getResponse().getCode());
+            }
+            assertFalse(c.isConnected());
+        }
+    }
+
+    @Test
+    public void testMissingReplyToEmptyMessageClosesConnection() throws Exception {
+        try (ServerSocket ss = startScriptedServer(null)) {
+            SmartClient c = SmartClient.createAndConnect("localhost", ss.getLocalPort(), "clientHeloHost");
+            try {
+                c.sendEnvelope("me@oz.com", Arrays.asList("bad@oz.com"));
+                fail();
+            } catch (EOFException e) {
+                // expected
+            }
+            assertFalse(c.isConnected());
+        }
+    }
+
+    /**
+     * Starts a server for one connection which supports PIPELINING, rejects
+     * every recipient but accepts DATA anyway, and replies to the end of the
+     * message with the given reply, or disconnects if it is null.
+     */
+    private static ServerSocket startScriptedServer(String endOfDataReply) throws IOException {
+        ServerSocket ss = new ServerSocket(0);
+        Thread thread = new Thread(() -> {
+            try (Socket socket = ss.accept()) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                out.write("220 scripted\r\n");
+                out.flush();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("EHLO")) {
+                        out.write("250-scripted\r\n250 PIPELINING\r\n");
+                    } else if (line.startsWith("MAIL")) {
+                        out.write("250 OK\r\n");
+                    } else if (line.startsWith("RCPT")) {
+                        out.write("550 unknown user\r\n");
+                    } else if (line.equals("DATA")) {
+                        out.write("354 go ahead\r\n");
+                    } else if (line.equals(".")) {
+                        if (endOfDataReply == null) {
+                            return;
+                        }
+                        out.write(endOfDataReply + "\r\n");
+                    } else if (line.equals("QUIT")) {
+                        out.write("221 bye\r\n");
+                        out.flush();
+                        return;
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // the test fails on the client side
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return ss;
+    }
+
+}
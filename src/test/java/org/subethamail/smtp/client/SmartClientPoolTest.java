@@ -0,0 +1,198 @@
+package org.subethamail.smtp.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.auth.EasyAuthenticationHandlerFactory;
+import org.subethamail.smtp.auth.LoginFailedException;
+import org.subethamail.smtp.auth.UsernamePasswordValidator;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.wiser.Wiser;
+
+public class SmartClientPoolTest {
+
+    private static final int PORT = 25000;
+
+    private static final String USERNAME = "user";
+
+    private static final String PASSWORD = "secret";
+
+    private static final byte[] CONTENT = "Subject: pooled\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private Wiser wiser;
+
+    private SmartClientPool pool;
+
+    @Before
+    public void before() {
+        wiser = startWiser();
+        pool = SmartClientPool.heloHost("clientHeloHost").maxConnectionsPerHost(2).build();
+    }
+
+    @After
+    public void after() {
+        pool.close();
+        wiser.stop();
+    }
+
+    @Test
+    public void testConnectionIsReused() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            pool.execute("localhost", PORT, client -> send(client, "dave@oz.com"));
+        }
+        assertEquals(1, pool.getConnectionsOpened());
+        assertEquals(1, pool.getIdleCount("localhost", PORT));
+        assertEquals(5, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testRejectedTransactionIsResetAndConnectionReused() throws IOException {
+        try {
+            pool.execute("localhost", PORT, client -> send(client, "bad@oz.com"));
+            fail();
+        } catch (SMTPException e) {
+            assertEquals(553, e.getResponse().getCode());
+        }
+        pool.execute("localhost", PORT, client -> send(client, "dave@oz.com"));
+        assertEquals(1, pool.getConnectionsOpened());
+        assertEquals(1, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testConnectionsPerHostAreCapped() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                futures.add(executor.submit(() -> {
+                    pool.execute("localhost", PORT, client -> send(client, "dave@oz.com"));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(pool.getConnectionsOpened() <= 2);
+        assertEquals(30, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testBrokenIdleConnectionIsReplaced() throws IOException {
+        pool.close();
+        pool = SmartClientPool.heloHost("clientHeloHost").validateAfter(0, TimeUnit.MILLISECONDS).build();
+        pool.execute("localhost", PORT, client -> send(client, "dave@oz.com"));
+        // the idle connection dies with the server
+        wiser.stop();
+        wiser = startWiser();
+        pool.execute("localhost", PORT, client -> send(client, "dave@oz.com"));
+        assertEquals(2, pool.getConnectionsOpened());
+        assertEquals(1, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testFailedConnectionIsNotReused() throws IOException {
+        try {
+            pool.execute("localhost", PORT, client -> {
+                throw new IOException("boom");
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("boom", e.getMessage());
+        }
+        assertEquals(0, pool.getIdleCount("localhost", PORT));
+        assertEquals(0, pool.getHostCount());
+    }
+
+    @Test
+    public void testAuthenticatedConnectionIsReused() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            pool.execute("localhost", PORT, USERNAME, PASSWORD, client -> send(client, "dave@oz.com"));
+        }
+        assertEquals(1, pool.getConnectionsOpened());
+        assertEquals(1, pool.getIdleCount("localhost", PORT, USERNAME, PASSWORD));
+        assertEquals(0, pool.getIdleCount("localhost", PORT));
+        assertEquals(3, wiser.getMessages().size());
+    }
+
+    @Test
+    public void testHostWithoutConnectionsIsForgotten() throws IOException {
+        for (int port = PORT + 1; port <= PORT + 3; port++) {
+            try {
+                pool.execute("localhost", port, client -> send(client, "dave@oz.com"));
+                fail();
+            } catch (IOException e) {
+                // nothing listens there
+            }
+        }
+        try {
+            pool.execute("localhost", PORT, "someone", "wrong", client -> send(client, "dave@oz.com"));
+            fail();
+        } catch (SMTPException e) {
+            assertEquals(535, e.getResponse().getCode());
+        }
+        assertEquals(0, pool.getHostCount());
+        pool.execute("localhost", PORT, client -> send(client, "dave@oz.com"));
+        assertEquals(1, pool.getHostCount());
+    }
+
+    @Test
+    public void testIdleConnectionsOfAllHostsAreEvicted() throws Exception {
+        pool.close();
+        pool = SmartClientPool.heloHost("clientHeloHost").idleTimeout(100, TimeUnit.MILLISECONDS).build();
+        List<SmartClient> clients = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            // each user is a host of its own
+            pool.execute("localhost", PORT, USERNAME + i, PASSWORD, client -> {
+                clients.add(client);
+                send(client, "dave@oz.com");
+            });
+        }
+        assertEquals(10, pool.getHostCount());
+        Thread.sleep(300);
+        // acquiring a connection to another host evicts them all
+        pool.execute("localhost", PORT, client -> send(client, "dave@oz.com"));
+        for (SmartClient client : clients) {
+            assertFalse(client.isConnected());
+        }
+        assertEquals(1, pool.getHostCount());
+        assertEquals(11, wiser.getMessages().size());
+    }
+
+    private static Wiser startWiser() {
+        UsernamePasswordValidator validator = (username, password, context) -> {
+            if (!username.startsWith(USERNAME) || !password.equals(PASSWORD)) {
+                throw new LoginFailedException();
+            }
+        };
+        Wiser wiser = Wiser.accepter((from, recipient) -> !recipient.startsWith("bad")).server(
+                SMTPServer.port(PORT).authenticationHandlerFactory(new EasyAuthenticationHandlerFactory(validator)));
+        wiser.start();
+        return wiser;
+    }
+
+    private static void send(SmartClient client, String recipient) throws IOException {
+        client.from("me@oz.com");
+        client.to(recipient);
+        client.dataStart();
+        client.dataWrite(CONTENT);
+        client.dataEnd();
+    }
+
+}
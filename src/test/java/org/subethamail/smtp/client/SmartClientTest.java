@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.UnknownHostException;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -15,6 +16,7 @@ import org.subethamail.smtp.MessageHandler;
 import org.subethamail.smtp.MessageHandlerFactory;
 import org.subethamail.smtp.RejectException;
 import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.internal.util.TextUtils;
 import org.subethamail.smtp.server.SMTPServer;
 
 public class SmartClientTest {
@@ -28,10 +30,11 @@ public class SmartClientTest {
             assertEquals("clientHeloHost", client.getHeloHost());
             assertEquals(0, client.getRecipientCount());
             Assert.assertFalse(client.getAuthenticator().isPresent());
-            assertEquals(3, client.getExtensions().size());
+            assertEquals(4, client.getExtensions().size());
             Set<String> set = client.getExtensions().keySet();
             assertTrue(set.contains("8BITMIME"));
             assertTrue(set.contains("CHUNKING"));
+            assertTrue(set.contains("PIPELINING"));
             //TODO why is OK in client.getExtensions?
         } finally {
             server.stop();
@@ -39,6 +42,39 @@ public class SmartClientTest {
 
     }
 
+    @Test
+    public void testTransactionsAreNotDelayed() throws Exception {
+        SMTPServer server = SMTPServer.port(25000).messageHandlerFactory(createMessageHandlerFactory()).build();
+        try {
+            server.start();
+            SmartClient client = SmartClient.createAndConnect("localhost", 25000, "clientHeloHost");
+            // warm up
+            send(client);
+            int transactions = 20;
+            long start = System.nanoTime();
+            for (int i = 0; i < transactions; i++) {
+                send(client);
+            }
+            long averageMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) / transactions;
+            client.quit();
+            // each of the 6 replies used to wait at least 50 ms, a local
+            // transaction takes a few milliseconds
+            assertTrue("average transaction took " + averageMs + "ms", averageMs < 50);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void send(SmartClient client) throws IOException {
+        client.from("me@oz.com");
+        client.to("dave@oz.com");
+        client.to("anne@oz.com");
+        client.to("carl@oz.com");
+        client.dataStart();
+        client.dataWrite(TextUtils.getAsciiBytes("Subject: hi\r\n\r\nbody\r\n"));
+        client.dataEnd();
+    }
+
     private MessageHandlerFactory createMessageHandlerFactory() {
         return new MessageHandlerFactory() {
 
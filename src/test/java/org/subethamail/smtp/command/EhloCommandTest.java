@@ -18,6 +18,7 @@ import org.subethamail.smtp.AuthenticationHandlerFactory;
 import org.subethamail.smtp.internal.command.EhloCommand;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
 import org.subethamail.smtp.internal.server.ServerThread;
+import org.subethamail.smtp.internal.server.SessionRegistry;
 import org.subethamail.smtp.server.SMTPServer;
 import org.subethamail.smtp.server.Session;
 
@@ -81,9 +82,13 @@ public class EhloCommandTest {
                         }
                     }) //
                     .build();
-            Session session = new Session(server, new ServerThread(server, ss, ProxyHandler.NOP), socket, ProxyHandler.NOP);
+            ServerThread serverThread = new ServerThread(server, ss, ProxyHandler.NOP,
+                    new SessionRegistry(server.getMaxConnections()), Collections.emptyList(),
+                    server.getServerThreadName(), server.getDisplayableLocalSocketAddress());
+            Session session = new Session(server, serverThread, socket, ProxyHandler.NOP);
             session.setTlsStarted(isTlsStarted);
             ec.execute("EHLO me.com", session);
+            session.flush();
             String output = new String(out.toByteArray(), StandardCharsets.UTF_8);
             return output;
         }
@@ -0,0 +1,56 @@
+package org.subethamail.smtp.command;
+
+import org.subethamail.smtp.util.ServerTestCase;
+
+/**
+ * Commands sent in groups without waiting for the replies (RFC 2920).
+ */
+public class PipeliningTest extends ServerTestCase
+{
+	public PipeliningTest(String name)
+	{
+		super(name);
+	}
+
+	public void testAdvertised() throws Exception
+	{
+		this.expect("220");
+
+		this.send("EHLO foo.com");
+		this.expectContains("250-PIPELINING");
+	}
+
+	public void testPipelinedTransaction() throws Exception
+	{
+		this.expect("220");
+
+		this.send("EHLO foo.com");
+		this.expect("250");
+
+		this.send("MAIL FROM: success@subethamail.org\r\n"
+				+ "RCPT TO: success@subethamail.org\r\n"
+				+ "RCPT TO: success2@subethamail.org\r\n"
+				+ "DATA");
+		this.expect("250");
+		this.expect("250");
+		this.expect("250");
+		this.expect("354");
+
+		// the message, the end of DATA and the next transaction in one go
+		this.send("Subject: one\r\n\r\nbody one\r\n.\r\n"
+				+ "MAIL FROM: success@subethamail.org\r\n"
+				+ "RCPT TO: success@subethamail.org\r\n"
+				+ "DATA");
+		this.expect("250 Ok");
+		this.expect("250");
+		this.expect("250");
+		this.expect("354");
+
+		this.send("Subject: two\r\n\r\nbody two\r\n.\r\nQUIT");
+		this.expect("250 Ok");
+		this.expect("221");
+
+		assertEquals(3, this.wiser.getMessages().size());
+		assertEquals("two", this.wiser.getMessages().get(2).getMimeMessage().getSubject());
+	}
+}
@@ -0,0 +1,107 @@
+package org.subethamail.smtp.internal.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.subethamail.smtp.internal.proxy.ProxyHandler;
+import org.subethamail.smtp.server.SMTPServer;
+import org.subethamail.smtp.server.Session;
+
+public class SessionRegistryTest {
+
+    private static final SMTPServer SERVER = SMTPServer.port(2020).build();
+
+    @Test
+    public void testCountsAddedSessions() throws IOException {
+        SessionRegistry registry = new SessionRegistry(1);
+        Session a = session();
+        Session b = session();
+        registry.add(a);
+        registry.add(a);
+        assertEquals(1, registry.getNumberOfConnections());
+        assertFalse(registry.hasTooManyConnections());
+        registry.add(b);
+        assertEquals(2, registry.getNumberOfConnections());
+        assertTrue(registry.hasTooManyConnections());
+        assertEquals(2, registry.snapshot().size());
+        registry.remove(a);
+        registry.remove(a);
+        assertEquals(1, registry.getNumberOfConnections());
+        registry.remove(b);
+        assertEquals(0, registry.getNumberOfConnections());
+        assertTrue(registry.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testRemovingSameSessionTwiceReleasesOnePermit() throws Exception {
+        SessionRegistry registry = new SessionRegistry(1);
+        assertEquals(11, registry.availablePermits());
+        Session a = session();
+        registry.acquirePermit();
+        registry.add(a);
+        assertEquals(10, registry.availablePermits());
+        registry.remove(a);
+        registry.remove(a);
+        assertEquals(11, registry.availablePermits());
+        assertEquals(0, registry.getNumberOfConnections());
+    }
+
+    @Test
+    public void testConcurrentChurnKeepsCountAndPermits() throws Exception {
+        int threads = 8;
+        int rounds = 2000;
+        SessionRegistry registry = new SessionRegistry(threads);
+        List<Session> sessions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            sessions.add(session());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (Session session : sessions) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < rounds; i++) {
+                        registry.acquirePermit();
+                        registry.add(session);
+                        assertFalse(registry.hasTooManyConnections());
+                        registry.remove(session);
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, registry.getNumberOfConnections());
+        // every permit was given back
+        assertEquals(threads + 10, registry.availablePermits());
+    }
+
+    private static Session session() throws IOException {
+        Socket socket = Mockito.mock(Socket.class);
+        Mockito.when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        Mockito.when(socket.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        return new Session(SERVER, null, socket, ProxyHandler.NOP);
+    }
+
+}
@@ -0,0 +1,87 @@
+package org.subethamail.smtp.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class ConnectionFilterTest {
+
+    private static final int PORT = 2020;
+
+    @Test
+    public void testRejectedConnectionIsAnsweredAndClosed() throws IOException {
+        SMTPServer server = SMTPServer.port(PORT) //
+                .connectionFilter(ConnectionFilter.reject(InetAddress::isLoopbackAddress)) //
+                .sessionHandler(new FailingSessionHandler()) //
+                .build();
+        server.start();
+        try (Socket socket = new Socket("localhost", PORT)) {
+            BufferedReader reader = reader(socket);
+            assertEquals("554 5.7.1 Access denied", reader.readLine());
+            assertNull(reader.readLine());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAcceptedConnectionGetsGreeting() throws IOException {
+        SMTPServer server = SMTPServer.port(PORT) //
+                .connectionFilter(ConnectionFilter.reject(address -> false)) //
+                .build();
+        server.start();
+        try (Socket socket = new Socket("localhost", PORT)) {
+            assertTrue(reader(socket).readLine().startsWith("220 "));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConnectionOverLimitIsRejectedBeforeSession() throws IOException {
+        SMTPServer server = SMTPServer.port(PORT) //
+                .maxConnections(1) //
+                .build();
+        server.start();
+        try (Socket first = new Socket("localhost", PORT)) {
+            assertTrue(reader(first).readLine().startsWith("220 "));
+            try (Socket second = new Socket("localhost", PORT)) {
+                BufferedReader reader = reader(second);
+                assertEquals("421 Too many connections, try again later", reader.readLine());
+                assertNull(reader.readLine());
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Fails the test if a session is created for a filtered connection.
+     */
+    private static final class FailingSessionHandler implements SessionHandler {
+
+        @Override
+        public SessionAcceptance accept(Session session) {
+            throw new AssertionError("session created for a rejected connection");
+        }
+
+        @Override
+        public void onSessionEnd(Session session) {
+        }
+
+    }
+
+}
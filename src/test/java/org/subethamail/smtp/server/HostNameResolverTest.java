@@ -0,0 +1,160 @@
+package org.subethamail.smtp.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HostNameResolverTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+    @Test
+    public void testNameIsUsedOnceTheLookupFinished() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HostNameResolver resolver = new HostNameResolver(1, 10, HOUR, HOUR, HOUR, address -> {
+            await(release);
+            return Optional.of("client.example.com");
+        });
+        InetAddress address = address(1);
+        resolver.prefetch(address);
+        // the lookup blocks, the header gets the address only
+        assertFalse(resolver.getIfReady(address).isPresent());
+        assertEquals(1, resolver.getNotReady());
+        assertEquals(0, resolver.getTimeouts());
+        release.countDown();
+        assertEquals(Optional.of("client.example.com"), awaitName(resolver, address));
+        resolver.prefetch(address);
+        assertEquals(1, resolver.getMisses());
+        assertEquals(1, resolver.getHits());
+    }
+
+    @Test
+    public void testFailedLookupIsCachedForNegativeTtl() throws Exception {
+        AtomicInteger lookups = new AtomicInteger();
+        HostNameResolver resolver = new HostNameResolver(1, 10, HOUR, 0, HOUR, address -> {
+            lookups.incrementAndGet();
+            return Optional.empty();
+        });
+        InetAddress address = address(1);
+        resolver.prefetch(address);
+        awaitLookups(lookups, 1);
+        // negative ttl 0: expired as soon as complete, looked up again
+        long start = System.currentTimeMillis();
+        while (lookups.get() < 2 && System.currentTimeMillis() - start < 5000) {
+            resolver.prefetch(address);
+            Thread.sleep(1);
+        }
+        assertTrue(lookups.get() >= 2);
+        assertFalse(resolver.getIfReady(address).isPresent());
+    }
+
+    @Test
+    public void testLookupFailureCountsAsNoName() throws Exception {
+        HostNameResolver resolver = new HostNameResolver(1, 10, HOUR, HOUR, HOUR, address -> {
+            throw new IllegalStateException("boom");
+        });
+        InetAddress address = address(1);
+        resolver.prefetch(address);
+        long start = System.currentTimeMillis();
+        while (resolver.getHits() == 0 && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(1);
+            resolver.prefetch(address);
+        }
+        assertTrue(resolver.getHits() > 0);
+        assertFalse(resolver.getIfReady(address).isPresent());
+    }
+
+    @Test
+    public void testLookupTimesOut() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger lookups = new AtomicInteger();
+        HostNameResolver resolver = new HostNameResolver(1, 10, HOUR, HOUR, TimeUnit.MILLISECONDS.toNanos(50),
+                address -> {
+                    lookups.incrementAndGet();
+                    await(release);
+                    return Optional.of("late.example.com");
+                });
+        resolver.prefetch(address(1));
+        // waits behind the first one and times out before it can start
+        resolver.prefetch(address(2));
+        Thread.sleep(100);
+        assertFalse(resolver.getIfReady(address(1)).isPresent());
+        assertEquals(1, resolver.getTimeouts());
+        assertEquals(0, resolver.getNotReady());
+        release.countDown();
+        awaitLookups(lookups, 1);
+        Thread.sleep(100);
+        assertEquals(1, lookups.get());
+        assertEquals(2, resolver.getTimeouts());
+        // the failure is cached, a late result does not replace it
+        assertFalse(resolver.getIfReady(address(1)).isPresent());
+        assertFalse(resolver.getIfReady(address(2)).isPresent());
+    }
+
+    @Test
+    public void testWaitingLookupsAreBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HostNameResolver resolver = new HostNameResolver(1, 1000, HOUR, HOUR, HOUR, address -> {
+            await(release);
+            return Optional.of("x");
+        });
+        try {
+            for (int i = 0; i < 200; i++) {
+                resolver.prefetch(address(i));
+            }
+            // one running, 100 waiting
+            assertEquals(99, resolver.getRejected());
+            assertEquals(101, resolver.size());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testCacheIsBounded() throws Exception {
+        HostNameResolver resolver = new HostNameResolver(2, 5, HOUR, HOUR, HOUR, address -> Optional.of("x"));
+        for (int i = 0; i < 50; i++) {
+            resolver.prefetch(address(i));
+        }
+        assertTrue(resolver.size() <= 5);
+    }
+
+    private static Optional<String> awaitName(HostNameResolver resolver, InetAddress address)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Optional<String> name;
+        while (!(name = resolver.getIfReady(address)).isPresent() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(1);
+        }
+        return name;
+    }
+
+    private static void awaitLookups(AtomicInteger lookups, int count) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (lookups.get() < count && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static InetAddress address(int i) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) i });
+    }
+
+}
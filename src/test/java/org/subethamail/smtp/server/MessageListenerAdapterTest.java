@@ -0,0 +1,258 @@
+package org.subethamail.smtp.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+import org.subethamail.smtp.MessageHandler;
+import org.subethamail.smtp.RejectException;
+import org.subethamail.smtp.TooMuchDataException;
+import org.subethamail.smtp.helper.SimpleMessageListener;
+import org.subethamail.smtp.helper.SimpleMessageListenerAdapter;
+import org.subethamail.smtp.helper.SmarterMessageListener;
+import org.subethamail.smtp.helper.SmarterMessageListener.Receiver;
+import org.subethamail.smtp.helper.SmarterMessageListenerAdapter;
+
+public class MessageListenerAdapterTest {
+
+    private static final byte[] CONTENT = new byte[100000];
+
+    static {
+        new Random(1).nextBytes(CONTENT);
+    }
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testEachReceiverGetsTheWholeMessage() throws Exception {
+        List<byte[]> received = new CopyOnWriteArrayList<>();
+        SmarterMessageListener listener = (from, recipient) -> receiver(data -> received.add(readAll(data)));
+        // deferred to a file after 1000 bytes
+        SmarterMessageListenerAdapter adapter = new SmarterMessageListenerAdapter(
+                Collections.singleton(listener), 1000);
+        MessageHandler handler = adapter.create(null);
+        handler.from("me@oz.com");
+        handler.recipient("dave@oz.com");
+        handler.recipient("anne@oz.com");
+        handler.recipient("carl@oz.com");
+        handler.data(new ByteArrayInputStream(CONTENT));
+        handler.done();
+        assertEquals(3, received.size());
+        for (byte[] bytes : received) {
+            assertArrayEquals(CONTENT, bytes);
+        }
+    }
+
+    @Test
+    public void testDeliveriesRunConcurrently() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        List<String> recipients = new CopyOnWriteArrayList<>();
+        SimpleMessageListener listener = new SimpleMessageListener() {
+
+            @Override
+            public boolean accept(String from, String recipient) {
+                return true;
+            }
+
+            @Override
+            public void deliver(String from, String recipient, InputStream data) throws IOException {
+                assertArrayEquals(CONTENT, readAll(data));
+                latch.countDown();
+                // both deliveries must be running to get past this
+                try {
+                    assertTrue(latch.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                recipients.add(recipient);
+            }
+        };
+        SimpleMessageListenerAdapter adapter = new SimpleMessageListenerAdapter(
+                Collections.singleton(listener), 1000, executor);
+        MessageHandler handler = adapter.create(null);
+        handler.from("me@oz.com");
+        handler.recipient("dave@oz.com");
+        handler.recipient("anne@oz.com");
+        handler.data(new ByteArrayInputStream(CONTENT));
+        assertEquals(Arrays.asList("anne@oz.com", "dave@oz.com"), sorted(recipients));
+    }
+
+    @Test
+    public void testFailedDeliveriesGiveOneTemporaryReply() throws Exception {
+        for (boolean concurrently : new boolean[] { false, true }) {
+            try {
+                deliver(concurrently, new IOException("boom"), null, new IOException("boom"));
+                fail();
+            } catch (RejectException e) {
+                assertEquals(451, e.getCode());
+                assertTrue(e.getMessage(), e.getMessage().contains("2 of 3 deliveries"));
+            }
+        }
+    }
+
+    @Test
+    public void testTooMuchDataGivesPermanentReply() throws Exception {
+        for (boolean concurrently : new boolean[] { false, true }) {
+            try {
+                deliver(concurrently, new IOException("boom"), new TooMuchDataException());
+                fail();
+            } catch (RejectException e) {
+                assertEquals(552, e.getCode());
+            }
+        }
+    }
+
+    @Test
+    public void testRetryAfterPartialFailureDuplicatesSuccessfulDeliveries() throws Exception {
+        List<String> delivered = new CopyOnWriteArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+        SmarterMessageListener good = (from, recipient) -> receiver(data -> {
+            readAll(data);
+            delivered.add("good");
+        });
+        SmarterMessageListener flaky = (from, recipient) -> receiver(data -> {
+            readAll(data);
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("temporary");
+            }
+            delivered.add("flaky");
+        });
+        SmarterMessageListenerAdapter adapter = new SmarterMessageListenerAdapter(Arrays.asList(good, flaky),
+                1000, executor);
+        for (int i = 0; i < 2; i++) {
+            MessageHandler handler = adapter.create(null);
+            handler.from("me@oz.com");
+            handler.recipient("dave@oz.com");
+            try {
+                handler.data(new ByteArrayInputStream(CONTENT));
+                assertEquals(1, i);
+            } catch (RejectException e) {
+                // the client retries
+                assertEquals(0, i);
+                assertEquals(451, e.getCode());
+            }
+        }
+        assertEquals(Arrays.asList("flaky", "good", "good"), sorted(delivered));
+    }
+
+    @Test
+    public void testInterruptWaitsForRunningDeliveries() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean stopped = new AtomicBoolean();
+        SmarterMessageListener slow = (from, recipient) -> receiver(data -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                // still reading for a moment
+                long start = System.nanoTime();
+                while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200)) {
+                    data.read();
+                }
+                stopped.set(true);
+            }
+        });
+        SmarterMessageListenerAdapter adapter = new SmarterMessageListenerAdapter(Arrays.asList(slow, slow),
+                1000, executor);
+        AtomicReference<Throwable> thrown = new AtomicReference<>();
+        AtomicBoolean stoppedWhenThrown = new AtomicBoolean();
+        Thread session = new Thread(() -> {
+            try {
+                MessageHandler handler = adapter.create(null);
+                handler.from("me@oz.com");
+                handler.recipient("dave@oz.com");
+                handler.data(new ByteArrayInputStream(CONTENT));
+            } catch (Throwable e) {
+                stoppedWhenThrown.set(stopped.get());
+                thrown.set(e);
+            }
+        });
+        session.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        session.interrupt();
+        session.join(10000);
+        assertTrue(thrown.get() instanceof InterruptedIOException);
+        assertTrue(stoppedWhenThrown.get());
+    }
+
+    private void deliver(boolean concurrently, IOException... failures) throws Exception {
+        List<SmarterMessageListener> listeners = new ArrayList<>();
+        for (IOException failure : failures) {
+            listeners.add((from, recipient) -> receiver(data -> {
+                readAll(data);
+                if (failure != null) {
+                    throw failure;
+                }
+            }));
+        }
+        SmarterMessageListenerAdapter adapter = concurrently
+                ? new SmarterMessageListenerAdapter(listeners, 1000, executor)
+                : new SmarterMessageListenerAdapter(listeners, 1000);
+        MessageHandler handler = adapter.create(null);
+        handler.from("me@oz.com");
+        handler.recipient("dave@oz.com");
+        handler.data(new ByteArrayInputStream(CONTENT));
+    }
+
+    private interface Delivery {
+        void deliver(InputStream data) throws IOException;
+    }
+
+    private static Receiver receiver(Delivery delivery) {
+        return new Receiver() {
+
+            @Override
+            public void deliver(InputStream data) throws IOException {
+                delivery.deliver(data);
+            }
+
+            @Override
+            public void done() {
+            }
+        };
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> copy = new ArrayList<>(list);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+    }
+
+}
@@ -8,11 +8,13 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.subethamail.smtp.internal.proxy.ProxyHandler;
 import org.subethamail.smtp.internal.server.ServerThread;
+import org.subethamail.smtp.internal.server.SessionRegistry;
 
 public class SessionHandlerTest {
 
@@ -21,7 +23,9 @@ public class SessionHandlerTest {
         SessionHandler h = SessionHandler.acceptAll();
         SMTPServer server = SMTPServer.port(2020).build();
         try (ServerSocket ss = new ServerSocket(0)) {
-            ServerThread serverThread = new ServerThread(server, ss, ProxyHandler.NOP);
+            ServerThread serverThread = new ServerThread(server, ss, ProxyHandler.NOP,
+                    new SessionRegistry(server.getMaxConnections()), Collections.emptyList(),
+                    server.getServerThreadName(), server.getDisplayableLocalSocketAddress());
             Socket socket = Mockito.mock(Socket.class);
             ByteArrayInputStream in = new ByteArrayInputStream(
                     "hi there".getBytes(StandardCharsets.UTF_8));
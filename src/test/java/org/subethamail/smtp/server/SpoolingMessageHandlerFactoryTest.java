@@ -0,0 +1,328 @@
+package org.subethamail.smtp.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.subethamail.smtp.client.SMTPException;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.helper.SpooledMessage;
+import org.subethamail.smtp.helper.SpoolingMessageHandlerFactory;
+import org.subethamail.smtp.helper.SpoolingMessageHandlerFactory.Sync;
+
+public class SpoolingMessageHandlerFactoryTest {
+
+    private static final int PORT = 25000;
+
+    private static final String CONTENT = "Subject: spooled\r\n\r\nline 1\r\nline 2\r\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDataAndBdatAreSpooled() throws Exception {
+        Path spool = folder.getRoot().toPath();
+        List<SpooledMessage> messages = new CopyOnWriteArrayList<>();
+        List<List<String>> recipients = new CopyOnWriteArrayList<>();
+        SMTPServer server = server(SpoolingMessageHandlerFactory.directory(spool) //
+                .sync(Sync.PER_MESSAGE) //
+                .bufferSize(8192) //
+                .listener((context, from, to, message) -> {
+                    recipients.add(to);
+                    messages.add(message);
+                }) //
+                .build());
+        server.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.to("anne@oz.com");
+            client.dataStart();
+            client.dataWrite(CONTENT.getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.bdat(CONTENT.substring(0, 10));
+            client.bdatLast(CONTENT.substring(10));
+            client.quit();
+        } finally {
+            server.stop();
+        }
+        assertEquals(2, messages.size());
+        assertEquals(Arrays.asList("dave@oz.com", "anne@oz.com"), recipients.get(0));
+        byte[] expected = CONTENT.getBytes(StandardCharsets.US_ASCII);
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(expected);
+        for (SpooledMessage message : messages) {
+            assertTrue(message.getPath().startsWith(spool));
+            assertArrayEquals(expected, Files.readAllBytes(message.getPath()));
+            assertEquals(expected.length, message.getSize());
+            assertArrayEquals(digest, message.getDigest().get());
+        }
+    }
+
+    @Test
+    public void testLargeMessageIsSpooledInSeveralWrites() throws Exception {
+        Path spool = folder.getRoot().toPath();
+        List<SpooledMessage> messages = new CopyOnWriteArrayList<>();
+        SMTPServer server = server(SpoolingMessageHandlerFactory.directory(spool) //
+                .noDigest() //
+                .bufferSize(8192) //
+                .listener((context, from, to, message) -> messages.add(message)) //
+                .build());
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; s.length() < 100000; i++) {
+            s.append("line ").append(i).append("\r\n");
+        }
+        server.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.dataStart();
+            client.dataWrite(s.toString().getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+            client.quit();
+        } finally {
+            server.stop();
+        }
+        assertEquals(s.toString(), new String(Files.readAllBytes(messages.get(0).getPath()), StandardCharsets.US_ASCII));
+        assertTrue(!messages.get(0).getDigest().isPresent());
+    }
+
+    @Test
+    public void testPerMessageSyncAcknowledgesConcurrentMessages() throws Exception {
+        Path spool = folder.getRoot().toPath();
+        List<SpooledMessage> messages = new CopyOnWriteArrayList<>();
+        SMTPServer server = server(SpoolingMessageHandlerFactory.directory(spool) //
+                .sync(Sync.PER_MESSAGE) //
+                .listener((context, from, to, message) -> messages.add(message)) //
+                .build());
+        server.start();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+                    for (int j = 0; j < 3; j++) {
+                        client.from("me@oz.com");
+                        client.to("dave@oz.com");
+                        client.dataStart();
+                        client.dataWrite(CONTENT.getBytes(StandardCharsets.US_ASCII));
+                        client.dataEnd();
+                    }
+                    client.quit();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+        assertEquals(12, messages.size());
+        for (SpooledMessage message : messages) {
+            assertEquals(CONTENT.length(), Files.size(message.getPath()));
+        }
+    }
+
+    @Test
+    public void testGroupCommitForcesConcurrentMessagesInBatches() throws Exception {
+        Path spool = folder.getRoot().toPath();
+        List<SpooledMessage> messages = new CopyOnWriteArrayList<>();
+        SpoolingMessageHandlerFactory factory = SpoolingMessageHandlerFactory.directory(spool) //
+                .groupCommit(20, TimeUnit.MILLISECONDS, 64) //
+                .bufferSize(8192) //
+                .listener((context, from, to, message) -> messages.add(message)) //
+                .build();
+        SMTPServer server = server(factory);
+        StringBuilder large = new StringBuilder(CONTENT);
+        while (large.length() < 20000) {
+            large.append("more content\r\n");
+        }
+        server.start();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                // every other session sends content larger than the buffer
+                String content = i % 2 == 0 ? CONTENT : large.toString();
+                futures.add(executor.submit(() -> {
+                    SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+                    for (int j = 0; j < 5; j++) {
+                        client.from("me@oz.com");
+                        client.to("dave@oz.com");
+                        client.dataStart();
+                        client.dataWrite(content.getBytes(StandardCharsets.US_ASCII));
+                        client.dataEnd();
+                    }
+                    client.quit();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+        assertEquals(40, messages.size());
+        assertTrue("batches: " + factory.getBatchCount(), factory.getBatchCount() < 20);
+        for (SpooledMessage message : messages) {
+            String content = new String(read(message), StandardCharsets.US_ASCII);
+            assertTrue(content.equals(CONTENT) || content.equals(large.toString()));
+            assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(read(message)), message.getDigest().get());
+            message.release();
+        }
+        // only the empty current segment is left
+        try (Stream<Path> files = Files.list(spool)) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    public void testRecoverReturnsMessagesNotReleased() throws Exception {
+        Path spool = folder.getRoot().toPath();
+        List<SpooledMessage> messages = new CopyOnWriteArrayList<>();
+        SMTPServer server = server(SpoolingMessageHandlerFactory.directory(spool) //
+                .sync(Sync.GROUP_COMMIT) //
+                .listener((context, from, to, message) -> {
+                    if (to.contains("bad@oz.com")) {
+                        throw new IllegalStateException("queue full");
+                    }
+                    messages.add(message);
+                }) //
+                .build());
+        server.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+            for (String recipient : Arrays.asList("anne@oz.com", "bad@oz.com", "dave@oz.com", "fred@oz.com")) {
+                client.from("me@oz.com");
+                client.to(recipient);
+                client.dataStart();
+                client.dataWrite((CONTENT + recipient + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                try {
+                    client.dataEnd();
+                } catch (SMTPException e) {
+                    assertEquals(451, e.getResponse().getCode());
+                    client.rset();
+                }
+            }
+            client.quit();
+        } finally {
+            server.stop();
+        }
+        assertEquals(3, messages.size());
+        messages.get(1).release();
+
+        // a new factory, as after a restart
+        SpoolingMessageHandlerFactory factory = SpoolingMessageHandlerFactory.directory(spool) //
+                .sync(Sync.GROUP_COMMIT) //
+                .listener((context, from, to, message) -> fail()) //
+                .build();
+        List<SpooledMessage> recovered = factory.recover();
+        assertEquals(2, recovered.size());
+        assertEquals(CONTENT + "anne@oz.com\r\n", new String(read(recovered.get(0)), StandardCharsets.US_ASCII));
+        assertEquals(CONTENT + "fred@oz.com\r\n", new String(read(recovered.get(1)), StandardCharsets.US_ASCII));
+        assertTrue(factory.recover().isEmpty());
+        for (SpooledMessage message : recovered) {
+            message.release();
+        }
+        try (Stream<Path> files = Files.list(spool)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testSpoolFileIsDeletedWhenTooLarge() throws Exception {
+        Path spool = folder.getRoot().toPath();
+        SMTPServer server = server(SpoolingMessageHandlerFactory.directory(spool) //
+                .maxMessageSize(10) //
+                .listener((context, from, to, message) -> fail()) //
+                .build());
+        assertRejectedAndSpoolEmpty(server, spool);
+    }
+
+    @Test
+    public void testSpoolFileIsDeletedWhenListenerFails() throws Exception {
+        Path spool = folder.getRoot().toPath();
+        SMTPServer server = server(SpoolingMessageHandlerFactory.directory(spool) //
+                .listener((context, from, to, message) -> {
+                    throw new IllegalStateException("queue full");
+                }) //
+                .build());
+        SMTPException e = assertRejectedAndSpoolEmpty(server, spool);
+        // a temporary failure, without the internal exception text
+        assertEquals(451, e.getResponse().getCode());
+        assertTrue(!e.getResponse().getMessage().contains("queue full"));
+    }
+
+    private static SMTPException assertRejectedAndSpoolEmpty(SMTPServer server, Path spool) throws IOException {
+        SMTPException rejection = null;
+        server.start();
+        try {
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("dave@oz.com");
+            client.dataStart();
+            client.dataWrite(CONTENT.getBytes(StandardCharsets.US_ASCII));
+            try {
+                client.dataEnd();
+                fail();
+            } catch (SMTPException e) {
+                rejection = e;
+            }
+            client.quit();
+        } finally {
+            server.stop();
+        }
+        try (Stream<Path> files = Files.list(spool)) {
+            assertEquals(0, files.count());
+        }
+        return rejection;
+    }
+
+    private static byte[] read(SpooledMessage message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) message.getSize());
+        try (FileChannel channel = FileChannel.open(message.getPath())) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, message.getOffset() + buffer.position()) == -1) {
+                    throw new EOFException();
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    private static SMTPServer server(SpoolingMessageHandlerFactory factory) {
+        return SMTPServer.port(PORT).insertReceivedHeaders(false).messageHandlerFactory(factory).build();
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.subethamail.wiser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import jakarta.mail.Session;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageStoreTest {
+
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testOldestMessagesAreEvictedByCount() throws IOException {
+        MessageStore store = new MessageStore(WiserStorage.heap().maxMessages(1500), SESSION);
+        for (int i = 0; i < 5000; i++) {
+            store.add("me@oz.com", "rcpt" + i + "@oz.com", content(i));
+        }
+        List<WiserMessage> messages = store.messages();
+        assertEquals(1500, messages.size());
+        assertEquals("rcpt3500@oz.com", messages.get(0).getEnvelopeReceiver());
+        assertEquals("rcpt4999@oz.com", messages.get(1499).getEnvelopeReceiver());
+        int i = 3500;
+        for (WiserMessage message : messages) {
+            assertArrayEquals(content(i++), message.getData());
+        }
+    }
+
+    @Test
+    public void testOffHeapMessagesAreEvictedByBytes() throws Exception {
+        MessageStore store = new MessageStore(WiserStorage.offHeap().segmentSize(100).maxBytes(1000), SESSION);
+        for (int i = 0; i < 200; i++) {
+            store.add("me@oz.com", "rcpt" + i + "@oz.com", content(i));
+        }
+        List<WiserMessage> messages = store.messages();
+        long bytes = 0;
+        for (WiserMessage message : messages) {
+            bytes += message.getSize();
+        }
+        assertTrue(bytes <= 1000);
+        WiserMessage last = messages.get(messages.size() - 1);
+        assertArrayEquals(content(199), last.getData());
+        assertEquals("message 199", last.getMimeMessage().getSubject());
+    }
+
+    @Test
+    public void testLargeMessageGetsItsOwnSegment() throws IOException {
+        MessageStore store = new MessageStore(WiserStorage.offHeap().segmentSize(16), SESSION);
+        store.add("me@oz.com", "dave@oz.com", content(1));
+        store.add("me@oz.com", "anne@oz.com", content(2));
+        assertArrayEquals(content(1), store.messages().get(0).getData());
+        assertArrayEquals(content(2), store.messages().get(1).getData());
+    }
+
+    @Test
+    public void testFileSegmentsAreDeletedWhenEvicted() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        MessageStore store = new MessageStore(WiserStorage.directory(directory).segmentSize(200).maxMessages(2),
+                SESSION);
+        for (int i = 0; i < 100; i++) {
+            store.add("me@oz.com", "rcpt" + i + "@oz.com", content(i));
+        }
+        assertArrayEquals(content(98), store.messages().get(0).getData());
+        assertArrayEquals(content(99), store.messages().get(1).getData());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertTrue(files.count() <= 2);
+        }
+    }
+
+    @Test
+    public void testMessagesAreEvictedByAge() throws IOException {
+        AtomicLong now = new AtomicLong();
+        MessageStore store = new MessageStore(WiserStorage.heap().maxAge(1, TimeUnit.MINUTES), SESSION, now::get);
+        store.add("me@oz.com", "dave@oz.com", content(1));
+        now.addAndGet(TimeUnit.SECONDS.toMillis(30));
+        store.add("me@oz.com", "anne@oz.com", content(2));
+        assertEquals(2, store.messages().size());
+        now.addAndGet(TimeUnit.SECONDS.toMillis(31));
+        assertEquals(1, store.messages().size());
+        assertEquals("anne@oz.com", store.messages().get(0).getEnvelopeReceiver());
+        now.addAndGet(TimeUnit.MINUTES.toMillis(1));
+        assertTrue(store.messages().isEmpty());
+    }
+
+    @Test
+    public void testIteratorSeesMessagesStoredWhenCreated() throws IOException {
+        MessageStore store = new MessageStore(WiserStorage.heap(), SESSION);
+        store.add("me@oz.com", "dave@oz.com", content(1));
+        Iterator<WiserMessage> iterator = store.messages().iterator();
+        store.add("me@oz.com", "anne@oz.com", content(2));
+        List<WiserMessage> iterated = new ArrayList<>();
+        iterator.forEachRemaining(iterated::add);
+        assertEquals(1, iterated.size());
+        assertEquals(2, store.messages().size());
+    }
+
+    @Test
+    public void testClearRemovesMessagesIndexesAndSegments() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        MessageStore store = new MessageStore(WiserStorage.directory(directory).segmentSize(200), SESSION);
+        for (int i = 0; i < 10; i++) {
+            store.add("me@oz.com", "rcpt" + i + "@oz.com", content(i));
+        }
+        // the view supports clear like the list it replaced
+        store.messages().clear();
+        assertTrue(store.messages().isEmpty());
+        assertTrue(store.find(WiserQuery.create().to("rcpt1@oz.com")).isEmpty());
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+        for (int i = 0; i < 1500; i++) {
+            store.add("me@oz.com", "rcpt" + i + "@oz.com", content(i));
+        }
+        assertEquals(1500, store.messages().size());
+        assertArrayEquals(content(1024), store.messages().get(1024).getData());
+        assertEquals(1, store.find(WiserQuery.create().to("rcpt1@oz.com")).size());
+        store.clear();
+        assertTrue(store.messages().isEmpty());
+    }
+
+    @Test
+    public void testLargeMessageIsStreamedAcrossFileSegments() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MessageStore store = new MessageStore(WiserStorage.directory(directory).segmentSize(1000), SESSION);
+        StringBuilder s = new StringBuilder("Subject: large\r\n\r\n");
+        for (int i = 0; s.length() < 50000; i++) {
+            s.append("line ").append(i).append("\r\n");
+        }
+        byte[] data = s.toString().getBytes(StandardCharsets.US_ASCII);
+        store.add("me@oz.com", "dave@oz.com", content(1));
+        WiserMessage message = store.add("me@oz.com", "anne@oz.com", new ByteArrayInputStream(data));
+        store.add("me@oz.com", "fred@oz.com", content(2));
+        assertEquals(data.length, message.getSize());
+        assertArrayEquals(data, message.getData());
+        assertEquals("large", message.getMimeMessage().getSubject());
+        assertEquals("large", message.getHeader("subject").get());
+        assertArrayEquals(content(1), store.messages().get(0).getData());
+        assertArrayEquals(content(2), store.messages().get(2).getData());
+        store.clear();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(0, files.count());
+        }
+        try {
+            message.getData();
+            fail();
+        } catch (UncheckedIOException e) {
+            // the segment files are gone
+        }
+    }
+
+    private static byte[] content(int i) {
+        return ("Subject: message " + i + "\r\n\r\nbody of message " + i + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.subethamail.wiser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import jakarta.mail.Session;
+
+import org.junit.Test;
+import org.subethamail.smtp.client.SmartClient;
+import org.subethamail.smtp.server.SMTPServer;
+
+public class WiserQueryTest {
+
+    private static final int PORT = 25000;
+
+    private static final Session SESSION = Session.getInstance(new Properties());
+
+    @Test
+    public void testMessagesCanBeClearedBetweenTests() throws Exception {
+        Wiser wiser = Wiser.port(PORT);
+        wiser.start();
+        try {
+            send("dave@oz.com", 1);
+            assertEquals(1, wiser.getMessages().size());
+            wiser.getMessages().clear();
+            assertTrue(wiser.getMessages().isEmpty());
+            send("anne@oz.com", 2);
+            assertEquals("anne@oz.com", wiser.getMessages().get(0).getEnvelopeReceiver());
+            wiser.clear();
+            assertTrue(wiser.getMessages().isEmpty());
+            assertFalse(wiser.await(WiserQuery.create().to("anne@oz.com"), 10, TimeUnit.MILLISECONDS).isPresent());
+        } finally {
+            wiser.stop();
+        }
+    }
+
+    @Test
+    public void testFindUsesEnvelopeAndHeaders() throws IOException {
+        MessageStore store = new MessageStore(WiserStorage.heap(), SESSION);
+        for (int i = 0; i < 1000; i++) {
+            store.add("sender" + i % 10 + "@oz.com", "rcpt" + i % 100 + "@oz.com", message(i, "subject " + i % 3));
+        }
+        List<WiserMessage> found = store.find(WiserQuery.create().to("RCPT7@oz.com"));
+        assertEquals(10, found.size());
+        assertEquals("rcpt7@oz.com", found.get(0).getEnvelopeReceiver());
+
+        found = store.find(WiserQuery.create().from("sender7@oz.com").header("Subject", "subject 1"));
+        // i % 10 == 7 and i % 3 == 1
+        assertEquals(34, found.size());
+
+        found = store.find(WiserQuery.create().messageId("<42@oz.com>"));
+        assertEquals(1, found.size());
+        assertEquals("rcpt42@oz.com", found.get(0).getEnvelopeReceiver());
+
+        assertTrue(store.find(WiserQuery.create().to("nobody@oz.com")).isEmpty());
+    }
+
+    @Test
+    public void testFindWithHeaderWhichIsNotIndexed() throws IOException {
+        MessageStore store = new MessageStore(WiserStorage.heap().indexedHeaders(), SESSION);
+        store.add("me@oz.com", "dave@oz.com", message(1, "hello"));
+        store.add("me@oz.com", "anne@oz.com", message(2, "goodbye"));
+        List<WiserMessage> found = store.find(WiserQuery.create().header("subject", "goodbye"));
+        assertEquals(1, found.size());
+        assertEquals("anne@oz.com", found.get(0).getEnvelopeReceiver());
+        assertEquals(Optional.of("hello"), store.messages().get(0).getHeader("Subject"));
+    }
+
+    @Test
+    public void testEncodedSubjectIsDecoded() throws IOException {
+        MessageStore store = new MessageStore(WiserStorage.heap(), SESSION);
+        store.add("me@oz.com", "dave@oz.com", message(1, "=?UTF-8?Q?gr=C3=BC=C3=9Fe?="));
+        assertEquals(1, store.find(WiserQuery.create().header("Subject", "grüße")).size());
+    }
+
+    @Test
+    public void testEvictedMessagesAreRemovedFromIndexes() throws IOException {
+        MessageStore store = new MessageStore(WiserStorage.heap().maxMessages(10), SESSION);
+        for (int i = 0; i < 100; i++) {
+            store.add("me@oz.com", "rcpt" + i % 20 + "@oz.com", message(i, "subject"));
+        }
+        assertEquals(10, store.find(WiserQuery.create().from("me@oz.com")).size());
+        assertTrue(store.find(WiserQuery.create().to("rcpt5@oz.com")).isEmpty());
+        assertEquals(1, store.find(WiserQuery.create().to("rcpt15@oz.com")).size());
+        assertTrue(store.find(WiserQuery.create().messageId("<50@oz.com>")).isEmpty());
+    }
+
+    @Test
+    public void testAwaitTimesOut() throws Exception {
+        MessageStore store = new MessageStore(WiserStorage.heap(), SESSION);
+        store.add("me@oz.com", "dave@oz.com", message(1, "hello"));
+        assertFalse(store.await(WiserQuery.create().to("anne@oz.com"), 50, TimeUnit.MILLISECONDS).isPresent());
+        assertTrue(store.await(m -> m.getEnvelopeReceiver().equals("dave@oz.com"), 0, TimeUnit.MILLISECONDS)
+                .isPresent());
+    }
+
+    @Test
+    public void testSlowPredicateDoesNotBlockArrivals() throws Exception {
+        MessageStore store = new MessageStore(WiserStorage.heap(), SESSION);
+        store.add("me@oz.com", "dave@oz.com", message(1, "hello"));
+        CountDownLatch testing = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Predicate<WiserMessage> slow = m -> {
+            testing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return m.getEnvelopeReceiver().equals("anne@oz.com");
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<List<WiserMessage>> found = executor.submit(() -> store.find(slow));
+            Future<Optional<WiserMessage>> awaited = executor.submit(() -> store.await(slow, 10, TimeUnit.SECONDS));
+            assertTrue(testing.await(10, TimeUnit.SECONDS));
+            // both predicates are running and must not hold the store
+            executor.submit(() -> store.add("me@oz.com", "anne@oz.com", message(2, "hello"))) //
+                    .get(10, TimeUnit.SECONDS);
+            release.countDown();
+            assertTrue(found.get(10, TimeUnit.SECONDS).isEmpty());
+            assertEquals("anne@oz.com", awaited.get(10, TimeUnit.SECONDS).get().getEnvelopeReceiver());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testAwaitIsWokenByDelivery() throws Exception {
+        Wiser wiser = Wiser.storage(WiserStorage.offHeap()).server(SMTPServer.port(PORT));
+        wiser.start();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Optional<WiserMessage>> future = executor.submit(
+                    () -> wiser.await(WiserQuery.create().to("anne@oz.com").header("Subject", "arrived"), 10,
+                            TimeUnit.SECONDS));
+            SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+            client.from("me@oz.com");
+            client.to("anne@oz.com");
+            client.dataStart();
+            client.dataWrite("Subject: arrived\r\n\r\nbody\r\n".getBytes(StandardCharsets.US_ASCII));
+            client.dataEnd();
+            client.quit();
+            Optional<WiserMessage> message = future.get(10, TimeUnit.SECONDS);
+            assertTrue(message.isPresent());
+            assertEquals("me@oz.com", message.get().getEnvelopeSender());
+            assertEquals(1, wiser.find(WiserQuery.create().from("ME@oz.com")).size());
+        } finally {
+            executor.shutdownNow();
+            wiser.stop();
+        }
+    }
+
+    private static void send(String recipient, int i) throws IOException {
+        SmartClient client = SmartClient.createAndConnect("localhost", PORT, "clientHeloHost");
+        client.from("me@oz.com");
+        client.to(recipient);
+        client.dataStart();
+        client.dataWrite(message(i, "hello"));
+        client.dataEnd();
+        client.quit();
+    }
+
+    private static byte[] message(int i, String subject) {
+        return ("Message-ID: <" + i + "@oz.com>\r\nSubject: " + subject + "\r\n\r\nbody " + i + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+}